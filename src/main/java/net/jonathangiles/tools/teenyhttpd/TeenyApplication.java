@@ -2,8 +2,10 @@ package net.jonathangiles.tools.teenyhttpd;
 
 import net.jonathangiles.tools.teenyhttpd.annotations.*;
 import net.jonathangiles.tools.teenyhttpd.implementation.DefaultMessageConverter;
+import net.jonathangiles.tools.teenyhttpd.implementation.Tls;
 import net.jonathangiles.tools.teenyhttpd.model.MessageConverter;
 import net.jonathangiles.tools.teenyhttpd.model.ServerSentEventHandler;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketHandler;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
@@ -56,6 +58,29 @@ public class TeenyApplication {
         this.messageConverterMap.put("application/json", new net.jonathangiles.tools.teenyhttpd.json.TeenyJsonMessageConverter());
     }
 
+    /**
+     * Configures the server from the 'server.*' system properties. This happens each time the application starts, so
+     * that properties that are set while it is stopped take effect when it starts again.
+     */
+    private void configure() {
+        server.setVirtualThreads(Boolean.parseBoolean(System.getProperty("server.virtualThreads", "false")));
+        if (System.getProperty("server.maxConnections") != null) {
+            server.setMaxConnections(Integer.parseInt(System.getProperty("server.maxConnections")));
+        }
+        server.setCompressionEnabled(Boolean.parseBoolean(System.getProperty("server.compression", "false")));
+        server.setHttp2Enabled(Boolean.parseBoolean(System.getProperty("server.http2", "false")));
+        if (System.getProperty("server.maxWebSocketMessageSize") != null) {
+            server.setMaxWebSocketMessageSize(Integer.parseInt(System.getProperty("server.maxWebSocketMessageSize")));
+        }
+        if (System.getProperty("server.fileCacheSize") != null) {
+            server.setFileCacheSize(Long.parseLong(System.getProperty("server.fileCacheSize")));
+        }
+        if (System.getProperty("server.keyStore") != null) {
+            server.setSslContext(Tls.loadContext(new File(System.getProperty("server.keyStore")),
+                    System.getProperty("server.keyStorePassword", "").toCharArray()));
+        }
+    }
+
     public TeenyApplication registerMessageConverter(MessageConverter messageConverter) {
         messageConverterMap.put(messageConverter.getContentType(), messageConverter);
         return this;
@@ -108,6 +133,11 @@ public class TeenyApplication {
                     && ServerSentEventHandler.class.isAssignableFrom(method.getReturnType())) {
                 addServerEvent(controller, method);
             }
+
+            if (method.isAnnotationPresent(WebSocket.class)
+                    && WebSocketHandler.class.isAssignableFrom(method.getReturnType())) {
+                addWebSocket(controller, method);
+            }
         }
 
         for (Method method : methods) {
@@ -172,12 +202,32 @@ public class TeenyApplication {
         }
     }
 
+    private void addWebSocket(Object controller, Method method) {
+
+        method.setAccessible(true);
+
+        try {
+            String route = method.getAnnotation(WebSocket.class).value();
+
+            WebSocketHandler result = (WebSocketHandler) method.invoke(controller);
+            server.addWebSocketRoute(route, result);
+
+            Logger.getLogger(TeenyApplication.class.getName()).log(Level.INFO, "Added WebSocket endpoint at route " + route);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void addEndpoint(Object controller, Method method) {
 
         if (File.class.isAssignableFrom(method.getReturnType())) {
             try {
                 method.setAccessible(true);
-                server.addFileRoute(getRoute(controller, method), (File) method.invoke(controller));
+                final File webroot = (File) method.invoke(controller);
+                if (Boolean.getBoolean("server.precompress")) {
+                    server.precompressFiles(webroot);
+                }
+                server.addFileRoute(getRoute(controller, method), webroot);
             } catch (IllegalAccessException | InvocationTargetException e) {
                 Logger.getLogger(TeenyApplication.class.getName()).log(Level.SEVERE, "Error adding file route", e);
             }
@@ -319,6 +369,7 @@ public class TeenyApplication {
             System.out.println("Version: 1.0.0");
         }
 
+        configure();
         server.start();
     }
 }
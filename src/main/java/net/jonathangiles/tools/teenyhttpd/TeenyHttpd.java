@@ -1,35 +1,69 @@
 package net.jonathangiles.tools.teenyhttpd;
 
+import net.jonathangiles.tools.teenyhttpd.implementation.AdmissionControl;
+import net.jonathangiles.tools.teenyhttpd.implementation.BodyBuffer;
+import net.jonathangiles.tools.teenyhttpd.implementation.BufferPool;
+import net.jonathangiles.tools.teenyhttpd.implementation.ClientConnection;
+import net.jonathangiles.tools.teenyhttpd.implementation.CompressingOutputStream;
+import net.jonathangiles.tools.teenyhttpd.implementation.ContentCoding;
+import net.jonathangiles.tools.teenyhttpd.implementation.EmptyResponse;
+import net.jonathangiles.tools.teenyhttpd.implementation.FileCache;
+import net.jonathangiles.tools.teenyhttpd.implementation.Http2Connection;
+import net.jonathangiles.tools.teenyhttpd.implementation.Http2Stream;
+import net.jonathangiles.tools.teenyhttpd.implementation.InvalidRequestBodyException;
 import net.jonathangiles.tools.teenyhttpd.implementation.Main;
+import net.jonathangiles.tools.teenyhttpd.implementation.NioServer;
+import net.jonathangiles.tools.teenyhttpd.implementation.Precompressor;
+import net.jonathangiles.tools.teenyhttpd.implementation.RequestBody;
+import net.jonathangiles.tools.teenyhttpd.implementation.RequestParser;
+import net.jonathangiles.tools.teenyhttpd.implementation.ResponseHead;
+import net.jonathangiles.tools.teenyhttpd.implementation.ResponseOutputStream;
+import net.jonathangiles.tools.teenyhttpd.implementation.Router;
+import net.jonathangiles.tools.teenyhttpd.implementation.SimpleRequest;
+import net.jonathangiles.tools.teenyhttpd.implementation.SocketConnection;
+import net.jonathangiles.tools.teenyhttpd.implementation.StreamedBodyOutputStream;
+import net.jonathangiles.tools.teenyhttpd.implementation.StreamingResponse;
+import net.jonathangiles.tools.teenyhttpd.implementation.Tls;
+import net.jonathangiles.tools.teenyhttpd.implementation.VirtualThreads;
+import net.jonathangiles.tools.teenyhttpd.implementation.WebSocketConnectionImpl;
 import net.jonathangiles.tools.teenyhttpd.model.ContentType;
 import net.jonathangiles.tools.teenyhttpd.model.Header;
 import net.jonathangiles.tools.teenyhttpd.model.Headers;
 import net.jonathangiles.tools.teenyhttpd.model.ServerSentEventHandler;
+import net.jonathangiles.tools.teenyhttpd.implementation.ServerSentEventHandlerImpl;
 import net.jonathangiles.tools.teenyhttpd.implementation.ServerSentEventRequest;
 import net.jonathangiles.tools.teenyhttpd.model.Method;
-import net.jonathangiles.tools.teenyhttpd.model.QueryParams;
 import net.jonathangiles.tools.teenyhttpd.model.Request;
 import net.jonathangiles.tools.teenyhttpd.implementation.FileResponse;
 import net.jonathangiles.tools.teenyhttpd.model.Response;
 import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketHandler;
 import net.jonathangiles.tools.teenyhttpd.implementation.StringResponse;
 
+import javax.net.ssl.SSLContext;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.*;
-import java.time.LocalDateTime;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * The TeenyHttpd server itself - instantiating an instance of this class and calling 'start()' is all that is required
@@ -37,6 +71,14 @@ import java.util.regex.Pattern;
  */
 public class TeenyHttpd {
 
+    // values of the content length given to writeHead() when it is not known
+    private static final long UNKNOWN_LENGTH = -1;
+    private static final long STREAMED_LENGTH = -2;
+
+    // the most of a request body that is read and thrown away, if the handler did not read it, to keep the connection
+    // open. Beyond this, it is cheaper to close the connection.
+    private static final long MAX_DISCARDED_BODY_SIZE = 64 * 1024;
+
     private final int port;
 
     private final Supplier<? extends ExecutorService> executorSupplier;
@@ -45,11 +87,80 @@ public class TeenyHttpd {
 
     private ServerSocket serverSocket;
 
+    private NioServer nioServer;
+
+    private boolean isNonBlocking = false;
+
+    private boolean isVirtualThreads = false;
+
+    private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+
+    private Duration idleTimeout = Duration.ofSeconds(15);
+
+    private int maxRequestsPerConnection = 1000;
+
+    private int maxConnections = Integer.MAX_VALUE;
+
+    private int workerThreads = 0;
+
+    private int workerQueueSize = 0;
+
+    private Duration retryAfter = Duration.ofSeconds(1);
+
+    private Duration shutdownTimeout = Duration.ofSeconds(30);
+
+    private int chunkSize = BufferPool.BUFFER_SIZE;
+
+    private int requestBodyMemoryThreshold = 1024 * 1024;
+
+    private boolean isCompressionEnabled = false;
+
+    private int compressionThreshold = 1024;
+
+    private long maxRequestBodySize = Long.MAX_VALUE;
+
+    private int maxRequestChunkSize = 16 * 1024 * 1024;
+
+    private int maxWebSocketMessageSize = 1024 * 1024;
+
+    private long fileCacheSize = 32 * 1024 * 1024;
+
+    private SSLContext sslContext;
+
+    private int tlsSessionCacheSize = 20480;
+
+    private Duration tlsSessionTimeout = Duration.ofHours(24);
+
+    private boolean isHttp2Enabled = false;
+
+    private AdmissionControl admissionControl;
+
+    // connections served by the blocking transport, so that they can be closed when the server stops
+    private final Set<SocketConnection> openConnections = ConcurrentHashMap.newKeySet();
+
+    // connections that have switched to HTTP/2, so that they can be told to go away when the server stops
+    private final Set<Http2Connection> http2Connections = ConcurrentHashMap.newKeySet();
+
+    // connections that have switched to WebSocket, so that they can be closed when the server stops
+    private final Set<WebSocketConnectionImpl> webSocketConnections = ConcurrentHashMap.newKeySet();
+
     private volatile boolean isRunning = false;
 
     private CountDownLatch startLatch;
 
-    private final Map<Method, List<Route>> routes = new HashMap<>();
+    private Thread serverThread;
+
+    private final Map<Method, Router<Route>> routes = new HashMap<>();
+
+    // the methods that each route path is registered for, so that a request path that has no route for the request
+    // method can be answered with a 405 (and the methods that are allowed) or a 404 with a single lookup
+    private final Router<Set<Method>> pathIndex = new Router<>();
+
+    // so that server-sent event streams can be closed when the server stops
+    private final List<ServerSentEventHandler> sseHandlers = new ArrayList<>();
+
+    // so that the webroots of file routes stop being watched when the server stops
+    private final List<FileCache> fileCaches = new ArrayList<>();
 
     /**
      * Starts a new server instance.
@@ -82,6 +193,310 @@ public class TeenyHttpd {
         this.executorSupplier = executorSupplier;
     }
 
+    /**
+     * Configures whether the server uses the selector-based, non-blocking transport rather than the default
+     * thread-per-connection transport. With the non-blocking transport, a small number of event loop threads accept
+     * and read from all connections, and a thread from the executor is only used once a full request has been read.
+     * This must be called before 'start()'.
+     *
+     * @param nonBlocking true to use the non-blocking transport.
+     */
+    public void setNonBlocking(final boolean nonBlocking) {
+        this.isNonBlocking = nonBlocking;
+    }
+
+    /**
+     * Configures whether requests are handled on virtual threads (one per connection, or per request with the
+     * non-blocking transport), rather than on threads from the executor given to the constructor. This allows blocking
+     * request handlers to scale to a very large number of concurrent connections. Virtual threads require Java 21 or
+     * later - on earlier versions a warning is printed and the executor given to the constructor is used instead. This
+     * must be called before 'start()'.
+     *
+     * @param virtualThreads true to handle requests on virtual threads.
+     */
+    public void setVirtualThreads(final boolean virtualThreads) {
+        this.isVirtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets the number of event loop threads used by the non-blocking transport. By default this is the number of
+     * available processors. This must be called before 'start()', and has no effect unless the non-blocking transport
+     * is enabled via {@link #setNonBlocking(boolean)}.
+     *
+     * @param eventLoopThreads The number of event loop threads, which must be at least one.
+     */
+    public void setEventLoopThreads(final int eventLoopThreads) {
+        if (eventLoopThreads < 1) {
+            throw new IllegalArgumentException("eventLoopThreads must be at least 1");
+        }
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    /**
+     * Sets how long a persistent (keep-alive) connection may sit idle waiting for its next request before the server
+     * closes it. The default is 15 seconds. This must be called before 'start()'.
+     *
+     * @param idleTimeout The idle timeout, which must be positive.
+     */
+    public void setIdleTimeout(final Duration idleTimeout) {
+        if (idleTimeout == null || idleTimeout.isZero() || idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("idleTimeout must be positive");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets the maximum number of requests that will be served on a single persistent connection, after which the
+     * server closes the connection. The default is 1000, and a value of 1 disables persistent connections.
+     *
+     * @param maxRequestsPerConnection The maximum number of requests per connection, which must be at least one.
+     */
+    public void setMaxRequestsPerConnection(final int maxRequestsPerConnection) {
+        if (maxRequestsPerConnection < 1) {
+            throw new IllegalArgumentException("maxRequestsPerConnection must be at least 1");
+        }
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    /**
+     * Sets the maximum number of connections that may be open at once. Connections that are accepted beyond this
+     * limit are sent a '503 Service Unavailable' response and closed straight away. By default there is no limit. This
+     * must be called before 'start()'.
+     *
+     * @param maxConnections The maximum number of open connections, which must be at least one.
+     */
+    public void setMaxConnections(final int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Configures the server to handle requests on a bounded pool of worker threads, in place of the executor given to
+     * the constructor. Once all threads are busy, up to 'queueSize' connections (or requests, with the non-blocking
+     * transport) wait for a thread, and anything beyond that is sent a '503 Service Unavailable' response. Note that
+     * with the default transport, a thread is occupied for as long as a persistent connection stays open. This must be
+     * called before 'start()'.
+     *
+     * @param maxThreads The maximum number of worker threads, which must be at least one.
+     * @param queueSize The maximum number of tasks waiting for a worker thread, which must not be negative.
+     */
+    public void setWorkerThreads(final int maxThreads, final int queueSize) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1");
+        }
+        if (queueSize < 0) {
+            throw new IllegalArgumentException("queueSize must not be negative");
+        }
+        this.workerThreads = maxThreads;
+        this.workerQueueSize = queueSize;
+    }
+
+    /**
+     * Sets the value of the 'Retry-After' header that is sent with '503 Service Unavailable' responses when the server
+     * is at capacity. The default is one second. This must be called before 'start()'.
+     *
+     * @param retryAfter How long clients should wait before retrying, which must not be negative.
+     */
+    public void setRetryAfter(final Duration retryAfter) {
+        if (retryAfter == null || retryAfter.isNegative()) {
+            throw new IllegalArgumentException("retryAfter must not be negative");
+        }
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Sets how long 'stop()' waits for requests that are being served to complete before it closes their connections
+     * regardless. The default is 30 seconds.
+     *
+     * @param shutdownTimeout The shutdown timeout, which must not be negative.
+     */
+    public void setShutdownTimeout(final Duration shutdownTimeout) {
+        if (shutdownTimeout == null || shutdownTimeout.isNegative()) {
+            throw new IllegalArgumentException("shutdownTimeout must not be negative");
+        }
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * Sets the size of the chunks that response bodies of unknown length are sent in, when they are sent with chunked
+     * transfer-encoding. The default is 16KB.
+     *
+     * @param chunkSize The chunk size in bytes, which must be at least one.
+     */
+    public void setChunkSize(final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets how many bytes of a request body may be held in memory when it is read in full (as it is by
+     * {@link Request#getBody()}). Larger bodies are spilled to a temporary file instead. The default is 1MB.
+     *
+     * @param requestBodyMemoryThreshold The threshold in bytes, which must be at least one.
+     */
+    public void setRequestBodyMemoryThreshold(final int requestBodyMemoryThreshold) {
+        if (requestBodyMemoryThreshold < 1) {
+            throw new IllegalArgumentException("requestBodyMemoryThreshold must be at least 1");
+        }
+        this.requestBodyMemoryThreshold = requestBodyMemoryThreshold;
+    }
+
+    /**
+     * Sets how many bytes of files each file route may hold in memory, so that frequently requested files are served
+     * without touching the disk. The least recently requested files are evicted first, and files are evicted as soon
+     * as they change on disk. The default is 32MB, and zero disables the cache. This applies to file routes that are
+     * added after it is called.
+     *
+     * @param fileCacheSize The size of the cache in bytes, which must not be negative.
+     */
+    public void setFileCacheSize(final long fileCacheSize) {
+        if (fileCacheSize < 0) {
+            throw new IllegalArgumentException("fileCacheSize must not be negative");
+        }
+        this.fileCacheSize = fileCacheSize;
+    }
+
+    /**
+     * Configures the server to serve HTTPS rather than HTTP, with the keys and certificates of the given context (see
+     * {@link Tls#loadContext(File, char[])} to load them from a key store). With the non-blocking transport, each
+     * connection is encrypted by an {@link javax.net.ssl.SSLEngine} on the event loop (with the expensive steps of the
+     * handshake run on the executor), and with the default transport by an {@link javax.net.ssl.SSLSocket} on the
+     * connection's own thread. HTTP/1.1 is negotiated with clients that
+     * use ALPN. This must be called before 'start()'.
+     *
+     * @param sslContext The context to encrypt connections with, or null to serve plain HTTP.
+     */
+    public void setSslContext(final SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Sets how many TLS sessions the server remembers, and for how long, so that returning clients can resume their
+     * session with an abbreviated handshake instead of a full key exchange. Clients that support session tickets
+     * resume without the server having to remember anything, as the JDK issues tickets by default. The defaults are
+     * 20480 sessions for 24 hours. This must be called before 'start()', and is applied to the context given to
+     * {@link #setSslContext(SSLContext)}.
+     *
+     * @param sessionCacheSize The most sessions to remember, which must not be negative (zero means no limit).
+     * @param sessionTimeout How long sessions are remembered for, which must be positive.
+     */
+    public void setTlsSessionCache(final int sessionCacheSize, final Duration sessionTimeout) {
+        if (sessionCacheSize < 0) {
+            throw new IllegalArgumentException("sessionCacheSize must not be negative");
+        }
+        if (sessionTimeout == null || sessionTimeout.isZero() || sessionTimeout.isNegative()) {
+            throw new IllegalArgumentException("sessionTimeout must be positive");
+        }
+        this.tlsSessionCacheSize = sessionCacheSize;
+        this.tlsSessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * Sets whether clients may speak HTTP/2 over plain HTTP connections (h2c), either by starting the connection with
+     * the HTTP/2 preface, if they know that the server speaks it, or by asking to upgrade an HTTP/1.1 request with an
+     * 'Upgrade: h2c' header. Over HTTP/2, all of a client's requests share a single connection, and are served
+     * concurrently on threads from the executor, so that a slow response does not hold up the others. Note that with a
+     * bounded pool of worker threads (see {@link #setWorkerThreads(int, int)}), requests beyond its capacity are refused,
+     * for the client to retry. HTTP/2 is disabled by default. This must be called before 'start()'.
+     *
+     * @param http2Enabled true to serve HTTP/2.
+     */
+    public void setHttp2Enabled(final boolean http2Enabled) {
+        this.isHttp2Enabled = http2Enabled;
+    }
+
+    /**
+     * Sets whether response bodies are compressed (with gzip or deflate) for clients that accept it. Only bodies of
+     * text-based content types (such as HTML, CSS, JavaScript, JSON and XML) that are at least as large as the
+     * compression threshold are compressed. Compression is disabled by default.
+     *
+     * @param compressionEnabled True to compress responses.
+     */
+    public void setCompressionEnabled(final boolean compressionEnabled) {
+        this.isCompressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Sets the size that a response body must reach for it to be compressed, when compression is enabled. The default
+     * is 1KB, as compressing smaller bodies saves little.
+     *
+     * @param compressionThreshold The threshold in bytes, which must not be negative.
+     */
+    public void setCompressionThreshold(final int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compressionThreshold must not be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Sets the largest request body that is accepted, whether it is sent with a 'Content-Length' or in chunks. Requests
+     * with larger bodies are sent a '413 Request Entity Too Large' response. By default there is no limit.
+     *
+     * @param maxRequestBodySize The maximum size in bytes, which must not be negative.
+     */
+    public void setMaxRequestBodySize(final long maxRequestBodySize) {
+        if (maxRequestBodySize < 0) {
+            throw new IllegalArgumentException("maxRequestBodySize must not be negative");
+        }
+        this.maxRequestBodySize = maxRequestBodySize;
+    }
+
+    /**
+     * Sets the largest chunk that is accepted in a request body that is sent with chunked transfer-encoding. Requests
+     * with larger chunks are sent a '413 Request Entity Too Large' response. The default is 16MB.
+     *
+     * @param maxRequestChunkSize The maximum size in bytes, which must be at least one.
+     */
+    public void setMaxRequestChunkSize(final int maxRequestChunkSize) {
+        if (maxRequestChunkSize < 1) {
+            throw new IllegalArgumentException("maxRequestChunkSize must be at least 1");
+        }
+        this.maxRequestChunkSize = maxRequestChunkSize;
+    }
+
+    /**
+     * Sets the largest message that is accepted on a WebSocket connection, once its fragments have been put back
+     * together. A client that sends a larger message has its connection closed. The default is 1MB.
+     *
+     * @param maxWebSocketMessageSize The maximum size in bytes, which must be at least one.
+     */
+    public void setMaxWebSocketMessageSize(final int maxWebSocketMessageSize) {
+        if (maxWebSocketMessageSize < 1) {
+            throw new IllegalArgumentException("maxWebSocketMessageSize must be at least 1");
+        }
+        this.maxWebSocketMessageSize = maxWebSocketMessageSize;
+    }
+
+    /**
+     * Returns the number of connections that are currently open.
+     */
+    public int getOpenConnectionCount() {
+        return admissionControl == null ? 0 : admissionControl.getOpenConnections();
+    }
+
+    /**
+     * Returns the number of connections and requests that have been turned away with a '503 Service Unavailable'
+     * response since the server started, because the server was at capacity.
+     */
+    public long getRejectedCount() {
+        return admissionControl == null ? 0 : admissionControl.getRejections();
+    }
+
+    /**
+     * Returns the number of connections (or requests, with the non-blocking transport) that are waiting for a worker
+     * thread, if the executor is a {@link ThreadPoolExecutor} (as it is when {@link #setWorkerThreads(int, int)} is
+     * used), or zero otherwise.
+     */
+    public int getQueuedRequestCount() {
+        final ExecutorService executor = executorService;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
     public void addGetRoute(final String path, final Function<Request, Response> handler) {
         addRoute(Method.GET, path, handler);
     }
@@ -103,16 +518,38 @@ public class TeenyHttpd {
             path += "/";
         }
 
+        final FileCache cache = fileCacheSize > 0 ? new FileCache(webroot, fileCacheSize) : null;
+        if (cache != null) {
+            fileCaches.add(cache);
+        }
+
         // change the path so that all text beyond the given path is treated as a regex named parameter called filePath
-        _addRoute(Method.GET, path + "(?<filePath>.*)", request -> new FileResponse(request) {
+        _addRoute(Method.GET, path + "(?<filePath>.*)", request -> new FileResponse(request, cache) {
             @Override protected File getFile(final String filename) {
                 return new File(webroot, filename);
             }
         });
     }
 
+    /**
+     * Writes a gzip-compressed variant next to each compressible file under the webroot that is at least as large as
+     * the compression threshold. File routes send these variants to clients that accept gzip, rather than the files
+     * being compressed on every request (or not at all). Variants that are newer than their files are kept, so calling
+     * this at each startup only compresses the files that have changed.
+     *
+     * @param webroot The directory to precompress the files of.
+     * @return The number of variants that were written.
+     */
+    public int precompressFiles(final File webroot) {
+        try {
+            return Precompressor.precompress(webroot.toPath(), compressionThreshold);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     public void addServerSentEventRoute(String path, ServerSentEventHandler sse) {
-        Route sseRoute = new Route(Method.GET, new RequestPath(path), request -> {
+        Route sseRoute = new Route(Method.GET, path, request -> {
             Response response = StatusCode.OK.asResponse();
             response.setHeader(Headers.CONTENT_TYPE.asHeader(ContentType.EVENT_STREAM.getHeaderValue()));
             response.setHeader(Headers.CACHE_CONTROL.asHeader("no-cache"));
@@ -123,24 +560,46 @@ public class TeenyHttpd {
         sseRoute.setServerSentEventRoute(true);
         sseRoute.setSseHandler(sse);
         _addRoute(sseRoute);
+        sseHandlers.add(sse);
+    }
+
+    /**
+     * Adds a WebSocket endpoint at the given path. Clients open a connection to it with an HTTP/1.1 'GET' request that
+     * asks to upgrade to the WebSocket protocol, and other requests for the path are sent a '426 Upgrade Required'
+     * response. Each connection is read on a thread of its own for as long as it stays open, and messages are passed
+     * to the handler on that thread.
+     *
+     * @param path The path of the endpoint, which may include path params.
+     * @param handler The handler that is told of each connection, and of each message that its client sends.
+     */
+    public void addWebSocketRoute(final String path, final WebSocketHandler handler) {
+        Route webSocketRoute = new Route(Method.GET, path, request -> {
+            Response response = StatusCode.UPGRADE_REQUIRED.asResponse();
+            response.setHeader(Headers.UPGRADE.asHeader("websocket"));
+            response.setHeader(Headers.SEC_WEBSOCKET_VERSION.asHeader("13"));
+            return response;
+        });
+        webSocketRoute.setWebSocketHandler(handler);
+        _addRoute(webSocketRoute);
     }
 
     private void _addRoute(final Method method, final String path, final Function<Request, Response> handler) {
-        _addRoute(new Route(method, new RequestPath(path), handler));
+        _addRoute(new Route(method, path, handler));
     }
 
     private void _addRoute(final Route route) {
-        routes.computeIfAbsent(route.method, k -> new ArrayList<>()).add(route);
+        routes.computeIfAbsent(route.method, k -> new Router<>()).add(route.path, route);
+        pathIndex.add(route.path, EnumSet.noneOf(Method.class)).add(route.method);
     }
 
     /**
      * Starts the server instance.
      */
     public void start() {
-        Thread serverThread = new Thread(this::startServer);
+        startLatch = new CountDownLatch(1);
+        serverThread = new Thread(this::startServer);
         serverThread.start();
         try {
-            startLatch = new CountDownLatch(1);
             startLatch.await();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
@@ -149,11 +608,61 @@ public class TeenyHttpd {
 
     private void startServer() {
         System.out.println("TeenyHttp server started.\nListening for connections on port : " + port);
-        executorService = executorSupplier.get();
+        executorService = createExecutorService();
+        admissionControl = new AdmissionControl(maxConnections, retryAfter.getSeconds());
+        if (sslContext != null) {
+            Tls.configureSessionCache(sslContext, tlsSessionCacheSize, tlsSessionTimeout);
+        }
+
+        if (isNonBlocking) {
+            startNioServer();
+        } else {
+            startBlockingServer();
+        }
+    }
+
+    private ExecutorService createExecutorService() {
+        if (isVirtualThreads) {
+            if (VirtualThreads.isSupported()) {
+                return VirtualThreads.newVirtualThreadPerTaskExecutor();
+            }
+            System.err.println("Virtual threads require Java 21 or later, so they will not be used");
+        } else if (workerThreads > 0) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(workerThreads, workerThreads,
+                    60, TimeUnit.SECONDS,
+                    workerQueueSize == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(workerQueueSize),
+                    task -> new Thread(task, "TeenyHttpd-Worker-" + threadCount.incrementAndGet()));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+        return executorSupplier.get();
+    }
+
+    private void startNioServer() {
+        nioServer = new NioServer(port, eventLoopThreads, (int) idleTimeout.toMillis(), executorService,
+                admissionControl, sslContext, this::handleIncomingRequest);
 
         try {
-            serverSocket = new ServerSocket(port);
+            nioServer.bind();
         } catch (IOException e) {
+            startLatch.countDown();
+            throw new RuntimeException(e);
+        }
+
+        isRunning = true;
+        startLatch.countDown();
+        nioServer.run();
+    }
+
+    private void startBlockingServer() {
+        try {
+            // the socket is opened through a channel so that files can be transferred to accepted sockets without
+            // being copied through the JVM
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            startLatch.countDown();
             throw new RuntimeException(e);
         }
 
@@ -162,8 +671,36 @@ public class TeenyHttpd {
             startLatch.countDown();
             while (isRunning) {
                 try {
-                    final Socket clientSocket = serverSocket.accept();
-                    executorService.execute(() -> handleIncomingRequest(clientSocket));
+                    Socket clientSocket = serverSocket.accept();
+                    if (!admissionControl.tryOpenConnection()) {
+                        reject(clientSocket);
+                        continue;
+                    }
+                    if (sslContext != null) {
+                        try {
+                            clientSocket = Tls.wrap(sslContext, clientSocket);
+                        } catch (IOException e) {
+                            reject(clientSocket);
+                            admissionControl.onConnectionClosed();
+                            continue;
+                        }
+                    }
+
+                    final SocketConnection clientConnection = new SocketConnection(clientSocket,
+                            (int) idleTimeout.toMillis(), connection -> {
+                                openConnections.remove(connection);
+                                admissionControl.onConnectionClosed();
+                            });
+                    openConnections.add(clientConnection);
+                    try {
+                        executorService.execute(() -> handleIncomingRequest(clientConnection));
+                    } catch (RejectedExecutionException e) {
+                        try {
+                            reject(clientSocket);
+                        } finally {
+                            clientConnection.close();
+                        }
+                    }
                 } catch (SocketTimeoutException e) {
                     System.err.println(e.getMessage());
                 }
@@ -174,358 +711,930 @@ public class TeenyHttpd {
             } else {
                 // handle other socket exception
             }
+        } catch (ClosedChannelException e) {
+            // the server socket is channel-backed, so closing it in stop() fails the pending accept with an
+            // AsynchronousCloseException, rather than a SocketException
         } catch (IOException e) {
             System.err.println("Server Connection error : " + e.getMessage());
         }
     }
 
     /**
-     * Requests that the server instance stop serving requests.
+     * Sends the pre-encoded '503 Service Unavailable' response to a client that the server does not have capacity for,
+     * and closes the connection. This happens on the accept thread, but a new connection has an empty send buffer, so
+     * the write does not block.
+     */
+    private void reject(final Socket clientSocket) {
+        try {
+            // an encrypted connection is closed without a response, as it would take a handshake to send it
+            if (sslContext == null) {
+                clientSocket.getOutputStream().write(admissionControl.reject());
+                clientSocket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            // the client has gone away already
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Requests that the server instance stop serving requests. The server stops accepting connections straight away,
+     * and closes connections that are waiting for a request, as well as all server-sent event streams. Requests that
+     * are being served are allowed to complete (with their responses telling the client that the connection will be
+     * closed) for up to the shutdown timeout set with {@link #setShutdownTimeout(Duration)}, after which their
+     * connections are closed regardless. This method returns once the server has stopped.
      */
     public void stop() {
+        final long deadline = System.nanoTime() + shutdownTimeout.toNanos();
         isRunning = false;
 
         try {
+            // stop accepting connections, and close those that are not in the middle of a request
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            if (nioServer != null) {
+                nioServer.drain();
+            }
+            for (SocketConnection clientConnection : openConnections) {
+                if (clientConnection.isIdle()) {
+                    clientConnection.close();
+                }
+            }
+            for (ServerSentEventHandler sse : sseHandlers) {
+                if (sse instanceof ServerSentEventHandlerImpl) {
+                    ((ServerSentEventHandlerImpl) sse).closeAll();
+                }
+            }
+            for (Http2Connection connection : http2Connections) {
+                connection.shutdown();
+            }
+            for (WebSocketConnectionImpl connection : webSocketConnections) {
+                connection.shutdown();
+            }
+            for (FileCache cache : fileCaches) {
+                cache.close();
+            }
+
+            // a closed server socket is only released once the accept thread has noticed, so we wait for it
+            if (serverThread != null) {
+                serverThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+
+            // every connection that is still open is serving a request, and will close once it has been served
+            while (admissionControl != null && admissionControl.getOpenConnections() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+
+            if (nioServer != null) {
+                nioServer.close();
+            }
+            for (SocketConnection clientConnection : openConnections) {
+                clientConnection.close();
+            }
+
+            if (executorService != null) {
+                executorService.shutdown();
+                if (!executorService.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    executorService.shutdownNow();
+                }
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
 
-//        executorService.close();
-//        try {
-//            executorService.awaitTermination(1, TimeUnit.SECONDS);
-//        } catch (InterruptedException e) {
-//            throw new RuntimeException(e);
-//        }
         System.out.println("TeenyHttp server stopped.");
     }
 
-    private final Pattern numberPattern = Pattern.compile("\\d+");
 
-    private void handleIncomingRequest(final Socket clientSocket) {
-        boolean isLongRunningConnection = false;
+    private void handleIncomingRequest(final ClientConnection clientConnection) {
+        boolean closeConnection = true;
+        ResponseOutputStream out = null;
 
-        BufferedReader in = null;
         try {
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            out = new ResponseOutputStream(clientConnection.getOutputStream());
 
-            // get first line of the request from the client
-            final String input = in.readLine();
-            if (input == null) {
-                return;
+            // keep serving requests from this connection for as long as both the client and the server want to
+            while (true) {
+                final ConnectionState state = handleRequest(clientConnection, out);
+                if (state == ConnectionState.LONG_RUNNING) {
+                    clientConnection.setLongRunning();
+                    closeConnection = false;
+                    break;
+                } else if (state == ConnectionState.CLOSE) {
+                    break;
+                }
+
+                // if the client has pipelined further requests, we serve them before flushing, so that all of the
+                // responses are sent to the client together
+                if (clientConnection.prepareNextRequest()) {
+                    continue;
+                }
+
+                out.flushToClient();
+                if (!clientConnection.awaitNextRequest()) {
+                    // the transport will hand the connection back to us once the next request has arrived
+                    closeConnection = false;
+                    break;
+                } else if (!isRunning) {
+                    // the server has started to stop since the response was written, so we don't wait for another
+                    // request
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the client did not send a request within the idle timeout, so we close the connection
+        } catch (IOException e) {
+            // connections are expected to be closed from under us when the server stops
+            if (isRunning) {
+                System.err.println("Server error 2 : " + e);
+            }
+        } finally {
+            if (closeConnection) {
+                try {
+                    if (out != null) {
+                        out.flushToClient();
+                    }
+                } catch (IOException e) {
+                    // the client has gone away, so there is no one to send the response to
+                } finally {
+                    try {
+                        clientConnection.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    private ConnectionState handleRequest(final ClientConnection clientConnection,
+                                          final ResponseOutputStream out) throws IOException {
+        // read and parse the request line and all request headers. The headers are not turned into Header instances
+        // until they are asked for.
+        final RequestParser parser = clientConnection.readRequestHead();
+        if (parser == null) {
+            return ConnectionState.CLOSE;
+        } else if (parser.isHttp2Preface()) {
+            if (!isHttp2Enabled || sslContext != null) {
+                sendStatusCode(out, StatusCode.NOT_IMPLEMENTED, false);
+                return ConnectionState.CLOSE;
+            }
+            // the client knows that we speak HTTP/2, and the rest of the connection is HTTP/2 frames
+            out.flushToClient();
+            final Http2Connection connection = openHttp2Connection(clientConnection);
+            try {
+                connection.serve();
+            } finally {
+                http2Connections.remove(connection);
+            }
+            return ConnectionState.CLOSE;
+        } else if (parser.getError() != null) {
+            sendStatusCode(out, parser.getError(), false);
+            return ConnectionState.CLOSE;
+        } else if (parser.hasTransferEncoding() && !parser.isChunked()) {
+            // we can't tell where a request body with any other transfer coding ends, so we can't read any further
+            // requests
+            sendStatusCode(out, StatusCode.NOT_IMPLEMENTED, false);
+            return ConnectionState.CLOSE;
+        } else if (parser.getContentLength() > maxRequestBodySize) {
+            sendStatusCode(out, StatusCode.REQUEST_ENTITY_TOO_LARGE, false);
+            return ConnectionState.CLOSE;
+        }
+
+        final byte[] http2Settings = getHttp2UpgradeSettings(parser);
+        if (http2Settings != null) {
+            // the request is answered over HTTP/2, once the client has been told that the connection is switching
+            ResponseHead.writeStatusLine(out, StatusCode.SWITCHING_PROTOCOLS);
+            ResponseHead.writeHeader(out, Headers.CONNECTION.asHeader("Upgrade"));
+            ResponseHead.writeHeader(out, Headers.UPGRADE.asHeader("h2c"));
+            ResponseHead.writeEnd(out);
+            out.flushToClient();
+
+            final Http2Connection connection = openHttp2Connection(clientConnection);
+            try {
+                connection.serveUpgrade(http2Settings, parser.getMethod(), parser.getPath(), parser.getQueryParams(),
+                        parser.getHeaders());
+            } finally {
+                http2Connections.remove(connection);
             }
+            return ConnectionState.CLOSE;
+        }
 
-            // we parse the request line - https://www.w3.org/Protocols/rfc2616/rfc2616-sec5.html
-            // For now we do not care about the HTTP Version
-            final StringTokenizer parse = new StringTokenizer(input);
+        final Method method = parser.getMethod();
+
+        // The body is only read from the connection if the route asks for it (and a chunked body is only decoded as it
+        // is read). Whatever is left of it once the request has been served is discarded, as otherwise it would be
+        // mistaken for the next request on a persistent connection.
+        final long contentLength = parser.getContentLength();
+        final RequestBody body;
+        if (parser.isChunked()) {
+            body = RequestBody.chunked(clientConnection.getInputStream(), maxRequestChunkSize, maxRequestBodySize,
+                    requestBodyMemoryThreshold);
+        } else if (contentLength > 0) {
+            body = RequestBody.withLength(clientConnection.getInputStream(), contentLength, requestBodyMemoryThreshold);
+        } else {
+            body = null;
+        }
+        try {
+            final Exchange exchange = new Exchange(method,
+                    isKeepAlive(parser, clientConnection.getRequestCount()),
+                    parser.isHttp10(),
+                    body,
+                    isCompressionEnabled ? parser.getHeaderValue(Headers.ACCEPT_ENCODING.getKey()) : null);
+            return routeRequest(clientConnection, out, parser, exchange);
+        } catch (UncheckedIOException e) {
+            // the request body could not be read, which means the connection is no longer usable. If that is because
+            // the body was malformed or too large, the client is told so.
+            if (e.getCause() instanceof InvalidRequestBodyException) {
+                sendStatusCode(out, ((InvalidRequestBodyException) e.getCause()).getStatusCode(), false);
+                return ConnectionState.CLOSE;
+            }
+            throw e.getCause();
+        } finally {
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
 
-            // the HTTP Method
-            final Method method = Method.valueOf(parse.nextToken().toUpperCase());
+    private ConnectionState routeRequest(final ClientConnection clientConnection,
+                                         final ResponseOutputStream out,
+                                         final RequestParser parser,
+                                         final Exchange exchange) throws IOException {
+        final String path = parser.getPath();
+        final Router.Match<Route> match = findRoute(exchange.method, path);
+        if (match == null) {
+            final Response notAllowed = methodNotAllowed(path);
+            return notAllowed == null
+                    ? sendStatusCode(out, StatusCode.NOT_FOUND, exchange)
+                    : sendResponse(out, notAllowed, exchange);
+        }
 
-            // Get the map for the method from the incoming request
-            List<Route> methodRoutes = routes.get(method);
+        final Route route = match.getValue();
+        final Request request = new SimpleRequest(exchange.method, path, parser.getQueryParams(), parser.getHeaders(),
+                match.getPathParams(), exchange.requestBody);
+
+        // This is where we actually call the callback that the user has provided for the given route.
+        // Check if the response should be a streaming type based on the request headers
+        if (route.isServerSentEventRoute() && exchange.method != Method.HEAD) {
+            // we have a request for a server-sent event, so we need to create a new ServerSentEvent instance
+            // and pass the request.
+            ServerSentEventRequest sseRequest = new ServerSentEventRequest(request, clientConnection);
+
+            // send the standard SSE-related headers first, along with any responses to earlier pipelined requests,
+            // as events are written straight to the client
+            final Response response = route.handler.apply(sseRequest);
+            writeResponse(out, response.getStatusCode(), response, null);
+            out.flushToClient();
+
+            // now start the SSE connection
+            route.getSseHandler().onConnect(sseRequest);
+            return ConnectionState.LONG_RUNNING;
+        } else if (route.getWebSocketHandler() != null && isWebSocketUpgrade(parser)) {
+            return upgradeToWebSocket(clientConnection, out, parser, request, route.getWebSocketHandler());
+        } else {
+            // we have a normal request, so we call the route
+            return sendResponse(out, route.handler.apply(request), exchange);
+        }
+    }
 
-            // we get request-uri requested. For now we assume it is an absolute path
-            final String requestUri = parse.nextToken();
+    /**
+     * Returns the route that the request is for, along with the path params that were captured from its path, or null
+     * if there is no route for the path with the request method.
+     */
+    private Router.Match<Route> findRoute(final Method method, final String path) {
+        // the request path is a full path, which may include path params within the path (e.g. ':id'), or extra path
+        // information that comes after the root path (e.g. the root path may be '/', but we the path may be '/index.html').
+        // We need to determine the best route to call based on the given full path, and then pass the request to that route,
+        // along with the path params that were captured from the path while matching it.
+        final Router<Route> methodRoutes = routes.get(method);
+        Router.Match<Route> match = methodRoutes == null ? null : methodRoutes.find(path);
+        if (match == null && method == Method.HEAD && routes.containsKey(Method.GET)) {
+            // a HEAD request without a route of its own is answered by the GET route, and the body that it would have
+            // sent is left out when the response is written
+            match = routes.get(Method.GET).find(path);
+        }
+        return match;
+    }
 
-            // split it at the query param, if it exists
-            final String path;
-            final QueryParams queryParams;
-            if (requestUri.contains("?")) {
-                final String[] uriSplit = requestUri.split("\\?", 2);
-                path = uriSplit[0];
+    /**
+     * Returns the '405 Method Not Allowed' response, listing the methods that the path does have routes for, for a
+     * request that has no route with its own method - or null if the path has no routes at all (and so is not found).
+     */
+    private Response methodNotAllowed(final String path) {
+        final Set<Method> allowedMethods = EnumSet.noneOf(Method.class);
+        pathIndex.findAll(path).forEach(allowedMethods::addAll);
+        if (allowedMethods.contains(Method.GET)) {
+            allowedMethods.add(Method.HEAD);
+        }
+        if (allowedMethods.isEmpty()) {
+            return null;
+        }
 
-                // create a lazily-evaluated object to represent the query parameters
-                queryParams = new QueryParams(uriSplit[1]);
-            } else {
-                path = requestUri;
-                queryParams = QueryParams.EMPTY;
-            }
-
-            if (methodRoutes == null) {
-                // we do not support this route on the given method, but we don't know if we support it on any other
-                // methods. We need to check if we support it on any other methods, and if so, we need to return a
-                // 405. If we don't support it on any other methods, we need to return a 404.
-                boolean isSupportedOnOtherMethods = routes.values().stream()
-                        .flatMap(Collection::stream)
-                        .anyMatch(p -> p.routePath.path.equals(path));
-
-                if (isSupportedOnOtherMethods) {
-                    // we support this path on at least one other method, so we return a 405
-                    sendStatusCode(clientSocket, StatusCode.METHOD_NOT_ALLOWED);
-                } else {
-                    // we don't support this path on any method, so we return a 404
-                    sendStatusCode(clientSocket, StatusCode.NOT_FOUND);
-                }
-                return;
+        final Response response = StatusCode.METHOD_NOT_ALLOWED.asResponse();
+        response.setHeader(Headers.ALLOW.asHeader(allowedMethods.stream()
+                .map(Enum::name)
+                .collect(Collectors.joining(", "))));
+        return response;
+    }
+
+    /**
+     * Returns true if the request asks to upgrade the connection to the WebSocket protocol, with the version of it that
+     * we speak. Requests that ask for another version are answered by the route, which says which version we speak.
+     */
+    private boolean isWebSocketUpgrade(final RequestParser parser) {
+        if (parser.getMethod() != Method.GET || parser.isHttp10() || !parser.hasConnectionOption("upgrade")
+                || !"13".equals(parser.getHeaderValue(Headers.SEC_WEBSOCKET_VERSION.getKey()))) {
+            return false;
+        }
+        final String upgrade = parser.getHeaderValue(Headers.UPGRADE.getKey());
+        if (upgrade == null) {
+            return false;
+        }
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("websocket")) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // read (but not parse) all request headers and put them into the request.
-            // They will be parsed on-demand.
-            String line;
-            List<Header> headers = new ArrayList<>();
-            int contentLength = -1;
-            while (true) {
-                line = in.readLine();
-                if (line == null || line.isEmpty() || "\r\n".equals(line)) {
-                    break;
-                }
+    /**
+     * Switches the connection to the WebSocket protocol (RFC 6455, section 4.2), and serves it on this thread until it
+     * closes.
+     */
+    private ConnectionState upgradeToWebSocket(final ClientConnection clientConnection,
+                                               final ResponseOutputStream out,
+                                               final RequestParser parser,
+                                               final Request request,
+                                               final WebSocketHandler handler) throws IOException {
+        final String acceptKey = WebSocketConnectionImpl.getAcceptKey(
+                parser.getHeaderValue(Headers.SEC_WEBSOCKET_KEY.getKey()));
+        if (acceptKey == null || parser.getContentLength() > 0 || parser.hasTransferEncoding()) {
+            sendStatusCode(out, StatusCode.BAD_REQUEST, false);
+            return ConnectionState.CLOSE;
+        }
 
-                Header header = new Header(line);
-                headers.add(header);
+        ResponseHead.writeStatusLine(out, StatusCode.SWITCHING_PROTOCOLS);
+        ResponseHead.writeHeader(out, Headers.CONNECTION.asHeader("Upgrade"));
+        ResponseHead.writeHeader(out, Headers.UPGRADE.asHeader("websocket"));
+        ResponseHead.writeHeader(out, Headers.SEC_WEBSOCKET_ACCEPT.asHeader(acceptKey));
+        ResponseHead.writeEnd(out);
+        out.flushToClient();
+
+        clientConnection.setUpgraded();
+        final WebSocketConnectionImpl connection = new WebSocketConnectionImpl(clientConnection, request, handler,
+                maxWebSocketMessageSize);
+        webSocketConnections.add(connection);
+        if (!isRunning) {
+            // the server started to stop after it looked for connections to close
+            connection.shutdown();
+        }
+        try {
+            connection.serve();
+        } finally {
+            webSocketConnections.remove(connection);
+        }
+        return ConnectionState.CLOSE;
+    }
 
-                if ((method == Method.POST || method == Method.PUT || method == Method.PATCH)
-                        && (line.startsWith("Content-Length") || line.startsWith("content-length"))
-                        && numberPattern.matcher(header.getFirstValue()).matches()) {
-                    contentLength = Integer.parseInt(header.getValues().get(0));
-                }
+    /**
+     * Returns the decoded settings of a request that asks to upgrade the connection to HTTP/2 (RFC 7540, section 3.2),
+     * or null if the connection should stay as it is. Only requests without a body are upgraded, so that the body does
+     * not have to be read before the connection switches.
+     */
+    private byte[] getHttp2UpgradeSettings(final RequestParser parser) {
+        if (!isHttp2Enabled || sslContext != null || parser.isHttp10()
+                || parser.getContentLength() > 0 || parser.hasTransferEncoding()
+                || !parser.hasConnectionOption("upgrade") || !parser.hasConnectionOption("http2-settings")) {
+            return null;
+        }
+        final String upgrade = parser.getHeaderValue(Headers.UPGRADE.getKey());
+        final String settings = parser.getHeaderValue(Headers.HTTP2_SETTINGS.getKey());
+        if (upgrade == null || settings == null) {
+            return null;
+        }
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("h2c")) {
+                return Http2Connection.decodeSettings(settings);
             }
+        }
+        return null;
+    }
 
-            String body = null;
-            if (contentLength > 0) {
-                char[] bodyChars = new char[contentLength];
-                in.read(bodyChars, 0, contentLength);
-                body = new String(bodyChars);
-            }
-
-            // the request path is a full path, which may include path params within the path (e.g. ':id'), or extra path
-            // information that comes after the root path (e.g. the root path may be '/', but we the path may be '/index.html').
-            // We need to determine the best route to call based on the given full path, and then pass the request to that route.
-            Optional<Route> route = methodRoutes.stream()
-                .filter(r -> {
-                    // compare the regex path to the request path, and check if they match
-                    return r.routePath.getRegex().matcher(path).matches();
-                }).findFirst();
-
-            final Response response;
-            Map<String, String> pathParamsMap = null;
-            if (route.isPresent()) {
-                // we have a route, so we call it, but first we need to parse the path params and set them in the
-                // request
-                final RequestPath requestPath = route.get().routePath;
-                final Matcher matcher = requestPath.getRegex().matcher(path);
-                if (matcher.matches()) {
-                    // we have a match, so we need to parse the path params and set them in the request
-                    pathParamsMap = new HashMap<>();
-                    final List<String> pathParams = requestPath.getPathParams();
-                    for (int i = 0; i < pathParams.size(); i++) {
-                        pathParamsMap.put(pathParams.get(i), URLDecoder.decode(matcher.group(i + 1), "UTF-8"));
-                    }
-                }
+    private Http2Connection openHttp2Connection(final ClientConnection clientConnection) throws IOException {
+        clientConnection.setUpgraded();
+        final Http2Connection connection = new Http2Connection(clientConnection, executorService,
+                this::handleHttp2Stream, maxRequestBodySize);
+        http2Connections.add(connection);
+        if (!isRunning) {
+            // the server started to stop after it looked for connections to shut down
+            connection.shutdown();
+        }
+        return connection;
+    }
+
+    /**
+     * Serves a request that was received on an HTTP/2 connection, on a thread of its own.
+     */
+    private void handleHttp2Stream(final Http2Stream stream) {
+        RequestBody body = null;
+        try {
+            if (stream.getError() != null) {
+                writeHttp2Response(stream, stream.getError(), null, null);
+                return;
+            } else if (stream.getContentLength() > maxRequestBodySize) {
+                writeHttp2Response(stream, StatusCode.REQUEST_ENTITY_TOO_LARGE, null, null);
+                return;
+            }
 
-                final Request request = Request.create(method, path, queryParams, headers, pathParamsMap, body);
-
-                // This is where we actually call the callback that the user has provided for the given route.
-                // Check if the response should be a streaming type based on the request headers
-                if (route.get().isServerSentEventRoute()) {
-                    // we have a request for a server-sent event, so we need to create a new ServerSentEvent instance
-                    // and pass the request
-                    isLongRunningConnection = true;
-                    ServerSentEventRequest sseRequest = new ServerSentEventRequest(request, clientSocket);
-
-                    // send the standard SSE-related headers first
-                    response = route.get().handler.apply(sseRequest);
-                    sendResponse(sseRequest.getWriter(), null, response.getStatusCode(), response);
-
-                    // now start the SSE connection
-                    route.get().getSseHandler().onConnect(sseRequest);
-                } else {
-                    // we have a normal request, so we call the route
-                    response = route.get().handler.apply(request);
-                    sendResponse(clientSocket, response);
+            if (stream.hasBody()) {
+                body = RequestBody.delimited(stream.getInputStream(), stream.getContentLength(),
+                        requestBodyMemoryThreshold);
+            }
+            final Exchange exchange = new Exchange(stream.getMethod(), true, false, body,
+                    isCompressionEnabled ? stream.getHeaderValue(Headers.ACCEPT_ENCODING.getKey()) : null);
+            routeHttp2Request(stream, exchange);
+        } catch (UncheckedIOException e) {
+            // the request body could not be read, and if that is because it was too large, the client is told so
+            if (e.getCause() instanceof InvalidRequestBodyException && !stream.isResponseStarted()) {
+                try {
+                    writeHttp2Response(stream, ((InvalidRequestBodyException) e.getCause()).getStatusCode(), null, null);
+                } catch (IOException ioe) {
+                    stream.reset();
                 }
             } else {
-                System.out.println("No route found for " + path + " on method " + method);
-                System.out.println("  - Available routes are:");
-                methodRoutes.forEach(rp -> System.out.println("    - " + rp.routePath));
-                response = StatusCode.NOT_FOUND.asResponse();
-                sendResponse(clientSocket, response);
+                stream.reset();
             }
         } catch (IOException e) {
-            System.err.println("Server error 2 : " + e);
+            // the client has reset the stream, or gone away
+            stream.reset();
+        } catch (RuntimeException e) {
+            // the handler failed, which only fails this stream, rather than the connection
+            stream.reset();
+            throw e;
         } finally {
-            try {
-                if (!isLongRunningConnection) {
-                    if (in != null) {
-                        in.close();
-                    }
-                    clientSocket.close();
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // ignore
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
     }
 
-    private void sendStatusCode(Socket clientSocket, StatusCode statusCode) {
-        sendResponse(clientSocket, statusCode, null);
+    private void routeHttp2Request(final Http2Stream stream, final Exchange exchange) throws IOException {
+        final String path = stream.getPath();
+        final Router.Match<Route> match = findRoute(exchange.method, path);
+        if (match == null) {
+            final Response notAllowed = methodNotAllowed(path);
+            writeHttp2Response(stream, notAllowed == null ? StatusCode.NOT_FOUND : null, notAllowed, exchange);
+            return;
+        }
+
+        final Route route = match.getValue();
+        final Request request = new SimpleRequest(exchange.method, path, stream.getQueryParams(), stream.getHeaders(),
+                match.getPathParams(), exchange.requestBody);
+
+        if (route.isServerSentEventRoute() && exchange.method != Method.HEAD) {
+            // events are written to the stream as they are sent, which stays open (along with the connection) until
+            // the event stream is closed
+            final Response response = route.handler.apply(request);
+            final OutputStream events = stream.getOutputStream(response.getStatusCode(), getSentHeaders(response, false, null));
+            events.flush();
+            final ServerSentEventRequest sseRequest = new ServerSentEventRequest(request, events, () -> { });
+            route.getSseHandler().onConnect(sseRequest);
+        } else {
+            writeHttp2Response(stream, null, route.handler.apply(request), exchange);
+        }
     }
 
-    private void sendResponse(Socket clientSocket, Response response) {
-        sendResponse(clientSocket, null, response);
+    /**
+     * Writes the response to an HTTP/2 stream. The end of the stream marks the end of the body, so, unlike over
+     * HTTP/1.1, a body of unknown length is never collected or chunked. A compressed body is sent without a length.
+     */
+    private void writeHttp2Response(final Http2Stream stream, final StatusCode statusCode, final Response response,
+                                    final Exchange exchange) throws IOException {
+        final StatusCode status = statusCode == null ? response.getStatusCode() : statusCode;
+        final boolean hasBody = response != null && exchange.method != Method.HEAD && !isBodiless(status);
+        final ContentCoding coding = hasBody ? selectContentCoding(response, exchange) : null;
+        final boolean isCompressed = coding != null && coding != ContentCoding.IDENTITY;
+
+        final List<Header> headers = getSentHeaders(response, isCompressed, coding);
+        if (coding != null) {
+            headers.add(Headers.VARY.asHeader(Headers.ACCEPT_ENCODING.getKey()));
+            if (isCompressed) {
+                headers.add(Headers.CONTENT_ENCODING.asHeader(coding.getName()));
+            }
+        }
+
+        if (!hasBody) {
+            stream.writeHead(status, headers);
+        } else if (isCompressed) {
+            try (CompressingOutputStream body = new CompressingOutputStream(stream.getOutputStream(status, headers), coding)) {
+                response.writeBody(body);
+            }
+        } else {
+            try (BufferedOutputStream body = stream.getOutputStream(status, headers)) {
+                response.writeBody(body);
+            }
+        }
     }
 
-    private void sendResponse(Socket clientSocket, StatusCode statusCode, Response response) {
-        try (final PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
-             final BufferedOutputStream dataOut = new BufferedOutputStream(clientSocket.getOutputStream())) {
-            sendResponse(out, dataOut, statusCode, response);
-        } catch (IOException ioe) {
-            System.err.println("Server error when trying to serve request");
-            System.err.println("Server error : " + ioe);
+    private boolean isKeepAlive(final RequestParser parser, final int requestCount) {
+        if (!isRunning || requestCount >= maxRequestsPerConnection) {
+            return false;
+        }
+
+        // HTTP/1.1 connections are persistent unless the client asks otherwise, whereas HTTP/1.0 connections are
+        // only persistent when the client explicitly asks for it
+        if (parser.isHttp10()) {
+            return parser.hasConnectionOption("keep-alive");
         }
+        return !parser.hasConnectionOption("close");
+    }
+
+    private ConnectionState sendStatusCode(ResponseOutputStream out, StatusCode statusCode, Exchange exchange) {
+        return sendResponse(out, statusCode, null, exchange);
+    }
+
+    private void sendStatusCode(ResponseOutputStream out, StatusCode statusCode, boolean keepAlive) {
+        sendStatusCode(out, statusCode, new Exchange(null, keepAlive, false, null, null));
     }
 
-    private void sendResponse(PrintWriter out, BufferedOutputStream dataOut, StatusCode statusCode, Response response) {
+    private ConnectionState sendResponse(ResponseOutputStream out, Response response, Exchange exchange) {
+        return sendResponse(out, null, response, exchange);
+    }
+
+    private ConnectionState sendResponse(ResponseOutputStream out, StatusCode statusCode, Response response,
+                                         Exchange exchange) {
+        // the headers and body are both written to the connection's buffer, which is only flushed to the client once
+        // there are no more pipelined requests to serve
+        return writeResponse(out, statusCode, response, exchange) ? ConnectionState.KEEP_ALIVE : ConnectionState.CLOSE;
+    }
+
+    /**
+     * Writes the response, returning true if the connection can be kept open for another request afterwards. If an
+     * exchange is given, the response is delimited so that the client can tell where it ends without the connection
+     * being closed - otherwise only the head of the response is written, as-is (as is the case for server-sent events).
+     */
+    private boolean writeResponse(ResponseOutputStream out, StatusCode statusCode, Response response, Exchange exchange) {
         try {
-            if (out != null) {
-                // write headers
-                out.println((statusCode == null ? response.getStatusCode() : statusCode).toString());
-                out.println("Server: TeenyHttpd from JonathanGiles.net : 1.0");
-                out.println("Date: " + LocalDateTime.now());
-
-                if (response != null) {
-                    response.getHeaders().forEach(h -> out.println(h.toString()));
+            if (exchange == null) {
+                writeHead(out, statusCode, response, null, UNKNOWN_LENGTH, null);
+                return false;
+            }
+
+            // responses to HEAD requests must not have a body, and nor must responses with some statuses
+            final boolean hasBody = response != null && exchange.method != Method.HEAD
+                    && !isBodiless(statusCode == null ? response.getStatusCode() : statusCode);
+            final ContentCoding coding = hasBody ? selectContentCoding(response, exchange) : null;
+            if (coding != null && coding != ContentCoding.IDENTITY) {
+                return writeCompressedResponse(out, statusCode, response, exchange, coding);
+            }
+
+            if (hasBody && !(response instanceof EmptyResponse) && !hasHeader(response, Headers.CONTENT_LENGTH)) {
+                if (response instanceof StreamingResponse) {
+                    // the body is sent as it is written, which means it can't be framed by a length
+                    final boolean keepAlive = writeHead(out, statusCode, response, exchange, STREAMED_LENGTH, null);
+                    final StreamedBodyOutputStream body = newStreamedBody(out, exchange);
+                    response.writeBody(body);
+                    body.finish();
+                    return keepAlive;
                 }
 
-                out.println(); // empty line between header and body
-                out.flush();   // flush character output stream buffer
+                // the length of the body is not known up front (as with the output of message converters), so we
+                // collect it first in order to send it with a length. A body that is too large to collect is streamed
+                // instead.
+                final boolean[] keepAlive = new boolean[1];
+                try (BodyBuffer body = new BodyBuffer(out, () -> {
+                    keepAlive[0] = writeHead(out, statusCode, response, exchange, STREAMED_LENGTH, coding);
+                    return newStreamedBody(out, exchange);
+                })) {
+                    response.writeBody(body);
+                    if (body.isStreaming()) {
+                        body.finishStream();
+                        return keepAlive[0];
+                    }
+                    keepAlive[0] = writeHead(out, statusCode, response, exchange, body.size(), coding);
+                    body.writeTo(out);
+                    return keepAlive[0];
+                }
             }
 
-            if (response != null && dataOut != null) {
-                // write body
-                response.writeBody(dataOut);
-                dataOut.flush(); // flush binary output stream buffer
+            final boolean keepAlive = writeHead(out, statusCode, response, exchange, UNKNOWN_LENGTH, coding);
+            if (hasBody) {
+                response.writeBody(out);
             }
+            return keepAlive;
         } catch (IOException ioe) {
             System.err.println("Server error when trying to serve request");
             System.err.println("Server error : " + ioe);
+            return false;
         }
     }
 
-    private static class Route {
-        private final Method method;
-        private final RequestPath routePath;
-        private final Function<Request, Response> handler;
-        private boolean isServerSentEventRoute;
+    /**
+     * Returns the content coding that the body of the response should be sent with, or null if it is not a response
+     * that we compress (in which case it does not vary by the request's 'Accept-Encoding' header either). Bodies are
+     * compressed if they are of a compressible type, and are not known to be smaller than the compression threshold.
+     * Parts of files (with a 'Content-Range' header) are never compressed, as the range refers to the bytes as sent.
+     */
+    private ContentCoding selectContentCoding(final Response response, final Exchange exchange) {
+        if (!isCompressionEnabled
+                || response instanceof EmptyResponse
+                || response instanceof StreamingResponse
+                || hasHeader(response, Headers.CONTENT_ENCODING)
+                || hasHeader(response, Headers.CONTENT_RANGE)) {
+            return null;
+        }
 
-        private ServerSentEventHandler sseHandler;
+        // string responses are text even when they don't say what type of text they are
+        final String contentType = getHeaderValue(response, Headers.CONTENT_TYPE);
+        if (contentType == null ? !(response instanceof StringResponse) : !ContentCoding.isCompressible(contentType)) {
+            return null;
+        }
 
-        public Route(Method method, RequestPath routePath, Function<Request, Response> handler) {
-            this.method = method;
-            this.routePath = routePath;
-            this.handler = handler;
+        final String contentLength = getHeaderValue(response, Headers.CONTENT_LENGTH);
+        try {
+            if (contentLength != null && Long.parseLong(contentLength.trim()) < compressionThreshold) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
         }
+        return ContentCoding.negotiate(exchange.acceptEncoding);
+    }
 
-        public boolean isServerSentEventRoute() {
-            return isServerSentEventRoute;
+    /**
+     * Writes a response with a compressed body, which is sent with its compressed length - or, if it turns out to be too
+     * large to collect once compressed, is streamed as it is compressed. A body of unknown length is collected
+     * uncompressed first, so that one that turns out to be smaller than the compression threshold can be sent as-is.
+     */
+    private boolean writeCompressedResponse(ResponseOutputStream out, StatusCode statusCode, Response response,
+                                            Exchange exchange, ContentCoding coding) throws IOException {
+        final boolean[] keepAlive = new boolean[1];
+        final BodyBuffer.OverflowHandler startStreaming = () -> {
+            keepAlive[0] = writeHead(out, statusCode, response, exchange, STREAMED_LENGTH, coding);
+            return newStreamedBody(out, exchange);
+        };
+
+        try (BodyBuffer compressed = new BodyBuffer(out, startStreaming)) {
+            final CompressingOutputStream compressor = new CompressingOutputStream(compressed, coding);
+            if (hasHeader(response, Headers.CONTENT_LENGTH)) {
+                // we already know the body is large enough to be worth compressing
+                response.writeBody(compressor);
+            } else {
+                try (BodyBuffer body = new BodyBuffer(out, () -> compressor)) {
+                    response.writeBody(body);
+                    if (!body.isStreaming() && body.size() < compressionThreshold) {
+                        keepAlive[0] = writeHead(out, statusCode, response, exchange, body.size(),
+                                ContentCoding.IDENTITY);
+                        body.writeTo(out);
+                        return keepAlive[0];
+                    } else if (!body.isStreaming()) {
+                        body.writeTo(compressor);
+                    }
+                }
+            }
+
+            compressor.finish();
+            if (compressed.isStreaming()) {
+                compressed.finishStream();
+                return keepAlive[0];
+            }
+            keepAlive[0] = writeHead(out, statusCode, response, exchange, compressed.size(), coding);
+            compressed.writeTo(out);
+            return keepAlive[0];
         }
+    }
 
-        public void setServerSentEventRoute(boolean isServerSentEventRoute) {
-            this.isServerSentEventRoute = isServerSentEventRoute;
+    /**
+     * Returns the stream that a body of unknown length is streamed to. HTTP/1.1 clients are sent it in chunks, whereas
+     * for HTTP/1.0 clients it is sent as-is, and ends when the connection is closed.
+     */
+    private StreamedBodyOutputStream newStreamedBody(ResponseOutputStream out, Exchange exchange) {
+        return new StreamedBodyOutputStream(out, chunkSize, !exchange.isHttp10);
+    }
+
+    /**
+     * Writes the status line and headers of the response, returning true if the connection can be kept open after the
+     * response. If the content length is not negative, it is sent as the length of a body that the response itself
+     * does not give a length for. {@link #STREAMED_LENGTH} means that the body is going to be streamed, chunked where
+     * the client supports it, and {@link #UNKNOWN_LENGTH} that the response's own headers describe the body. If a content
+     * coding is given, the response is marked as varying by the request's 'Accept-Encoding' header, and the body as
+     * being compressed with that coding (unless it is {@link ContentCoding#IDENTITY}).
+     */
+    private boolean writeHead(ResponseOutputStream out, StatusCode statusCode, Response response, Exchange exchange,
+                              long contentLength, ContentCoding coding) throws IOException {
+        // the server may have started to stop while the request was being handled, and the connection can only be
+        // reused if we can get past whatever the handler left unread of the request body
+        boolean keepAlive = exchange != null && exchange.keepAlive && isRunning
+                && (exchange.requestBody == null || exchange.requestBody.discard(MAX_DISCARDED_BODY_SIZE));
+
+        ResponseHead.writeStatusLine(out, statusCode == null ? response.getStatusCode() : statusCode);
+        ResponseHead.writeServerAndDate(out);
+
+        if (response != null) {
+            for (Header header : response.getHeaders()) {
+                final Header sent = toSentHeader(header, contentLength != UNKNOWN_LENGTH, coding);
+                if (sent != null) {
+                    ResponseHead.writeHeader(out, sent);
+                }
+            }
+        }
+        if (coding != null) {
+            ResponseHead.writeContentCoding(out, coding);
         }
 
-        public ServerSentEventHandler getSseHandler() {
-            return sseHandler;
+        if (exchange != null) {
+            if (contentLength >= 0) {
+                ResponseHead.writeContentLength(out, contentLength);
+            } else if (contentLength == STREAMED_LENGTH && !exchange.isHttp10) {
+                ResponseHead.writeTransferEncodingChunked(out);
+            } else if (contentLength == STREAMED_LENGTH) {
+                // HTTP/1.0 clients don't understand chunks, so the only way to delimit the body is to close the
+                // connection after it
+                keepAlive = false;
+            } else if (isBodiless(statusCode == null ? response.getStatusCode() : statusCode)) {
+                // the client knows that there is no body to delimit
+            } else if (response == null || (response instanceof EmptyResponse && !hasHeader(response, Headers.CONTENT_LENGTH))) {
+                ResponseHead.writeContentLength(out, 0);
+            } else if (exchange.method == Method.HEAD) {
+                // a response that doesn't give its length could only work it out by generating the body, which is not
+                // worth doing for a body that is never sent (and nor is there one to delimit)
+            } else if (!hasHeader(response, Headers.CONTENT_LENGTH)) {
+                // without a length, the only way to delimit the body is to close the connection after it
+                keepAlive = false;
+            }
+
+            if (!hasHeader(response, Headers.CONNECTION)) {
+                if (!keepAlive) {
+                    ResponseHead.writeConnection(out, false);
+                } else if (exchange.isHttp10) {
+                    ResponseHead.writeConnection(out, true);
+                }
+            }
         }
 
-        public void setSseHandler(ServerSentEventHandler sseHandler) {
-            this.sseHandler = sseHandler;
+        ResponseHead.writeEnd(out); // empty line between header and body
+        return keepAlive;
+    }
+
+    /**
+     * Returns the headers of the response as they are sent (see {@link #toSentHeader(Header, boolean, ContentCoding)}),
+     * in a list that more can be added to.
+     */
+    private static List<Header> getSentHeaders(final Response response, final boolean isFramed,
+                                               final ContentCoding coding) {
+        final List<Header> headers = new ArrayList<>();
+        if (response != null) {
+            for (Header header : response.getHeaders()) {
+                final Header sent = toSentHeader(header, isFramed, coding);
+                if (sent != null) {
+                    headers.add(sent);
+                }
+            }
         }
+        return headers;
     }
 
-    private static class RequestPath {
-        private final String path;
-        private final Pattern regexPattern;
-        private final List<String> pathParams = new ArrayList<>();
+    /**
+     * Returns the header of the response as it is sent, or null if it is left out. If the body is framed by us rather
+     * than as the response describes it, or a content coding is given, the headers that describe the body as the
+     * response wrote it are replaced.
+     */
+    private static Header toSentHeader(final Header header, final boolean isFramed, final ContentCoding coding) {
+        // when we frame the body ourselves, any length the response gives is not the length that is sent
+        if (isFramed && header.getKey().equalsIgnoreCase(Headers.CONTENT_LENGTH.getKey())) {
+            return null;
+        }
+        // nor do we repeat the 'Vary' header that is written along with the content coding
+        if (coding != null && isVaryAcceptEncoding(header)) {
+            return null;
+        }
+        // a compressed body is not byte-for-byte the representation that a strong tag promises
+        if (coding != null && coding != ContentCoding.IDENTITY
+                && header.getKey().equalsIgnoreCase(Headers.ETAG.getKey())
+                && header.getFirstValue().startsWith("\"")) {
+            return Headers.ETAG.asHeader("W/" + header.getFirstValue());
+        }
+        return header;
+    }
 
-        RequestPath(final String path) {
-            this.path = path;
+    private static String getHeaderValue(final Response response, final Headers header) {
+        for (Header h : response.getHeaders()) {
+            if (h.getKey().equalsIgnoreCase(header.getKey())) {
+                return h.getFirstValue();
+            }
+        }
+        return null;
+    }
 
-            String regexString = path;
-            if (path.contains(":")) {
-                // we have one or more path params, so we need to create a regex string that will match the given path
-                // and extract the path params into uniquely-named groups, where the group name should be the value after
-                // the colon in the path param.
-                // For example:
-                //  If the path is '/user/:id', then the regex string should be '/user/(?<id>[^/]+)'.
-                //  If the path is '/user/:id/:name', then the regex string should be '/user/(?<id>[^/]+)/(?<name>[^/]+)'.
-                // To do this we need to extract the path params, and then replace them with the regex string.
-                // We also need to ensure that the path params are not greedy, so we use '[^/]+', which means 'match
-                // everything except a forward slash'.
-                // We also need to ensure that the regex string is anchored to the start and end of the path, so we
-                // add '^' and '$' to the start and end of the regex string.
-                // Finally, we need to ensure that the regex string is case-insensitive, so we add '(?i)' to the start
-                // of the regex string.
-                // The most important thing is that the param name is not 'param', but the name of the path param.
-                // This is because we will use the param name to extract the value from the path param, and we need
-                // to know the name of the path param to do this.
-                regexString = replaceTokens(path, Pattern.compile(":[^/]*+"), matcher -> {
-                    final String paramName = matcher.group().substring(1);
-                    return "(?<" + paramName + ">[^/]*+)";
-                });
-            }
-            this.regexPattern = Pattern.compile(regexString, Pattern.CASE_INSENSITIVE);
-
-            // get all named regex groups in the given path and put them in the pathParams list
-
-
-            Matcher matcher = regexPattern.matcher(path);
-            if (matcher.find()) {
-                for (int i = 1; i <= matcher.groupCount(); i++) {
-                    pathParams.add(matcher.group(i).substring(1)); // substring to strip off the ':'
-                }
+    /**
+     * Returns true if responses with the given status never have a body: informational responses, '204 No Content' and
+     * '304 Not Modified'.
+     */
+    private static boolean isBodiless(final StatusCode statusCode) {
+        final int code = statusCode.getCode();
+        return code < 200 || code == 204 || code == 304;
+    }
+
+    private static boolean isVaryAcceptEncoding(final Header header) {
+        return header.getKey().equalsIgnoreCase(Headers.VARY.getKey())
+                && header.getValues().size() == 1
+                && header.getFirstValue().equalsIgnoreCase(Headers.ACCEPT_ENCODING.getKey());
+    }
+
+    private static boolean hasHeader(final Response response, final Headers header) {
+        if (response == null) {
+            return false;
+        }
+        for (Header h : response.getHeaders()) {
+            if (h.getKey().equalsIgnoreCase(header.getKey())) {
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * What should happen to a connection once a request on it has been served.
+     */
+    private enum ConnectionState {
+        CLOSE,
+        KEEP_ALIVE,
+        LONG_RUNNING
+    }
+
+    /**
+     * The details of the current request that determine how its response is written.
+     */
+    private static class Exchange {
+        private final Method method;
+        private final boolean keepAlive;
+        private final boolean isHttp10;
+        private final RequestBody requestBody;
+        private final String acceptEncoding;
+
+        Exchange(final Method method, final boolean keepAlive, final boolean isHttp10, final RequestBody requestBody,
+                 final String acceptEncoding) {
+            this.method = method;
+            this.keepAlive = keepAlive;
+            this.isHttp10 = isHttp10;
+            this.requestBody = requestBody;
+            this.acceptEncoding = acceptEncoding;
+        }
+    }
+
+    private static class Route {
+        private final Method method;
+        private final String path;
+        private final Function<Request, Response> handler;
+        private boolean isServerSentEventRoute;
+
+        private ServerSentEventHandler sseHandler;
 
-        Pattern getRegex() {
-            return regexPattern;
+        private WebSocketHandler webSocketHandler;
+
+        public Route(Method method, String path, Function<Request, Response> handler) {
+            this.method = method;
+            this.path = path;
+            this.handler = handler;
         }
 
-        String getPath() {
-            return path;
+        public boolean isServerSentEventRoute() {
+            return isServerSentEventRoute;
         }
 
-        List<String> getPathParams() {
-            return pathParams;
+        public void setServerSentEventRoute(boolean isServerSentEventRoute) {
+            this.isServerSentEventRoute = isServerSentEventRoute;
         }
 
-        private static String replaceTokens(String original, Pattern tokenPattern, Function<Matcher, String> converter) {
-            int lastIndex = 0;
-            StringBuilder output = new StringBuilder();
-            Matcher matcher = tokenPattern.matcher(original);
-            while (matcher.find()) {
-                output.append(original, lastIndex, matcher.start())
-                        .append(converter.apply(matcher));
-                lastIndex = matcher.end();
-            }
-            if (lastIndex < original.length()) {
-                output.append(original, lastIndex, original.length());
-            }
-            return output.toString();
+        public ServerSentEventHandler getSseHandler() {
+            return sseHandler;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            RequestPath that = (RequestPath) o;
-            return Objects.equals(path, that.path);
+        public void setSseHandler(ServerSentEventHandler sseHandler) {
+            this.sseHandler = sseHandler;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(path);
+        public WebSocketHandler getWebSocketHandler() {
+            return webSocketHandler;
         }
 
-        @Override
-        public String toString() {
-            return "RequestPath{" +
-                    "path='" + path + "'" +
-                    ", regexPattern=" + regexPattern +
-                    ", pathParams=" + pathParams +
-                    '}';
+        public void setWebSocketHandler(WebSocketHandler webSocketHandler) {
+            this.webSocketHandler = webSocketHandler;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of connections that the server holds open at once, and keeps count of the connections and requests
+ * that were turned away - either because this limit was reached, or because the executor had no capacity left to
+ * handle them. Anything that is turned away is sent a pre-encoded {@code 503 Service Unavailable} response (with a
+ * {@code Retry-After} header), so that shedding load costs as little as possible.
+ */
+public class AdmissionControl {
+    private final int maxConnections;
+    private final byte[] serviceUnavailableResponse;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param maxConnections The maximum number of connections that may be open at once.
+     * @param retryAfterSeconds The number of seconds that clients are asked to wait before trying again.
+     */
+    public AdmissionControl(final int maxConnections, final long retryAfterSeconds) {
+        this.maxConnections = maxConnections;
+        this.serviceUnavailableResponse = ("HTTP/1.1 503 Service Unavailable\r\n" +
+                "Retry-After: " + retryAfterSeconds + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Called when a connection is accepted, returning true if it may be served, or false if the maximum number of
+     * connections are already open. If true is returned, {@link #onConnectionClosed()} must be called once the
+     * connection has been closed.
+     */
+    public boolean tryOpenConnection() {
+        while (true) {
+            final int current = openConnections.get();
+            if (current >= maxConnections) {
+                return false;
+            }
+            if (openConnections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void onConnectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    /**
+     * Records that a connection or request has been turned away, returning the response that it should be sent.
+     */
+    public byte[] reject() {
+        rejections.increment();
+        return serviceUnavailableResponse;
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+}
@@ -0,0 +1,116 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects a response body whose length is not known up front (such as the output of a message converter) in a pooled
+ * buffer, so that the response can be sent with a 'Content-Length' header. If the body outgrows the buffer, the head of
+ * the response is written without a length, and the body is streamed to the client (in chunks, where the client
+ * supports it) as it is written.
+ */
+public class BodyBuffer extends BufferedOutputStream {
+
+    /**
+     * Writes the head of the response once it is known that the body will not fit in the buffer, returning the stream
+     * that the body is then streamed to. Closing that stream ends the body, without closing the connection.
+     */
+    @FunctionalInterface
+    public interface OverflowHandler {
+        OutputStream onOverflow() throws IOException;
+    }
+
+    private final OverflowHandler overflowHandler;
+    private OutputStream stream;
+
+    public BodyBuffer(final ResponseOutputStream target, final OverflowHandler overflowHandler) {
+        // the buffer allocated by the superclass is replaced with a pooled one
+        super(target, 1);
+        this.buf = BufferPool.acquire();
+        this.overflowHandler = overflowHandler;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (stream == null && count == buf.length) {
+            overflow();
+        }
+        if (stream != null) {
+            stream.write(b);
+        } else {
+            buf[count++] = (byte) b;
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (stream == null && len > buf.length - count) {
+            overflow();
+        }
+        if (stream != null) {
+            stream.write(b, off, len);
+        } else {
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+
+    private void overflow() throws IOException {
+        stream = overflowHandler.onOverflow();
+        stream.write(buf, 0, count);
+        count = 0;
+    }
+
+    /**
+     * Returns true if the body outgrew the buffer, in which case it is being streamed, and {@link #finishStream()} must
+     * be called once it has been written.
+     */
+    public boolean isStreaming() {
+        return stream != null;
+    }
+
+    /**
+     * Ends the body that is being streamed.
+     */
+    public void finishStream() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * Returns the length of the buffered body.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Writes the buffered body to the response.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+        count = 0;
+    }
+
+    /**
+     * Does nothing while the body is being collected - once it is being streamed, sends what has been written so far to
+     * the client.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Gives the buffer back to the pool, without closing the response.
+     */
+    @Override
+    public void close() {
+        if (buf != null) {
+            BufferPool.release(buf);
+            buf = null;
+        }
+    }
+}
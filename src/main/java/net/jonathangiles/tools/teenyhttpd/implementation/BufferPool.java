@@ -0,0 +1,49 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of the byte arrays that responses are assembled in, so that serving a request does not allocate (and later
+ * garbage collect) a fresh buffer. Buffers are only held while a response is being written, so an idle connection does
+ * not hold on to one. Only a bounded number of buffers are kept, and any beyond that are left to the garbage
+ * collector.
+ */
+public final class BufferPool {
+    public static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private BufferPool() { }
+
+    /**
+     * Returns a buffer of {@link #BUFFER_SIZE} bytes, which should be given back with {@link #release(byte[])} once it
+     * is no longer used.
+     */
+    public static byte[] acquire() {
+        final byte[] buffer = POOL.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used by the caller afterwards.
+     */
+    public static void release(final byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        POOL.offer(buffer);
+    }
+}
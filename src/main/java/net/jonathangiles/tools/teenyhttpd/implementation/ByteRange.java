@@ -0,0 +1,128 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes of a file, as asked for by the {@code Range} header of a request (RFC 7233).
+ */
+public final class ByteRange {
+    // more ranges than this are more likely to be an attempt to make the server do a lot of work than a real client
+    private static final int MAX_RANGES = 64;
+
+    private final long first;
+    private final long last;
+
+    ByteRange(final long first, final long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Returns the position of the first byte of the range.
+     */
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * Returns the position of the last byte of the range, which is included in it.
+     */
+    public long getLast() {
+        return last;
+    }
+
+    public long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of the {@code Content-Range} header of a part of a file of the given length.
+     */
+    public String toContentRange(final long totalLength) {
+        return "bytes " + first + "-" + last + "/" + totalLength;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header against a file of the given length, returning the ranges in order,
+     * with ranges that overlap (or are adjacent) merged. An empty list means that none of the ranges are satisfiable,
+     * whereas null means the header should be ignored - because it is malformed, is not in bytes, or asks for too many
+     * ranges - and the whole file sent instead.
+     */
+    public static List<ByteRange> parse(final String range, final long length) {
+        if (range == null) {
+            return null;
+        }
+        final String value = range.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        final String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        final List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                final String start = spec.substring(0, dash).trim();
+                final String end = spec.substring(dash + 1).trim();
+                if (start.isEmpty()) {
+                    // a suffix range, which asks for the last n bytes
+                    final long suffix = parseNonNegative(end);
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                    }
+                    continue;
+                }
+
+                final long first = parseNonNegative(start);
+                final long last = end.isEmpty() ? length - 1 : parseNonNegative(end);
+                if (last < first) {
+                    return null;
+                } else if (first < length) {
+                    ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return merge(ranges);
+    }
+
+    private static long parseNonNegative(final String s) {
+        if (s.isEmpty() || s.charAt(0) == '+' || s.charAt(0) == '-') {
+            throw new NumberFormatException(s);
+        }
+        return Long.parseLong(s);
+    }
+
+    private static List<ByteRange> merge(final List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        Collections.sort(ranges, Comparator.comparingLong(ByteRange::getFirst));
+        final List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            final ByteRange next = ranges.get(i);
+            if (next.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, next.last));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
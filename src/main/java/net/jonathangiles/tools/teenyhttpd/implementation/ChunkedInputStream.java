@@ -0,0 +1,167 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a request body that is sent with chunked transfer-encoding, as it is read. Only the bytes of the current
+ * chunk are ever asked of the connection, so nothing past the end of the body (such as a pipelined request) is read,
+ * and nothing is buffered - a body can be as long as the client likes, so long as no chunk is larger than the chunk
+ * size limit and the body as a whole stays within the body size limit. Chunk extensions and trailers are read and
+ * ignored.
+ */
+public class ChunkedInputStream extends InputStream {
+    // the longest chunk-size line (including any extensions) or trailer line that we accept
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final int MAX_TRAILER_LINES = 100;
+
+    private final InputStream in;
+    private final long maxChunkSize;
+    private final long maxBodySize;
+
+    private long chunkRemaining;
+    private long bodySize;
+    private boolean isFinished;
+    private IOException failure;
+
+    /**
+     * @param in The stream of the connection, positioned at the start of the body.
+     * @param maxChunkSize The largest chunk that is accepted.
+     * @param maxBodySize The largest body, in total, that is accepted.
+     */
+    public ChunkedInputStream(final InputStream in, final long maxChunkSize, final long maxBodySize) {
+        this.in = in;
+        this.maxChunkSize = maxChunkSize;
+        this.maxBodySize = maxBodySize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        final int b = in.read();
+        if (b == -1) {
+            throw fail(new EOFException("Connection closed before the full request body was received"));
+        }
+        chunkRemaining--;
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        } else if (!nextChunk()) {
+            return -1;
+        }
+        final int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+        if (read == -1) {
+            throw fail(new EOFException("Connection closed before the full request body was received"));
+        }
+        chunkRemaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return isFinished || chunkRemaining == 0 ? 0 : (int) Math.min(in.available(), chunkRemaining);
+    }
+
+    @Override
+    public void close() {
+        // the connection outlives the request
+    }
+
+    /**
+     * Moves on to the next chunk if the current one has been read, returning false once the last chunk has been read.
+     */
+    private boolean nextChunk() throws IOException {
+        if (failure != null) {
+            throw failure;
+        } else if (isFinished) {
+            return false;
+        } else if (chunkRemaining > 0) {
+            return true;
+        }
+
+        // every chunk but the first is preceded by the CRLF that ends the data of the chunk before it
+        if (bodySize > 0 && readLine().length() > 0) {
+            throw fail(new InvalidRequestBodyException(StatusCode.BAD_REQUEST, "Chunk is longer than its size"));
+        }
+
+        final long size = parseChunkSize(readLine());
+        if (size == 0) {
+            // the last chunk is followed by optional trailers, and then an empty line
+            for (int i = 0; readLine().length() > 0; i++) {
+                if (i == MAX_TRAILER_LINES) {
+                    throw fail(new InvalidRequestBodyException(StatusCode.BAD_REQUEST, "Too many trailers"));
+                }
+            }
+            isFinished = true;
+            return false;
+        } else if (size > maxChunkSize) {
+            throw fail(new InvalidRequestBodyException(StatusCode.REQUEST_ENTITY_TOO_LARGE,
+                    "Chunk of " + size + " bytes is larger than the limit of " + maxChunkSize));
+        } else if (size > maxBodySize - bodySize) {
+            throw fail(new InvalidRequestBodyException(StatusCode.REQUEST_ENTITY_TOO_LARGE,
+                    "Request body is larger than the limit of " + maxBodySize + " bytes"));
+        }
+
+        chunkRemaining = size;
+        bodySize += size;
+        return true;
+    }
+
+    private long parseChunkSize(final CharSequence line) throws IOException {
+        long size = 0;
+        int digits = 0;
+        for (; digits < line.length(); digits++) {
+            final int digit = Character.digit(line.charAt(digits), 16);
+            if (digit < 0) {
+                break;
+            } else if (size > (Long.MAX_VALUE >> 4)) {
+                throw fail(new InvalidRequestBodyException(StatusCode.REQUEST_ENTITY_TOO_LARGE, "Chunk size is too large"));
+            }
+            size = (size << 4) | digit;
+        }
+
+        // the size may only be followed by whitespace and chunk extensions, which we ignore
+        if (digits == 0 || (digits < line.length() && line.charAt(digits) != ';'
+                && line.charAt(digits) != ' ' && line.charAt(digits) != '\t')) {
+            throw fail(new InvalidRequestBodyException(StatusCode.BAD_REQUEST, "Invalid chunk size: " + line));
+        }
+        return size;
+    }
+
+    /**
+     * Reads a line, which ends with a CRLF (or, leniently, a lone LF), returning it without the line ending.
+     */
+    private CharSequence readLine() throws IOException {
+        final StringBuilder line = new StringBuilder();
+        while (true) {
+            final int b = in.read();
+            if (b == -1) {
+                throw fail(new EOFException("Connection closed before the full request body was received"));
+            } else if (b == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line;
+            } else if (line.length() == MAX_LINE_LENGTH) {
+                throw fail(new InvalidRequestBodyException(StatusCode.BAD_REQUEST, "Chunk line is too long"));
+            }
+            line.append((char) b);
+        }
+    }
+
+    private IOException fail(final IOException e) {
+        // once the framing has been lost, there's no way to find our place in the stream again
+        failure = e;
+        return e;
+    }
+}
@@ -0,0 +1,64 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A single client connection, as seen by the request handling code in TeenyHttpd. This abstracts over the blocking
+ * {@link java.net.Socket} transport and the selector-based {@link NioServer} transport, so that requests are read and
+ * responses are written in the same way regardless of how the bytes reached the server.
+ */
+public interface ClientConnection extends Closeable {
+
+    /**
+     * Returns the parser holding the head of the current request, blocking until it has been received in full, or null
+     * if the client closed the connection before sending another request.
+     */
+    RequestParser readRequestHead() throws IOException;
+
+    /**
+     * Returns the stream from which the body of the current request is read, once its head has been read.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Returns the stream to which the response is written. Closing this stream closes the connection.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Returns the number of requests that have been received on this connection, including the current one.
+     */
+    int getRequestCount();
+
+    /**
+     * Called once a response has been written and the connection is to be kept open for another request. Returns true
+     * if the head of the next request has already been received (that is, the client is pipelining requests), in
+     * which case the calling thread should go on to read it with {@link #readRequestHead()} straight away.
+     */
+    boolean prepareNextRequest() throws IOException;
+
+    /**
+     * Called when there are no more pipelined requests to serve and all responses have been flushed to the client.
+     * Returns true if the calling thread should go on to read the next request with {@link #readRequestHead()}, blocking
+     * until it arrives, or false if the transport will hand the connection back to the request handler once the next
+     * request has arrived.
+     */
+    boolean awaitNextRequest();
+
+    /**
+     * Called when the connection has been handed over to a long-running handler (such as a server-sent event stream),
+     * after which no further requests will be read from it.
+     */
+    void setLongRunning();
+
+    /**
+     * Called when the connection has switched to another protocol (HTTP/2 or WebSocket), after which the calling thread
+     * reads frames from it for as long as it stays open. Reads time out after the idle timeout with a
+     * {@link java.net.SocketTimeoutException}, leaving the connection open, so that the caller can decide whether the
+     * connection is idle.
+     */
+    void setUpgraded();
+}
@@ -0,0 +1,199 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a response body with gzip or deflate as it is written. Writes are collected in a buffer before they are
+ * handed to the compressor, so that bodies written a little at a time (as message converters do) are compressed
+ * efficiently. Deflaters hold a sizeable amount of native memory and are costly to create, so they are pooled (as are
+ * the buffers), and are only taken from the pool once the first byte of the body is written, and returned to it once
+ * the body has been finished. Flushing the stream flushes the compressor too, so that what has been written so far can
+ * be decompressed by the client.
+ */
+public class CompressingOutputStream extends BufferedOutputStream {
+    private static final int MAX_POOLED_DEFLATERS = 64;
+
+    // gzip wraps raw deflate data in its own header and trailer, whereas the 'deflate' coding is the zlib format
+    private static final Queue<Deflater> GZIP_POOL = new ConcurrentLinkedQueue<>();
+    private static final Queue<Deflater> DEFLATE_POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b,  // magic number
+            Deflater.DEFLATED,  // compression method
+            0,                  // flags
+            0, 0, 0, 0,         // modification time
+            0,                  // extra flags
+            (byte) 0xff         // operating system (unknown)
+    };
+
+    private final boolean isGzip;
+    private CRC32 crc;
+    private Deflater deflater;
+    private byte[] output;
+    private boolean isFinished;
+
+    /**
+     * @param out The stream that the compressed body is written to, which is closed when this stream is closed.
+     * @param coding The content coding to compress with, which must be either gzip or deflate.
+     */
+    public CompressingOutputStream(final OutputStream out, final ContentCoding coding) {
+        // the buffer allocated by the superclass is replaced with a pooled one once the body is written
+        super(out, 1);
+        this.buf = null;
+        this.isGzip = coding == ContentCoding.GZIP;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        start();
+        if (count == buf.length) {
+            compressBuffer();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        start();
+        if (len >= buf.length) {
+            // large writes are compressed straight from the caller's array
+            compressBuffer();
+            compress(b, off, len);
+        } else {
+            if (len > buf.length - count) {
+                compressBuffer();
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (deflater != null && !isFinished) {
+            compressBuffer();
+            while (deflate(Deflater.SYNC_FLUSH) == output.length) {
+                // the output buffer was filled, so there may be more to come
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the rest of the compressed body (and, for gzip, its trailer) to the underlying stream, and returns the
+     * deflater and buffers to their pools. The underlying stream is left open.
+     */
+    public void finish() throws IOException {
+        if (isFinished) {
+            return;
+        }
+        start();
+        isFinished = true;
+        try {
+            compressBuffer();
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            if (isGzip) {
+                writeIntLE((int) crc.getValue());
+                writeIntLE((int) deflater.getBytesRead());
+            }
+        } finally {
+            release(deflater, isGzip);
+            deflater = null;
+            BufferPool.release(buf);
+            BufferPool.release(output);
+            buf = null;
+            output = null;
+        }
+    }
+
+    /**
+     * Finishes the body, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void start() throws IOException {
+        if (isFinished) {
+            // the deflater may already be in use by another response
+            throw new IOException("The body has already been finished");
+        } else if (deflater != null) {
+            return;
+        }
+
+        deflater = acquire(isGzip);
+        buf = BufferPool.acquire();
+        output = BufferPool.acquire();
+        if (isGzip) {
+            crc = new CRC32();
+            out.write(GZIP_HEADER);
+        }
+    }
+
+    private void compressBuffer() throws IOException {
+        if (count > 0) {
+            compress(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    private void compress(final byte[] b, final int off, final int len) throws IOException {
+        if (isGzip) {
+            crc.update(b, off, len);
+        }
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH);
+        }
+    }
+
+    private int deflate(final int flush) throws IOException {
+        final int length = deflater.deflate(output, 0, output.length, flush);
+        if (length > 0) {
+            out.write(output, 0, length);
+        }
+        return length;
+    }
+
+    private void writeIntLE(final int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    private static Deflater acquire(final boolean gzip) {
+        final Deflater deflater = (gzip ? GZIP_POOL : DEFLATE_POOL).poll();
+        if (deflater == null) {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        }
+        POOLED.decrementAndGet();
+        return deflater;
+    }
+
+    private static void release(final Deflater deflater, final boolean gzip) {
+        if (POOLED.incrementAndGet() > MAX_POOLED_DEFLATERS) {
+            POOLED.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        (gzip ? GZIP_POOL : DEFLATE_POOL).offer(deflater);
+    }
+}
@@ -0,0 +1,117 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.util.Locale;
+
+/**
+ * The content codings that response bodies may be compressed with, along with the logic for deciding which (if any)
+ * to use for a response.
+ */
+public enum ContentCoding {
+    /**
+     * The body is sent as-is, even though it could have been compressed for a client that accepted it.
+     */
+    IDENTITY("identity"),
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String name;
+
+    ContentCoding(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Picks the content coding to compress a response with from the value of the request's {@code Accept-Encoding}
+     * header, preferring gzip where the client is as happy with either. {@link #IDENTITY} is returned if the client
+     * accepts neither (or did not send the header).
+     */
+    public static ContentCoding negotiate(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return IDENTITY;
+        }
+
+        final double gzip = quality(acceptEncoding, GZIP);
+        final double deflate = quality(acceptEncoding, DEFLATE);
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        } else if (deflate > 0) {
+            return DEFLATE;
+        }
+        return IDENTITY;
+    }
+
+    /**
+     * Returns true if the value of the request's {@code Accept-Encoding} header says that the client accepts bodies
+     * compressed with the given coding, whether or not it prefers another.
+     */
+    public static boolean isAccepted(final String acceptEncoding, final ContentCoding coding) {
+        return acceptEncoding != null && quality(acceptEncoding, coding) > 0;
+    }
+
+    /**
+     * Returns the quality that the {@code Accept-Encoding} header gives the coding, or -1 if it does not mention it.
+     */
+    private static double quality(final String acceptEncoding, final ContentCoding coding) {
+        double quality = -1;
+        double wildcard = -1;
+        for (String element : acceptEncoding.split(",")) {
+            final String[] parts = element.split(";");
+            final String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            final boolean isCoding = name.equals(coding.name) || (coding == GZIP && name.equals("x-gzip"));
+            if (!isCoding && !name.equals("*")) {
+                continue;
+            }
+
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                final String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (isCoding) {
+                quality = q;
+            } else {
+                wildcard = q;
+            }
+        }
+
+        // codings that are not listed are covered by the wildcard, if there is one
+        return quality < 0 ? wildcard : quality;
+    }
+
+    /**
+     * Returns true if a body of the given media type (the value of a {@code Content-Type} header) is worth
+     * compressing. Text formats are, whereas most other formats (such as images, audio and archives) are already
+     * compressed.
+     */
+    public static boolean isCompressible(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+
+        final int parametersStart = contentType.indexOf(';');
+        final String mediaType = (parametersStart < 0 ? contentType : contentType.substring(0, parametersStart))
+                .trim().toLowerCase(Locale.ROOT);
+        if (mediaType.equals("text/event-stream")) {
+            // events must reach the client as soon as they are sent
+            return false;
+        }
+        return mediaType.startsWith("text/")
+                || mediaType.endsWith("+json")
+                || mediaType.endsWith("+xml")
+                || mediaType.equals("application/json")
+                || mediaType.equals("application/javascript")
+                || mediaType.equals("application/x-javascript")
+                || mediaType.equals("application/ecmascript")
+                || mediaType.equals("application/xml");
+    }
+}
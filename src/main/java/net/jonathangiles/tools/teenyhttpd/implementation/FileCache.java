@@ -0,0 +1,238 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Caches the {@link StaticFile files} under a webroot, so that serving a file that has been served before does not
+ * touch the disk at all - not even to check that it exists (missing files are cached too, so that the 404 page is
+ * served from memory as well). The cache is bounded by the total size of the files it holds, and evicts the least
+ * recently used files first. Files larger than a quarter of the cache are not held in memory, only their metadata.
+ *
+ * <p>The webroot is watched with a {@link WatchService}, and files are dropped from the cache as soon as they (or the
+ * directories they are in) are created, modified or deleted. Changes are noticed asynchronously, so a file may be
+ * served as it was for a moment after it changes. If the webroot can't be watched, nothing is cached.</p>
+ */
+public final class FileCache implements Closeable {
+    private static final long MAX_HEAP_FILE_SIZE = 64 * 1024;
+    private static final long MAX_MAPPED_FILE_SIZE = 16 * 1024 * 1024;
+
+    private final Path root;
+    private final long maxBytes;
+    private final long maxHeapFileSize;
+    private final long maxMappedFileSize;
+
+    // access-ordered, so that iteration starts at the least recently used file
+    private final LinkedHashMap<Path, StaticFile> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    // incremented whenever files are dropped, so that a file loaded before a change is not cached after it
+    private long generation;
+
+    private WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private boolean isWatchFailed;
+
+    /**
+     * @param root The directory whose files are cached.
+     * @param maxBytes The most bytes of files that are held at once.
+     */
+    public FileCache(final File root, final long maxBytes) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.maxHeapFileSize = Math.min(MAX_HEAP_FILE_SIZE, maxBytes / 4);
+        this.maxMappedFileSize = Math.min(MAX_MAPPED_FILE_SIZE, maxBytes / 4);
+    }
+
+    /**
+     * Returns the given file, from the cache if it is there, or otherwise from disk (caching it if it is under the
+     * webroot). The watch on the webroot is started the first time this is called.
+     */
+    public StaticFile get(final File file) throws IOException {
+        final Path path = file.toPath().toAbsolutePath().normalize();
+        final long loadedGeneration;
+        synchronized (this) {
+            if (!path.startsWith(root) || !startWatching()) {
+                return StaticFile.load(file);
+            }
+            final StaticFile cached = files.get(path);
+            if (cached != null) {
+                return cached;
+            }
+            loadedGeneration = generation;
+        }
+
+        final StaticFile loaded = StaticFile.load(file, maxHeapFileSize, maxMappedFileSize);
+        synchronized (this) {
+            if (generation == loadedGeneration && watchService != null) {
+                final StaticFile previous = files.put(path, loaded);
+                if (previous != null) {
+                    size -= previous.getCachedSize();
+                }
+                size += loaded.getCachedSize();
+                evict();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the number of bytes of files that are currently held.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private void evict() {
+        final Iterator<StaticFile> iterator = files.values().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            size -= iterator.next().getCachedSize();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops the file or directory at the given path from the cache, along with everything under it.
+     */
+    private synchronized void invalidate(final Path path) {
+        generation++;
+        final Iterator<Map.Entry<Path, StaticFile>> iterator = files.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Path, StaticFile> entry = iterator.next();
+            if (entry.getKey().startsWith(path)) {
+                size -= entry.getValue().getCachedSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized void invalidateAll() {
+        generation++;
+        files.clear();
+        size = 0;
+    }
+
+    /**
+     * Starts watching the webroot if it is not already being watched, returning false if it can't be.
+     */
+    private boolean startWatching() {
+        if (watchService != null) {
+            return true;
+        } else if (isWatchFailed) {
+            return false;
+        }
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            watchDirectory(root);
+        } catch (IOException e) {
+            System.err.println("Unable to watch " + root + " for changes, so its files will not be cached : " + e);
+            isWatchFailed = true;
+            close();
+            return false;
+        }
+
+        final WatchService service = watchService;
+        final Thread watcher = new Thread(() -> watch(service), "TeenyHttpd-FileCache-" + root.getFileName());
+        watcher.setDaemon(true);
+        watcher.start();
+        return true;
+    }
+
+    /**
+     * Registers the directory and all directories under it with the watch service, which only reports changes to the
+     * direct children of a directory.
+     */
+    private void watchDirectory(final Path directory) throws IOException {
+        final List<Path> directories;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            directories = paths.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        for (Path dir : directories) {
+            final WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, dir);
+        }
+    }
+
+    private void watch(final WatchService service) {
+        try {
+            while (true) {
+                final WatchKey key = service.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    onEvent(key, event);
+                }
+                if (!key.reset()) {
+                    synchronized (this) {
+                        watchedDirectories.remove(key);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // the cache has been closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onEvent(final WatchKey key, final WatchEvent<?> event) {
+        final Path directory;
+        synchronized (this) {
+            directory = watchedDirectories.get(key);
+        }
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+            // we don't know what changed
+            invalidateAll();
+            return;
+        }
+
+        final Path path = directory.resolve((Path) event.context());
+        invalidate(path);
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+            synchronized (this) {
+                try {
+                    if (watchService != null) {
+                        watchDirectory(path);
+                    }
+                } catch (IOException | ClosedWatchServiceException e) {
+                    // the directory has gone again, or the cache has been closed
+                }
+            }
+            // files may have been created in the directory before it was watched
+            invalidate(path);
+        }
+    }
+
+    /**
+     * Stops watching the webroot and empties the cache. The cache starts watching again if it is used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            watchService = null;
+        }
+        watchedDirectories.clear();
+        invalidateAll();
+    }
+}
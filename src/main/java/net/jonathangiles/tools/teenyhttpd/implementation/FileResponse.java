@@ -2,6 +2,7 @@ package net.jonathangiles.tools.teenyhttpd.implementation;
 
 import net.jonathangiles.tools.teenyhttpd.TeenyHttpd;
 import net.jonathangiles.tools.teenyhttpd.model.ContentType;
+import net.jonathangiles.tools.teenyhttpd.model.Header;
 import net.jonathangiles.tools.teenyhttpd.model.Headers;
 import net.jonathangiles.tools.teenyhttpd.model.Method;
 import net.jonathangiles.tools.teenyhttpd.model.Request;
@@ -10,9 +11,17 @@ import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.FileNameMap;
 import java.net.URLConnection;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class FileResponse extends ResponseBase {
     public static final File DEFAULT_WEB_ROOT;
@@ -33,25 +42,48 @@ public class FileResponse extends ResponseBase {
     static final String FILE_NOT_FOUND = "404.html";
     static final String METHOD_NOT_SUPPORTED = "not_supported.html";
 
+    /**
+     * The extension of the gzip-compressed variant of a file, which is sent in place of the file to clients that accept
+     * gzip (see {@link Precompressor}).
+     */
+    public static final String GZIP_EXTENSION = ".gz";
+
     private static final FileNameMap FILE_NAME_MAP = URLConnection.getFileNameMap();
 
-    private File fileToReturn;
+    private final FileCache cache;
+    private StaticFile fileToReturn;
+
+    // the parts of the file that were asked for, or null to send all of it, along with the head of each part when
+    // there is more than one
+    private List<ByteRange> ranges;
+    private List<byte[]> partHeads;
+    private byte[] multipartEnd;
 
     public FileResponse(final Request request) {
+        this(request, null);
+    }
+
+    /**
+     * @param request The request for the file.
+     * @param cache The cache to look files up in, or null to read them from disk for each request.
+     */
+    public FileResponse(final Request request, final FileCache cache) {
+        this.cache = cache;
         final Method method = request.getMethod();
         String path = request.getPath();
 
         fileToReturn = null;
 
         switch (method) {
-            case GET: {
+            case GET:
+            case HEAD: {
                 if (path.endsWith("/")) {
                     path += DEFAULT_FILE;
                 }
 
-                fileToReturn = getFile(path);
+                fileToReturn = lookup(path);
                 if (!fileToReturn.exists()) {
-                    fileToReturn = getFile(FILE_NOT_FOUND);
+                    fileToReturn = lookup(FILE_NOT_FOUND);
                     setStatusCode(StatusCode.NOT_FOUND);
                 } else {
                     setStatusCode(StatusCode.OK);
@@ -61,45 +93,207 @@ public class FileResponse extends ResponseBase {
             case PUT:
             case POST:
             case OPTIONS:
-            case HEAD:
             case TRACE:
             case DELETE:
             case CONNECT:
             default: {
-                fileToReturn = getFile(METHOD_NOT_SUPPORTED);
+                fileToReturn = lookup(METHOD_NOT_SUPPORTED);
                 setStatusCode(StatusCode.NOT_IMPLEMENTED);
                 break;
             }
         }
 
-        final int fileLength = (int) fileToReturn.length();
+        setHeader(Headers.CONTENT_TYPE.asHeader(fileToReturn.getContentType()));
+
+        // a precompressed variant of the file is sent instead of the file itself to clients that accept it, with the
+        // file's own content type
+        if (getStatusCode() == StatusCode.OK) {
+            final StaticFile gzipped = lookup(path + GZIP_EXTENSION);
+            if (gzipped.exists() && gzipped.lastModified() >= fileToReturn.lastModified()) {
+                setHeader(Headers.VARY.asHeader(Headers.ACCEPT_ENCODING.getKey()));
+                if (ContentCoding.isAccepted(getHeaderValue(request, Headers.ACCEPT_ENCODING), ContentCoding.GZIP)) {
+                    fileToReturn = gzipped;
+                    setHeader(Headers.CONTENT_ENCODING.asHeader(ContentCoding.GZIP.getName()));
+                }
+            }
+        }
+
+        if (getStatusCode() == StatusCode.OK) {
+            setHeader(Headers.ETAG.asHeader(fileToReturn.getEntityTag()));
+            setHeader(Headers.LAST_MODIFIED.asHeader(fileToReturn.getLastModifiedDate()));
+            if (isNotModified(request, fileToReturn)) {
+                // the client already has this version of the file, so it is only told that it is still current
+                setStatusCode(StatusCode.NOT_MODIFIED);
+                removeHeader(Headers.CONTENT_TYPE.getKey());
+                removeHeader(Headers.CONTENT_ENCODING.getKey());
+                return;
+            }
+
+            setHeader(Headers.ACCEPT_RANGES.asHeader("bytes"));
+            final String range = getHeaderValue(request, Headers.RANGE);
+            if (range != null && isRangeApplicable(request, fileToReturn)) {
+                ranges = ByteRange.parse(range, fileToReturn.length());
+                if (ranges != null) {
+                    setPartialContent();
+                    return;
+                }
+            }
+        }
+
+        setHeader(Headers.CONTENT_LENGTH.asHeader(fileToReturn.length()));
+    }
+
+    /**
+     * Sets up the response to send only the requested ranges of the file: a single range as-is, and multiple ranges as
+     * the parts of a 'multipart/byteranges' body.
+     */
+    private void setPartialContent() {
+        final long length = fileToReturn.length();
+        if (ranges.isEmpty()) {
+            setStatusCode(StatusCode.REQUESTED_RANGE_NOT_SATISFIABLE);
+            setHeader(Headers.CONTENT_RANGE.asHeader("bytes */" + length));
+            setHeader(Headers.CONTENT_LENGTH.asHeader(0));
+            return;
+        }
+
+        setStatusCode(StatusCode.PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            setHeader(Headers.CONTENT_RANGE.asHeader(ranges.get(0).toContentRange(length)));
+            setHeader(Headers.CONTENT_LENGTH.asHeader(ranges.get(0).length()));
+            return;
+        }
+
+        final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        partHeads = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            final byte[] head = ("\r\n--" + boundary + "\r\n"
+                    + Headers.CONTENT_TYPE.getKey() + ": " + fileToReturn.getContentType() + "\r\n"
+                    + Headers.CONTENT_RANGE.getKey() + ": " + range.toContentRange(length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeads.add(head);
+            contentLength += head.length + range.length();
+        }
+        multipartEnd = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += multipartEnd.length;
+
+        setHeader(Headers.CONTENT_TYPE.asHeader("multipart/byteranges; boundary=" + boundary));
+        setHeader(Headers.CONTENT_LENGTH.asHeader(contentLength));
+    }
+
+    /**
+     * Returns true if the 'Range' header of the request should be honoured: that is, unless it is conditional on an
+     * 'If-Range' header that names a different version of the file, in which case the whole file is sent.
+     */
+    private static boolean isRangeApplicable(final Request request, final StaticFile file) {
+        final String ifRange = getHeaderValue(request, Headers.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range uses the strong comparison, so weak tags never match
+            return ifRange.equals(file.getEntityTag());
+        }
+        try {
+            return ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond()
+                    == file.lastModified() / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the value of the request header, which is split on commas when it is parsed, or null if there is none.
+     */
+    private static String getHeaderValue(final Request request, final Headers header) {
+        return request.getHeader(header).map(h -> String.join(", ", h.getValues())).orElse(null);
+    }
+
+    /**
+     * Returns true if the request is conditional on the file having changed since the client last fetched it, and it
+     * has not. As RFC 7232 requires, 'If-Modified-Since' is only considered when there is no 'If-None-Match' header.
+     */
+    private static boolean isNotModified(final Request request, final StaticFile file) {
+        final Optional<Header> ifNoneMatch = request.getHeader(Headers.IF_NONE_MATCH);
+        if (ifNoneMatch.isPresent()) {
+            for (String tag : ifNoneMatch.get().getValues()) {
+                // If-None-Match uses the weak comparison, under which a weak tag matches its strong counterpart
+                tag = tag.trim();
+                if (tag.equals("*") || stripWeakness(tag).equals(stripWeakness(file.getEntityTag()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        final Optional<Header> ifModifiedSince = request.getHeader(Headers.IF_MODIFIED_SINCE);
+        if (ifModifiedSince.isPresent()) {
+            try {
+                // the header is split on commas when it is parsed, and dates have one after the day of the week
+                final long since = ZonedDateTime.parse(String.join(", ", ifModifiedSince.get().getValues()),
+                        DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                return since <= System.currentTimeMillis() / 1000 && file.lastModified() / 1000 <= since;
+            } catch (DateTimeParseException e) {
+                // an invalid date is ignored
+            }
+        }
+        return false;
+    }
 
-        setHeader(Headers.CONTENT_TYPE.asHeader(getContentType(fileToReturn)));
-        setHeader(Headers.CONTENT_LENGTH.asHeader(fileLength));
+    private static String stripWeakness(final String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
     }
 
     @Override
     public void writeBody(final BufferedOutputStream dataOut) throws IOException {
-        Files.copy(fileToReturn.toPath(), dataOut);
+        if (ranges == null) {
+            fileToReturn.writeTo(dataOut);
+        } else if (partHeads == null) {
+            for (ByteRange range : ranges) {
+                fileToReturn.writeTo(dataOut, range.getFirst(), range.length());
+            }
+        } else {
+            for (int i = 0; i < ranges.size(); i++) {
+                dataOut.write(partHeads.get(i));
+                fileToReturn.writeTo(dataOut, ranges.get(i).getFirst(), ranges.get(i).length());
+            }
+            dataOut.write(multipartEnd);
+        }
         dataOut.flush();
     }
 
+    private StaticFile lookup(final String filename) {
+        final File file = getFile(filename);
+        try {
+            return cache == null ? StaticFile.load(file) : cache.get(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     // return supported MIME Types
-    private String getContentType(final File file) {
-        final String ext = file.getName().substring(file.getName().lastIndexOf(".") + 1);
+    static String contentTypeOf(final File file) {
+        final String contentType = contentTypeOf(file.getName());
+        if (contentType != null) {
+            return contentType;
+        }
+
+        System.err.println("Unable to determine content type for file " + file.getName());;
+        return "text/plain";
+    }
+
+    /**
+     * Returns the content type of a file with the given name, or null if it can't be determined from the extension.
+     */
+    static String contentTypeOf(final String fileName) {
+        final String ext = fileName.substring(fileName.lastIndexOf(".") + 1);
 
         ContentType contentType = ContentType.fromFileExtension(ext);
         if (contentType != null) {
             return contentType.getHeaderValue();
         }
 
-        String contentTypeString = FILE_NAME_MAP.getContentTypeFor(file.getName());
-        if (contentTypeString != null) {
-            return contentTypeString;
-        }
-
-        System.err.println("Unable to determine content type for file " + file.getName());;
-        return "text/plain";
+        return FILE_NAME_MAP.getContentTypeFor(fileName);
     }
 
     /**
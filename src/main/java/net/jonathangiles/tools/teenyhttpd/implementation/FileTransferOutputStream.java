@@ -0,0 +1,24 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by the output streams of transports that can send a region of a file straight to the client with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which on most operating systems
+ * (such as with sendfile on Linux) means the bytes are never copied into the JVM at all. The same transports can write
+ * byte buffers (such as memory-mapped files) without them first being copied into a heap array.
+ */
+public interface FileTransferOutputStream {
+
+    /**
+     * Sends the given number of bytes of the file, starting at the given position, to the client.
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Writes all remaining bytes of the given buffers to the client, as a single gathering write where possible.
+     */
+    void write(ByteBuffer... srcs) throws IOException;
+}
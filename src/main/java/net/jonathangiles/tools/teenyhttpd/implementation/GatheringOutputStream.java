@@ -0,0 +1,15 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.IOException;
+
+/**
+ * Implemented by the output streams of transports that can send two byte ranges to the client in a single (gathering)
+ * write, so that a buffered response head and a large body that follows it do not go out as separate writes.
+ */
+public interface GatheringOutputStream {
+
+    /**
+     * Writes the first byte range followed by the second, as a single write where possible.
+     */
+    void write(byte[] first, int firstOff, int firstLen, byte[] second, int secondOff, int secondLen) throws IOException;
+}
@@ -0,0 +1,150 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the header blocks that a client sends on an HTTP/2 connection (RFC 7541). The decoder keeps the dynamic
+ * table that the client's encoder adds fields to, so every block received on the connection has to be decoded in
+ * order, even those of streams that are going to be refused. Names and values are returned as strings of octets, one
+ * char per byte.
+ */
+final class HpackDecoder {
+
+    /**
+     * Receives the fields of a header block as they are decoded.
+     */
+    @FunctionalInterface
+    interface FieldConsumer {
+        void accept(String name, String value);
+    }
+
+    private final HpackTable table = new HpackTable();
+    // the largest dynamic table that the client's encoder may use, as we advertised with SETTINGS_HEADER_TABLE_SIZE
+    private final int maxTableSize;
+
+    private byte[] block;
+    private int position;
+    private int limit;
+
+    HpackDecoder(final int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        table.setMaxSize(maxTableSize);
+    }
+
+    /**
+     * Decodes a whole header block, passing each of its fields to the given consumer in order.
+     */
+    void decode(final byte[] block, final int off, final int len, final FieldConsumer fields) throws Http2Exception {
+        this.block = block;
+        this.position = off;
+        this.limit = off + len;
+        try {
+            boolean isFirstField = true;
+            while (position < limit) {
+                final int b = block[position] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    // an indexed field
+                    final int index = readInteger(7);
+                    final String name = table.getName(index);
+                    if (name == null) {
+                        throw error("Invalid header table index " + index);
+                    }
+                    fields.accept(name, table.getValue(index));
+                } else if ((b & 0x40) != 0) {
+                    // a literal field that is added to the dynamic table
+                    final String name = readName(6);
+                    final String value = readString();
+                    table.add(name, value);
+                    fields.accept(name, value);
+                } else if ((b & 0x20) != 0) {
+                    // a dynamic table size update, which may only come before the fields of the block
+                    if (!isFirstField) {
+                        throw error("A dynamic table size update came after a header field");
+                    }
+                    final int size = readInteger(5);
+                    if (size > maxTableSize) {
+                        throw error("The dynamic table size " + size + " is larger than allowed");
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    // a literal field that is not added to the dynamic table (whether or not it may ever be)
+                    final String name = readName(4);
+                    fields.accept(name, readString());
+                }
+                isFirstField = false;
+            }
+        } finally {
+            this.block = null;
+        }
+    }
+
+    private String readName(final int prefixBits) throws Http2Exception {
+        final int index = readInteger(prefixBits);
+        if (index == 0) {
+            return readString();
+        }
+        final String name = table.getName(index);
+        if (name == null) {
+            throw error("Invalid header table index " + index);
+        }
+        return name;
+    }
+
+    private String readString() throws Http2Exception {
+        if (position == limit) {
+            throw error("The header block ended in the middle of a field");
+        }
+        final boolean isHuffman = (block[position] & 0x80) != 0;
+        final int length = readInteger(7);
+        if (length > limit - position) {
+            throw error("The header block ended in the middle of a string");
+        }
+
+        final int start = position;
+        position += length;
+        if (!isHuffman) {
+            return new String(block, start, length, StandardCharsets.ISO_8859_1);
+        }
+        final byte[] decoded = Huffman.decode(block, start, length);
+        if (decoded == null) {
+            throw error("Invalid Huffman-encoded string");
+        }
+        return new String(decoded, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads an integer whose first part is in the given number of low bits of the current byte (RFC 7541, section
+     * 5.1).
+     */
+    private int readInteger(final int prefixBits) throws Http2Exception {
+        final int prefixMax = (1 << prefixBits) - 1;
+        int value = block[position++] & prefixMax;
+        if (value < prefixMax) {
+            return value;
+        }
+
+        int shift = 0;
+        while (true) {
+            if (position == limit) {
+                throw error("The header block ended in the middle of an integer");
+            }
+            final int b = block[position++] & 0xFF;
+            if (shift > 21 && (b & 0x7F) > 0) {
+                throw error("An integer in the header block is too large");
+            }
+            value += (b & 0x7F) << shift;
+            if (value < 0) {
+                throw error("An integer in the header block is too large");
+            }
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static Http2Exception error(final String message) {
+        return new Http2Exception(Http2Exception.COMPRESSION_ERROR, message);
+    }
+}
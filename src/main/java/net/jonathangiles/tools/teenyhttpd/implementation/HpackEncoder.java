@@ -0,0 +1,131 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Encodes the header blocks of the responses sent on an HTTP/2 connection (RFC 7541). Fields that are already in the
+ * header table are sent as just their index, and most others are added to the dynamic table as they are sent, so that
+ * the headers that every response repeats (such as the content type or the server name) shrink to a byte or two after
+ * the first response. Strings are Huffman-encoded when that makes them shorter.
+ *
+ * <p>The client decodes blocks in the order they are sent, so blocks must be encoded in the same order as they are
+ * written to the connection.</p>
+ */
+final class HpackEncoder {
+    // fields whose values are rarely repeated, and would only push more useful fields out of the dynamic table
+    private static final Set<String> UNINDEXED_NAMES = Set.of(
+            "content-length", "content-range", "date", "etag", "last-modified", "location", "set-cookie");
+
+    private final HpackTable table = new HpackTable();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+    // the smallest and the latest maximum table size since the last block, which the client is told of at the start of
+    // the next block (so that it evicts the same fields that we did), or -1 if there has been no change
+    private int minPendingMaxSize = -1;
+    private int pendingMaxSize = -1;
+
+    /**
+     * Sets the maximum size of the dynamic table, which is the smaller of what the client's decoder allows (with
+     * SETTINGS_HEADER_TABLE_SIZE) and the default size, as larger tables are not worth the memory on the server.
+     */
+    void setMaxTableSize(final int clientMaxSize) {
+        final int maxSize = Math.min(clientMaxSize, HpackTable.DEFAULT_MAX_SIZE);
+        if (maxSize == table.getMaxSize() && pendingMaxSize < 0) {
+            return;
+        }
+        minPendingMaxSize = minPendingMaxSize < 0 ? maxSize : Math.min(minPendingMaxSize, maxSize);
+        pendingMaxSize = maxSize;
+        table.setMaxSize(maxSize);
+    }
+
+    /**
+     * Starts a new header block, discarding anything that was encoded but not taken with {@link #endBlock()}.
+     */
+    void beginBlock() {
+        out.reset();
+        if (pendingMaxSize >= 0) {
+            if (minPendingMaxSize < pendingMaxSize) {
+                writeInteger(0x20, 5, minPendingMaxSize);
+            }
+            writeInteger(0x20, 5, pendingMaxSize);
+            minPendingMaxSize = -1;
+            pendingMaxSize = -1;
+        }
+    }
+
+    /**
+     * Encodes a field, whose name must already be in lower case.
+     */
+    void encode(final String name, final String value) {
+        final String octets = toOctets(value);
+        final int index = table.indexOf(name, octets);
+        if (index > 0) {
+            writeInteger(0x80, 7, index);
+            return;
+        }
+
+        final int nameIndex = table.indexOfName(name);
+        if (UNINDEXED_NAMES.contains(name)) {
+            writeInteger(0x00, 4, nameIndex);
+        } else {
+            writeInteger(0x40, 6, nameIndex);
+            table.add(name, octets);
+        }
+        if (nameIndex == 0) {
+            writeString(name);
+        }
+        writeString(octets);
+    }
+
+    /**
+     * Returns the encoded block.
+     */
+    byte[] endBlock() {
+        return out.toByteArray();
+    }
+
+    private void writeString(final String octets) {
+        final byte[] bytes = octets.getBytes(StandardCharsets.ISO_8859_1);
+        final int huffmanLength = Huffman.encodedLength(bytes);
+        if (huffmanLength < bytes.length) {
+            writeInteger(0x80, 7, huffmanLength);
+            Huffman.encode(bytes, out);
+        } else {
+            writeInteger(0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Writes an integer whose first part is in the given number of low bits of a byte that starts with the given
+     * pattern (RFC 7541, section 5.1).
+     */
+    private void writeInteger(final int pattern, final int prefixBits, int value) {
+        final int prefixMax = (1 << prefixBits) - 1;
+        if (value < prefixMax) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | prefixMax);
+        value -= prefixMax;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Returns the string as octets, one char per byte, encoding it as UTF-8 if it is not all ASCII.
+     */
+    private static String toOctets(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return new String(s.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+            }
+        }
+        return s;
+    }
+}
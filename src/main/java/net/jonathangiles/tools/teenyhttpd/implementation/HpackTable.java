@@ -0,0 +1,225 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The header table of one direction of an HTTP/2 connection (RFC 7541, section 2.3): the static table that is the same
+ * for every connection, followed by the dynamic table of fields that the sender has asked to be remembered. The
+ * dynamic table is a ring buffer of the most recently added fields first, which evicts the oldest fields whenever the
+ * size of its fields (each counted as the length of its name and value plus 32) would exceed its maximum size.
+ */
+final class HpackTable {
+    static final int DEFAULT_MAX_SIZE = 4096;
+
+    private static final int ENTRY_OVERHEAD = 32;
+
+    static final String[][] STATIC_TABLE = {
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" }
+    };
+
+    // the lowest static index of each name, and of each name and value pair, for the encoder to look up
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    // the dynamic table, where 'head' is the slot of the most recently added field
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    private int head;
+    private int count;
+    private int size;
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    /**
+     * Returns the number of fields in the dynamic table.
+     */
+    int length() {
+        return count;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the name of the field at the given index of the combined table (starting at 1), or null if there is no
+     * such field.
+     */
+    String getName(final int index) {
+        if (index >= 1 && index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1][0];
+        }
+        final int slot = slot(index);
+        return slot < 0 ? null : names[slot];
+    }
+
+    /**
+     * Returns the value of the field at the given index of the combined table, or null if there is no such field.
+     */
+    String getValue(final int index) {
+        if (index >= 1 && index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1][1];
+        }
+        final int slot = slot(index);
+        return slot < 0 ? null : values[slot];
+    }
+
+    private int slot(final int index) {
+        final int dynamicIndex = index - STATIC_TABLE.length - 1;
+        if (dynamicIndex < 0 || dynamicIndex >= count) {
+            return -1;
+        }
+        return (head + dynamicIndex) % names.length;
+    }
+
+    /**
+     * Returns the index of a field with the given name and value, or 0 if there is none.
+     */
+    int indexOf(final String name, final String value) {
+        final Integer index = STATIC_FIELDS.get(name + '\0' + value);
+        if (index != null) {
+            return index;
+        }
+        for (int i = 0; i < count; i++) {
+            final int slot = (head + i) % names.length;
+            if (names[slot].equals(name) && values[slot].equals(value)) {
+                return STATIC_TABLE.length + 1 + i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the index of a field with the given name, or 0 if there is none.
+     */
+    int indexOfName(final String name) {
+        final Integer index = STATIC_NAMES.get(name);
+        if (index != null) {
+            return index;
+        }
+        for (int i = 0; i < count; i++) {
+            if (names[(head + i) % names.length].equals(name)) {
+                return STATIC_TABLE.length + 1 + i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a field to the dynamic table, evicting as many of the oldest fields as it takes to make room for it. A field
+     * that is larger than the table itself empties the table, and is not added.
+     */
+    void add(final String name, final String value) {
+        final int entrySize = sizeOf(name, value);
+        evict(maxSize - entrySize);
+        if (entrySize > maxSize) {
+            return;
+        }
+
+        if (count == names.length) {
+            final String[] newNames = new String[names.length * 2];
+            final String[] newValues = new String[values.length * 2];
+            for (int i = 0; i < count; i++) {
+                newNames[i] = names[(head + i) % names.length];
+                newValues[i] = values[(head + i) % values.length];
+            }
+            names = newNames;
+            values = newValues;
+            head = 0;
+        }
+        head = (head - 1 + names.length) % names.length;
+        names[head] = name;
+        values[head] = value;
+        count++;
+        size += entrySize;
+    }
+
+    /**
+     * Changes the maximum size of the dynamic table, evicting the oldest fields until it fits.
+     */
+    void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    private void evict(final int targetSize) {
+        while (count > 0 && size > targetSize) {
+            final int slot = (head + count - 1) % names.length;
+            size -= sizeOf(names[slot], values[slot]);
+            names[slot] = null;
+            values[slot] = null;
+            count--;
+        }
+    }
+
+    private static int sizeOf(final String name, final String value) {
+        // header strings are octets, which we hold one to a char
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+}
@@ -0,0 +1,850 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.Header;
+import net.jonathangiles.tools.teenyhttpd.model.Method;
+import net.jonathangiles.tools.teenyhttpd.model.QueryParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A connection that speaks HTTP/2 (RFC 9113) in cleartext - either because the client started it with the HTTP/2
+ * connection preface, knowing that we speak it, or because it asked to upgrade an HTTP/1.1 connection with
+ * {@code Upgrade: h2c}.
+ *
+ * <p>The thread that switched the connection to HTTP/2 goes on to read frames from it for as long as it stays open,
+ * decoding the head of each request as it arrives and handing the new stream to the executor, so that the requests
+ * on a connection are served concurrently. Request bodies are passed on to the streams that they belong to as they
+ * arrive. Worker threads write their responses straight to the connection, a frame at a time, so the frames of
+ * different responses are interleaved; each frame is written whole, and the header blocks of responses are encoded
+ * in the same order as they are written, as the client's decoder requires.</p>
+ *
+ * <p>Both directions are flow-controlled: a response waits whenever the client has not given it room to send any
+ * more, and the client is given more room for a request body as the request handler reads it, so a slow handler
+ * holds back only its own stream. We only ever send frames of the default maximum size, which is also the most we
+ * accept.</p>
+ */
+public final class Http2Connection {
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int MAX_FRAME_SIZE = 16384;
+    static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final long WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // the first line of the preface, which is read as if it were a request line before we know it is HTTP/2
+    private static final int PREFACE_REQUEST_LINE_LENGTH = "PRI * HTTP/2.0\r\n".length();
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private final ClientConnection connection;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Executor executor;
+    private final Consumer<Http2Stream> streamHandler;
+    private final long maxRequestBodySize;
+
+    // the streams that have not ended yet, by id
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+
+    // only used by the thread that reads the connection
+    private final HpackDecoder decoder = new HpackDecoder(HpackTable.DEFAULT_MAX_SIZE);
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int headerBlockStreamId;
+    private boolean headerBlockEndsStream;
+    private int receiveWindow = DEFAULT_WINDOW_SIZE;
+    private int unacknowledged;
+
+    // the highest stream id that the client has used, which is written by the reading thread
+    private volatile int lastStreamId;
+
+    // frames are assembled in the write buffer and written whole, under the write lock. A lock rather than a monitor,
+    // so that a virtual thread waiting to write does not pin its carrier thread.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final HpackEncoder encoder = new HpackEncoder();
+    private byte[] writeBuffer = new byte[2 * (FRAME_HEADER_LENGTH + MAX_FRAME_SIZE)];
+    private int writeCount;
+
+    // how much more we may send on the connection as a whole, and how much each new stream starts with, guarded by the
+    // flow-control lock (which is never held while taking the write lock)
+    private final ReentrantLock flowLock = new ReentrantLock();
+    private final Condition windowOpened = flowLock.newCondition();
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+
+    // once either side has sent GOAWAY, no new streams are started, and the connection closes when the last ends
+    private volatile boolean isGoingAway;
+    private volatile boolean isClosed;
+
+    /**
+     * @param connection The connection, from which nothing has been read beyond the request that started HTTP/2.
+     * @param executor The executor that streams are served on.
+     * @param streamHandler Serves a stream, writing its response before returning (or handing it to something that
+     *                      will).
+     * @param maxRequestBodySize The largest request body that is accepted.
+     */
+    public Http2Connection(final ClientConnection connection, final Executor executor,
+                           final Consumer<Http2Stream> streamHandler, final long maxRequestBodySize) throws IOException {
+        this.connection = connection;
+        this.in = connection.getInputStream();
+        this.out = connection.getOutputStream();
+        this.executor = executor;
+        this.streamHandler = streamHandler;
+        this.maxRequestBodySize = maxRequestBodySize;
+    }
+
+    /**
+     * Decodes the value of an 'HTTP2-Settings' request header, returning null if it is not a valid SETTINGS payload (in
+     * which case the connection should not be upgraded).
+     */
+    public static byte[] decodeSettings(final String value) {
+        try {
+            final byte[] settings = Base64.getUrlDecoder().decode(value.trim());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Serves a connection that the client started with the HTTP/2 connection preface, the first line of which has been
+     * read already (as if it were a request line). This returns once the connection has closed.
+     */
+    public void serve() throws IOException {
+        run(PREFACE_REQUEST_LINE_LENGTH, null, null);
+    }
+
+    /**
+     * Serves a connection that has been upgraded from HTTP/1.1, once the '101 Switching Protocols' response has been
+     * sent. The request that asked for the upgrade becomes stream 1, and is answered over HTTP/2. This returns once the
+     * connection has closed.
+     *
+     * @param settings The decoded 'HTTP2-Settings' header of the request (see {@link #decodeSettings(String)}).
+     */
+    public void serveUpgrade(final byte[] settings, final Method method, final String path,
+                             final QueryParams queryParams, final List<Header> headers) throws IOException {
+        run(0, settings, new Http2Stream(this, method, path, queryParams, headers));
+    }
+
+    /**
+     * Tells the client that no new streams will be served, and closes the connection once the streams that have
+     * already started have ended. This is called when the server stops.
+     */
+    public void shutdown() {
+        isGoingAway = true;
+        try {
+            writeGoAway(Http2Exception.NO_ERROR);
+        } catch (IOException e) {
+            // the client has gone away already
+        }
+        if (streams.isEmpty()) {
+            close();
+        }
+    }
+
+    private void run(final int prefaceOffset, final byte[] upgradeSettings, final Http2Stream upgradeStream)
+            throws IOException {
+        try {
+            // our half of the preface is our settings, where we only say how many streams the client may open at once
+            final byte[] settings = new byte[6];
+            putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+
+            if (upgradeStream != null) {
+                // the upgrade request's settings are acknowledged by the '101 Switching Protocols' response
+                applySettings(upgradeSettings, upgradeSettings.length);
+                lastStreamId = 1;
+                startStream(upgradeStream);
+            }
+
+            readPreface(prefaceOffset);
+            if (!readFrameHeader() || frameHeader[3] != SETTINGS) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "The connection preface did not end with SETTINGS");
+            }
+            do {
+                readFrame();
+                if (isGoingAway && streams.isEmpty()) {
+                    return;
+                }
+            } while (readFrameHeader());
+        } catch (Http2Exception e) {
+            // a stream error that could not be confined to the stream ends the connection as well
+            if (!isClosed) {
+                writeGoAway(e.getErrorCode());
+            }
+        } catch (SocketTimeoutException e) {
+            // the connection has been idle for the idle timeout
+            writeGoAway(Http2Exception.NO_ERROR);
+        } catch (IOException e) {
+            // the connection is closed from under us once the last stream ends after GOAWAY
+            if (!isClosed) {
+                throw e;
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void readPreface(final int offset) throws IOException {
+        final byte[] preface = new byte[PREFACE.length - offset];
+        if (!readFully(preface, preface.length, true)
+                || !Arrays.equals(preface, Arrays.copyOfRange(PREFACE, offset, PREFACE.length))) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    /**
+     * Reads the header of the next frame, returning false if the client has closed the connection.
+     */
+    private boolean readFrameHeader() throws IOException {
+        return readFully(frameHeader, FRAME_HEADER_LENGTH, true);
+    }
+
+    /**
+     * Reads the payload of the frame whose header has been read, and acts on it.
+     */
+    private void readFrame() throws IOException {
+        final int length = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+        final int type = frameHeader[3] & 0xFF;
+        final int flags = frameHeader[4] & 0xFF;
+        final int streamId = getInt(frameHeader, 5) & 0x7FFFFFFF;
+        if (length > MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "A frame was larger than the maximum frame size");
+        }
+        if (!readFully(payload, length, false)) {
+            throw new EOFException();
+        }
+
+        if (headerBlockStreamId != 0 && (type != CONTINUATION || streamId != headerBlockStreamId)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "A header block was interrupted by another frame");
+        }
+
+        try {
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, length);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, length);
+                    break;
+                case CONTINUATION:
+                    if (headerBlockStreamId == 0) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                    }
+                    appendHeaderBlock(payload, 0, length, flags);
+                    break;
+                case PRIORITY:
+                    // we serve streams in the order they arrive, so priorities are only checked for being well-formed
+                    if (streamId == 0) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                    } else if (length != 5) {
+                        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "Invalid PRIORITY frame");
+                    }
+                    break;
+                case RST_STREAM:
+                    onResetStream(streamId, length);
+                    break;
+                case SETTINGS:
+                    onSettings(streamId, flags, length);
+                    break;
+                case PING:
+                    if (streamId != 0) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+                    } else if (length != 8) {
+                        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid PING frame");
+                    } else if ((flags & FLAG_ACK) == 0) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                    }
+                    break;
+                case GOAWAY:
+                    // the client will not start any more streams, and we finish serving those it already has
+                    if (streamId != 0) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+                    }
+                    isGoingAway = true;
+                    break;
+                case WINDOW_UPDATE:
+                    onWindowUpdate(streamId, length);
+                    break;
+                case PUSH_PROMISE:
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Clients can not push streams");
+                default:
+                    // frames of unknown types are ignored
+                    break;
+            }
+        } catch (Http2Exception e) {
+            if (e.getStreamId() == 0) {
+                throw e;
+            }
+            final Http2Stream stream = streams.get(e.getStreamId());
+            if (stream != null) {
+                resetStream(stream, e.getErrorCode());
+            } else {
+                writeResetStream(e.getStreamId(), e.getErrorCode());
+            }
+        }
+    }
+
+    private void onData(final int streamId, final int flags, final int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        final int padding = padding(flags, length, 0);
+
+        // the connection window is given back as soon as DATA arrives, as the window of each stream is what bounds how
+        // much of a body we hold before it is read
+        receiveWindow -= length;
+        if (receiveWindow < 0) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "The connection's flow-control window was exceeded");
+        }
+        unacknowledged += length;
+        if (unacknowledged >= DEFAULT_WINDOW_SIZE / 2) {
+            writeWindowUpdate(0, unacknowledged);
+            receiveWindow += unacknowledged;
+            unacknowledged = 0;
+        }
+
+        final Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on a stream that has not started");
+            }
+            // the client sent this before it knew that the stream had ended
+            return;
+        }
+        final int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        stream.onData(payload, offset, length - offset - padding, length, (flags & FLAG_END_STREAM) != 0);
+    }
+
+    private void onHeaders(final int streamId, final int flags, final int length) throws IOException {
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on an invalid stream " + streamId);
+        }
+        final int priorityLength = (flags & FLAG_PRIORITY) != 0 ? 5 : 0;
+        final int padding = padding(flags, length, priorityLength);
+        final int offset = ((flags & FLAG_PADDED) != 0 ? 1 : 0) + priorityLength;
+
+        headerBlock.reset();
+        headerBlockStreamId = streamId;
+        headerBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+        appendHeaderBlock(payload, offset, length - offset - padding, flags);
+    }
+
+    private void appendHeaderBlock(final byte[] b, final int off, final int len, final int flags) throws IOException {
+        // the block is limited in size while it is compressed, as well as once it has been decoded
+        if (headerBlock.size() + len > MAX_HEADER_LIST_SIZE) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "A header block was too large");
+        }
+        headerBlock.write(b, off, len);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            final int streamId = headerBlockStreamId;
+            headerBlockStreamId = 0;
+            onHeaderBlock(streamId, headerBlock.toByteArray(), headerBlockEndsStream);
+        }
+    }
+
+    private void onHeaderBlock(final int streamId, final byte[] block, final boolean endStream) throws IOException {
+        final Http2Stream existing = streams.get(streamId);
+        if (existing != null || streamId <= lastStreamId) {
+            // trailers, which are decoded to keep the header table in step with the client's, and then ignored
+            decoder.decode(block, 0, block.length, (name, value) -> { });
+            if (existing != null && !endStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers must end the stream");
+            } else if (existing != null) {
+                existing.onEndOfRequest();
+            }
+            return;
+        }
+
+        lastStreamId = streamId;
+        final Http2Stream stream = new Http2Stream(this, streamId, maxRequestBodySize);
+        decoder.decode(block, 0, block.length, stream::addField);
+        stream.finishHeaders();
+
+        if (isGoingAway || streams.size() >= MAX_CONCURRENT_STREAMS) {
+            writeResetStream(streamId, Http2Exception.REFUSED_STREAM);
+            return;
+        }
+        startStream(stream);
+        if (endStream) {
+            stream.onEndOfRequest();
+        }
+    }
+
+    private void startStream(final Http2Stream stream) throws IOException {
+        flowLock.lock();
+        try {
+            stream.sendWindow = initialSendWindow;
+        } finally {
+            flowLock.unlock();
+        }
+        streams.put(stream.getId(), stream);
+        try {
+            executor.execute(() -> streamHandler.accept(stream));
+        } catch (RejectedExecutionException e) {
+            resetStream(stream, Http2Exception.REFUSED_STREAM);
+        }
+    }
+
+    private void onResetStream(final int streamId, final int length) throws IOException {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on a stream that has not started");
+        } else if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+        }
+        final Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.onReset();
+            onStreamClosed(stream);
+            signalWindowOpened();
+        }
+    }
+
+    private void onSettings(final int streamId, final int flags, final int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+        } else if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        } else if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        }
+        applySettings(payload, length);
+        writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+    }
+
+    private void applySettings(final byte[] settings, final int length) throws IOException {
+        for (int i = 0; i < length; i += 6) {
+            final int id = ((settings[i] & 0xFF) << 8) | (settings[i + 1] & 0xFF);
+            final int value = getInt(settings, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    // we never push, so all that matters is that the value is valid
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    setInitialSendWindow(value);
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    // we never send frames larger than the default, which every client accepts
+                    if (value < MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                case SETTINGS_MAX_HEADER_LIST_SIZE:
+                default:
+                    // these only limit what we would send if we pushed streams, or large response heads
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Changes the window that new streams start with, adjusting the windows of the streams that have already started by
+     * the difference (which may leave them negative, until the client gives them more room).
+     */
+    private void setInitialSendWindow(final int value) throws Http2Exception {
+        flowLock.lock();
+        try {
+            final int delta = value - initialSendWindow;
+            for (Http2Stream stream : streams.values()) {
+                if (stream.sendWindow + delta > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "A stream's flow-control window overflowed");
+                }
+                stream.sendWindow += delta;
+            }
+            initialSendWindow = value;
+            windowOpened.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    private void onWindowUpdate(final int streamId, final int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        final int increment = getInt(payload, 0) & 0x7FFFFFFF;
+        if (increment == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "A window was increased by nothing");
+        }
+
+        flowLock.lock();
+        try {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "The connection's flow-control window overflowed");
+                }
+            } else {
+                final Http2Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    // the stream has ended, or not started (which the client would be wrong to do, but is harmless)
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "A stream's flow-control window overflowed");
+                }
+            }
+            windowOpened.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the length of the padding of a DATA or HEADERS frame (which does not include the byte that gives the
+     * length), checking that it fits in the frame along with any fields before it.
+     */
+    private int padding(final int flags, final int length, final int fieldsLength) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            if (fieldsLength > length) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "A frame was too short for its fields");
+            }
+            return 0;
+        }
+        if (length < 1) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "A padded frame had no padding length");
+        }
+        final int padding = payload[0] & 0xFF;
+        if (1 + fieldsLength + padding > length) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "A frame's padding was longer than the frame");
+        }
+        return padding;
+    }
+
+    /**
+     * Reads exactly the given number of bytes into the buffer, returning false if the client closed the connection
+     * before sending any of them. A read that times out carries on waiting if any streams are still being served (or
+     * a frame is part way through arriving), as the client has nothing to send while it waits for their responses.
+     */
+    private boolean readFully(final byte[] b, final int len, final boolean isFrameStart) throws IOException {
+        int read = 0;
+        while (read < len) {
+            final int n;
+            try {
+                n = in.read(b, read, len - read);
+            } catch (SocketTimeoutException e) {
+                if (read == 0 && isFrameStart && streams.isEmpty()) {
+                    throw e;
+                }
+                continue;
+            }
+            if (n < 0) {
+                if (read == 0 && isFrameStart) {
+                    return false;
+                }
+                throw new EOFException("The client closed the connection part way through a frame");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    /**
+     * Called when a stream has ended in both directions (or been reset), so that it no longer counts towards the
+     * streams that the client may have open at once.
+     */
+    void onStreamClosed(final Http2Stream stream) {
+        streams.remove(stream.getId());
+        if (isGoingAway && streams.isEmpty()) {
+            close();
+        }
+    }
+
+    /**
+     * Resets the stream (unless it has already ended), telling the client with the given error code.
+     */
+    void resetStream(final Http2Stream stream, final int errorCode) {
+        if (stream.onReset()) {
+            try {
+                writeResetStream(stream.getId(), errorCode);
+            } catch (IOException e) {
+                // the connection has closed, which resets every stream anyway
+            }
+        }
+        onStreamClosed(stream);
+        signalWindowOpened();
+    }
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Sends the head of a response, followed in the same write by as much of the given start of the body as the
+     * flow-control windows have room for, returning the number of bytes of the body that were sent. The stream is
+     * ended by the head if there is no body and 'endStream' is true, or by the body if all of it was sent.
+     */
+    int writeHeaders(final Http2Stream stream, final int status, final List<Header> headers,
+                     final byte[] body, final int off, final int len, final boolean endStream) throws IOException {
+        writeLock.lock();
+        try {
+            checkOpen(stream);
+            encoder.beginBlock();
+            encoder.encode(":status", Integer.toString(status));
+            encoder.encode("server", ResponseHead.SERVER_NAME);
+            encoder.encode("date", ResponseHead.currentDate());
+            for (Header header : headers) {
+                final String name = header.getKey().toLowerCase(Locale.ROOT);
+                if (!Http2Stream.CONNECTION_HEADERS.contains(name)) {
+                    encoder.encode(name, String.join(", ", header.getValues()));
+                }
+            }
+            final byte[] block = encoder.endBlock();
+
+            // a long head is continued in as many frames as it takes
+            int position = 0;
+            int type = HEADERS;
+            do {
+                final int fragment = Math.min(block.length - position, MAX_FRAME_SIZE);
+                final boolean isLast = position + fragment == block.length;
+                appendFrame(type, (isLast ? FLAG_END_HEADERS : 0) | (type == HEADERS && endStream && len == 0 ? FLAG_END_STREAM : 0),
+                        stream.getId(), block, position, fragment);
+                position += fragment;
+                type = CONTINUATION;
+            } while (position < block.length);
+
+            final int sent = len == 0 ? 0 : takeSendWindow(stream, Math.min(len, MAX_FRAME_SIZE), false);
+            if (sent > 0) {
+                appendFrame(DATA, endStream && sent == len ? FLAG_END_STREAM : 0, stream.getId(), body, off, sent);
+            }
+            flushFrames();
+            return sent;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends part of a response body, in as many frames as it takes, waiting whenever the flow-control windows have no
+     * room for more. An empty body may be sent to end the stream.
+     */
+    void writeData(final Http2Stream stream, final byte[] b, int off, int len, final boolean endStream)
+            throws IOException {
+        do {
+            final int n = len == 0 ? 0 : takeSendWindow(stream, Math.min(len, MAX_FRAME_SIZE), true);
+            writeFrame(stream, DATA, endStream && n == len ? FLAG_END_STREAM : 0, b, off, n);
+            off += n;
+            len -= n;
+        } while (len > 0);
+    }
+
+    void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+        final byte[] frame = new byte[4];
+        putInt(frame, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, frame, 0, 4);
+    }
+
+    private void writeResetStream(final int streamId, final int errorCode) throws IOException {
+        final byte[] frame = new byte[4];
+        putInt(frame, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, frame, 0, 4);
+    }
+
+    private void writeGoAway(final int errorCode) throws IOException {
+        isGoingAway = true;
+        final byte[] frame = new byte[8];
+        putInt(frame, 0, lastStreamId);
+        putInt(frame, 4, errorCode);
+        writeFrame(GOAWAY, 0, 0, frame, 0, 8);
+    }
+
+    /**
+     * Takes up to the given number of bytes from the send windows of the connection and the stream, returning how many
+     * were taken. If the windows are closed, this either waits for the client to open them, or returns zero.
+     */
+    private int takeSendWindow(final Http2Stream stream, final int wanted, final boolean wait) throws IOException {
+        flowLock.lock();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MILLIS);
+            while (true) {
+                checkOpen(stream);
+                final int n = (int) Math.min(wanted, Math.min(sendWindow, stream.sendWindow));
+                if (n > 0) {
+                    sendWindow -= n;
+                    stream.sendWindow -= n;
+                    return n;
+                } else if (!wait) {
+                    return 0;
+                } else if (remainingNanos <= 0) {
+                    throw new IOException("Timed out waiting for the client to accept more of the response");
+                }
+                try {
+                    remainingNanos = windowOpened.awaitNanos(remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the client to accept more of the response", e);
+                }
+            }
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    private void signalWindowOpened() {
+        flowLock.lock();
+        try {
+            windowOpened.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    private void checkOpen(final Http2Stream stream) throws IOException {
+        if (isClosed) {
+            throw new IOException("Connection closed");
+        } else if (stream != null && stream.isReset()) {
+            throw new IOException("The stream was reset");
+        }
+    }
+
+    private void writeFrame(final int type, final int flags, final int streamId, final byte[] b, final int off,
+                            final int len) throws IOException {
+        writeLock.lock();
+        try {
+            checkOpen(null);
+            appendFrame(type, flags, streamId, b, off, len);
+            flushFrames();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFrame(final Http2Stream stream, final int type, final int flags, final byte[] b, final int off,
+                            final int len) throws IOException {
+        writeLock.lock();
+        try {
+            checkOpen(stream);
+            appendFrame(type, flags, stream.getId(), b, off, len);
+            flushFrames();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void appendFrame(final int type, final int flags, final int streamId, final byte[] b, final int off,
+                             final int len) {
+        if (writeCount + FRAME_HEADER_LENGTH + len > writeBuffer.length) {
+            writeBuffer = Arrays.copyOf(writeBuffer, Math.max(writeBuffer.length * 2, writeCount + FRAME_HEADER_LENGTH + len));
+        }
+        writeBuffer[writeCount] = (byte) (len >>> 16);
+        writeBuffer[writeCount + 1] = (byte) (len >>> 8);
+        writeBuffer[writeCount + 2] = (byte) len;
+        writeBuffer[writeCount + 3] = (byte) type;
+        writeBuffer[writeCount + 4] = (byte) flags;
+        putInt(writeBuffer, writeCount + 5, streamId);
+        if (len > 0) {
+            System.arraycopy(b, off, writeBuffer, writeCount + FRAME_HEADER_LENGTH, len);
+        }
+        writeCount += FRAME_HEADER_LENGTH + len;
+    }
+
+    private void flushFrames() throws IOException {
+        try {
+            out.write(writeBuffer, 0, writeCount);
+            out.flush();
+        } finally {
+            writeCount = 0;
+        }
+    }
+
+    /**
+     * Closes the connection, failing any streams that have not ended.
+     */
+    private void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        for (Http2Stream stream : streams.values()) {
+            stream.onReset();
+        }
+        streams.clear();
+        signalWindowOpened();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void putSetting(final byte[] b, final int off, final int id, final int value) {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        putInt(b, off + 2, value);
+    }
+
+    private static int getInt(final byte[] b, final int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static void putInt(final byte[] b, final int off, final int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+}
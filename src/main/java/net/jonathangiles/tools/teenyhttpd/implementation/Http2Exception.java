@@ -0,0 +1,44 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a client breaks the rules of HTTP/2, carrying the error code that it is sent. An error on a stream (other
+ * than stream 0) only resets that stream, whereas a connection error ends the whole connection.
+ */
+final class Http2Exception extends IOException {
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+    private final int streamId;
+
+    Http2Exception(final int errorCode, final String message) {
+        this(errorCode, 0, message);
+    }
+
+    Http2Exception(final int errorCode, final int streamId, final String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Returns the stream that the error is confined to, or 0 if it is an error of the whole connection.
+     */
+    int getStreamId() {
+        return streamId;
+    }
+}
@@ -0,0 +1,649 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.Header;
+import net.jonathangiles.tools.teenyhttpd.model.Headers;
+import net.jonathangiles.tools.teenyhttpd.model.Method;
+import net.jonathangiles.tools.teenyhttpd.model.QueryParams;
+import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single request and its response on an {@link Http2Connection}. The request head is decoded by the thread that
+ * reads the connection, which then hands the stream to a worker thread to serve. The worker reads the request body
+ * through {@link #getInputStream()} as the client sends it in DATA frames, and writes the response with
+ * {@link #writeHead(StatusCode, List)} or {@link #getOutputStream(StatusCode, List)}, both of which are framed for
+ * HTTP/2 and sent straight to the connection, interleaved with the responses of the other streams on it.
+ */
+public final class Http2Stream {
+    private static final long READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // header fields that only mean something to a single HTTP/1.1 connection, which must not be sent over HTTP/2
+    static final Set<String> CONNECTION_HEADERS = Set.of(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    // request handlers look headers up by their conventional capitalization, as sent by HTTP/1.1 clients, whereas
+    // HTTP/2 clients send them in lower case
+    private static final Map<String, String> HEADER_NAMES = new HashMap<>();
+    static {
+        for (Headers header : Headers.values()) {
+            HEADER_NAMES.put(header.getKey().toLowerCase(Locale.ROOT), header.getKey());
+        }
+    }
+
+    private static final Method[] METHODS = Method.values();
+
+    private final Http2Connection connection;
+    private final int id;
+    private final long maxBodySize;
+
+    // the request head, which is only written by the thread that reads the connection, before the stream is handed to
+    // a worker thread
+    private String methodName;
+    private String target;
+    private String scheme;
+    private String authority;
+    private boolean hasRegularField;
+    private boolean hasHost;
+    private int headerListSize;
+    private StringBuilder cookie;
+    private final List<Header> headers = new ArrayList<>();
+    private Method method;
+    private String path;
+    private QueryParams queryParams = QueryParams.EMPTY;
+    private long contentLength = -1;
+    private StatusCode error;
+
+    // the request body, as received in DATA frames, guarded by 'lock'
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataReceived = lock.newCondition();
+    private final Queue<byte[]> received = new ArrayDeque<>();
+    private int receivedOffset;
+    private long receivedLength;
+    private boolean isBodyTooLarge;
+    private boolean isRemoteClosed;
+    private boolean isLocalClosed;
+    private boolean isReset;
+    // how much more the client may send before we give it more room, and how much it has sent that we have read (and
+    // so could give it room for) but not yet told it about
+    private int receiveWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+    private int unacknowledged;
+
+    // how much we may send before the client gives us more room, guarded by the connection's flow-control lock
+    long sendWindow;
+
+    private volatile boolean isResponseStarted;
+
+    Http2Stream(final Http2Connection connection, final int id, final long maxBodySize) {
+        this.connection = connection;
+        this.id = id;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Creates the stream of a request that was received over HTTP/1.1 and asked to upgrade the connection, which has no
+     * body.
+     */
+    Http2Stream(final Http2Connection connection, final Method method, final String path,
+                final QueryParams queryParams, final List<Header> headers) {
+        this(connection, 1, 0);
+        this.method = method;
+        this.path = path;
+        this.queryParams = queryParams;
+        this.headers.addAll(headers);
+        this.isRemoteClosed = true;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Adds a field of the decoded request head, whose name and value are strings of octets.
+     */
+    void addField(final String name, final String value) {
+        headerListSize += name.length() + value.length() + 32;
+        if (error != null) {
+            return;
+        } else if (headerListSize > Http2Connection.MAX_HEADER_LIST_SIZE) {
+            error = StatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE;
+            headers.clear();
+            return;
+        }
+
+        if (name.startsWith(":")) {
+            // pseudo-header fields come before all others, and each comes only once
+            if (hasRegularField) {
+                error = StatusCode.BAD_REQUEST;
+            } else if (name.equals(":method") && methodName == null) {
+                methodName = value;
+            } else if (name.equals(":path") && target == null) {
+                target = value;
+            } else if (name.equals(":scheme") && scheme == null) {
+                scheme = value;
+            } else if (name.equals(":authority") && authority == null) {
+                authority = value;
+            } else {
+                error = StatusCode.BAD_REQUEST;
+            }
+            return;
+        }
+
+        hasRegularField = true;
+        if (!isLowerCase(name) || CONNECTION_HEADERS.contains(name)
+                || (name.equals("te") && !value.equalsIgnoreCase("trailers"))) {
+            error = StatusCode.BAD_REQUEST;
+            return;
+        }
+
+        switch (name) {
+            case "cookie":
+                // the cookie header may be split into a field per cookie, to compress better
+                if (cookie == null) {
+                    cookie = new StringBuilder(value);
+                } else {
+                    cookie.append("; ").append(value);
+                }
+                return;
+            case "host":
+                hasHost = true;
+                break;
+            case "content-length":
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    contentLength = -1;
+                }
+                if (contentLength < 0) {
+                    error = StatusCode.BAD_REQUEST;
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        headers.add(new Header(canonicalName(name) + ": " + decode(value)));
+    }
+
+    /**
+     * Called once all fields of the request head have been added, to check that it is a valid request.
+     */
+    void finishHeaders() {
+        if (error == null && (methodName == null || scheme == null || target == null || target.isEmpty())) {
+            error = StatusCode.BAD_REQUEST;
+        }
+        if (error != null) {
+            return;
+        }
+
+        for (Method m : METHODS) {
+            if (m.name().equals(methodName)) {
+                method = m;
+                break;
+            }
+        }
+        if (method == null) {
+            error = StatusCode.NOT_IMPLEMENTED;
+            return;
+        }
+
+        final String decodedTarget = decode(target);
+        final int query = decodedTarget.indexOf('?');
+        path = query < 0 ? decodedTarget : decodedTarget.substring(0, query);
+        if (query >= 0 && query < decodedTarget.length() - 1) {
+            queryParams = new QueryParams(decodedTarget.substring(query + 1));
+        }
+        if (cookie != null) {
+            headers.add(new Header("Cookie: " + decode(cookie.toString())));
+        }
+        if (!hasHost && authority != null) {
+            headers.add(new Header("Host: " + decode(authority)));
+        }
+    }
+
+    /**
+     * Returns the status code that the request should be answered with because it could not be understood (or is too
+     * large to be), or null if it is a valid request.
+     */
+    public StatusCode getError() {
+        return error;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public QueryParams getQueryParams() {
+        return queryParams;
+    }
+
+    public List<Header> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the value of the first header with the given name (compared without regard to case), or null if the
+     * request does not have one.
+     */
+    public String getHeaderValue(final String name) {
+        for (Header header : headers) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return String.join(", ", header.getValues());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the length of the request body that the client declared, or -1 if it did not.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns true if the request has a body, which is the case unless the client ended the stream with the head.
+     */
+    public boolean hasBody() {
+        lock.lock();
+        try {
+            return !isRemoteClosed || receivedLength > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the stream that the request body is read from, which ends where the body does. Reading from it waits for
+     * the client to send more of the body, and lets the client send more as it is read.
+     */
+    public InputStream getInputStream() {
+        return new DataInputStream();
+    }
+
+    /**
+     * Sends the head of a response that has no body, which ends the stream.
+     */
+    public void writeHead(final StatusCode statusCode, final List<Header> responseHeaders) throws IOException {
+        isResponseStarted = true;
+        connection.writeHeaders(this, statusCode.getCode(), responseHeaders, null, 0, 0, true);
+        onLocalClosed();
+    }
+
+    /**
+     * Returns the stream that the body of the response is written to. The head of the response is sent along with the
+     * first part of the body, once the stream's buffer fills or it is flushed, and closing the stream ends the response.
+     */
+    public BufferedOutputStream getOutputStream(final StatusCode statusCode, final List<Header> responseHeaders) {
+        isResponseStarted = true;
+        return new DataOutputStream(statusCode, responseHeaders);
+    }
+
+    /**
+     * Returns true if a response has been started, after which it is too late to send a different one.
+     */
+    public boolean isResponseStarted() {
+        return isResponseStarted;
+    }
+
+    /**
+     * Abandons the response, telling the client that the stream has failed (unless it has already ended).
+     */
+    public void reset() {
+        connection.resetStream(this, Http2Exception.INTERNAL_ERROR);
+    }
+
+    /**
+     * Called by the reading thread with the payload of a DATA frame for this stream, of which 'length' bytes are body
+     * (and the rest of the frame is padding).
+     */
+    void onData(final byte[] b, final int off, final int length, final int frameLength, final boolean endStream)
+            throws Http2Exception {
+        lock.lock();
+        try {
+            if (isRemoteClosed) {
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, id, "DATA received after the end of the stream");
+            }
+            receiveWindow -= frameLength;
+            if (receiveWindow < 0) {
+                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, id, "The stream's flow-control window was exceeded");
+            }
+            // padding is never read, so the client can have room for it back straight away
+            unacknowledged += frameLength - length;
+
+            receivedLength += length;
+            if (contentLength >= 0 && (receivedLength > contentLength || (endStream && receivedLength != contentLength))) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, id, "The body does not match its content length");
+            }
+            if (receivedLength > maxBodySize) {
+                // the rest of the body is not kept, and the handler finds out that it is too large once it has read
+                // what is allowed
+                isBodyTooLarge = true;
+            } else if (length > 0) {
+                received.add(Arrays.copyOfRange(b, off, off + length));
+            }
+            if (endStream) {
+                isRemoteClosed = true;
+            }
+            dataReceived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (endStream) {
+            onRemoteClosed();
+        }
+    }
+
+    /**
+     * Called by the reading thread when the client ends the stream with its request head (or with trailers).
+     */
+    void onEndOfRequest() {
+        lock.lock();
+        try {
+            isRemoteClosed = true;
+            dataReceived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        onRemoteClosed();
+    }
+
+    private void onRemoteClosed() {
+        if (isLocalClosedSafely()) {
+            connection.onStreamClosed(this);
+        }
+    }
+
+    private void onLocalClosed() throws IOException {
+        final boolean isRemoteOpen;
+        lock.lock();
+        try {
+            isLocalClosed = true;
+            isRemoteOpen = !isRemoteClosed && !isReset;
+        } finally {
+            lock.unlock();
+        }
+
+        if (isRemoteOpen) {
+            // the response is complete before the request is, so the client is told that it can stop sending the rest
+            // of the request (RFC 9113, section 8.1)
+            connection.resetStream(this, Http2Exception.NO_ERROR);
+        } else {
+            connection.onStreamClosed(this);
+        }
+    }
+
+    private boolean isLocalClosedSafely() {
+        lock.lock();
+        try {
+            return isLocalClosed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the stream as reset (by either side, or because the connection has closed), waking any thread that is
+     * waiting for the request body. Returns false if the stream had already ended.
+     */
+    boolean onReset() {
+        lock.lock();
+        try {
+            if (isReset || (isLocalClosed && isRemoteClosed)) {
+                return false;
+            }
+            isReset = true;
+            dataReceived.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isReset() {
+        lock.lock();
+        try {
+            return isReset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isLowerCase(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String canonicalName(final String name) {
+        final String known = HEADER_NAMES.get(name);
+        if (known != null) {
+            return known;
+        }
+        final char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (i == 0 || chars[i - 1] == '-') {
+                chars[i] = Character.toUpperCase(chars[i]);
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Decodes a string of octets as UTF-8, as the bytes of HTTP/1.1 request heads are.
+     */
+    private static String decode(final String octets) {
+        for (int i = 0; i < octets.length(); i++) {
+            if (octets.charAt(i) >= 0x80) {
+                return new String(octets.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+            }
+        }
+        return octets;
+    }
+
+    /**
+     * Reads the request body from the DATA frames that have been received, giving the client room to send more as it is
+     * read.
+     */
+    private final class DataInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            final int count;
+            int windowUpdate = 0;
+            lock.lock();
+            try {
+                long remainingNanos = TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MILLIS);
+                while (received.isEmpty()) {
+                    if (isReset) {
+                        throw new IOException("The stream was reset");
+                    } else if (isBodyTooLarge) {
+                        throw new InvalidRequestBodyException(StatusCode.REQUEST_ENTITY_TOO_LARGE,
+                                "The request body is larger than " + maxBodySize + " bytes");
+                    } else if (isRemoteClosed) {
+                        return -1;
+                    } else if (remainingNanos <= 0) {
+                        throw new IOException("Timed out waiting for the client to send the request body");
+                    }
+                    try {
+                        remainingNanos = dataReceived.awaitNanos(remainingNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the client to send the request body", e);
+                    }
+                }
+
+                final byte[] chunk = received.peek();
+                count = Math.min(len, chunk.length - receivedOffset);
+                System.arraycopy(chunk, receivedOffset, b, off, count);
+                receivedOffset += count;
+                if (receivedOffset == chunk.length) {
+                    received.poll();
+                    receivedOffset = 0;
+                }
+
+                // the client is only given more room once a good part of the window has been read, rather than for
+                // every read
+                unacknowledged += count;
+                if (unacknowledged >= Http2Connection.DEFAULT_WINDOW_SIZE / 2 && !isRemoteClosed) {
+                    windowUpdate = unacknowledged;
+                    receiveWindow += unacknowledged;
+                    unacknowledged = 0;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (windowUpdate > 0) {
+                connection.writeWindowUpdate(id, windowUpdate);
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                final byte[] chunk = received.peek();
+                return chunk == null ? 0 : chunk.length - receivedOffset;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the response body as DATA frames, each as large as the buffer (which is the largest frame we send), or as
+     * the flow-control windows allow. The response head is only sent with the first frame, so that a response whose
+     * body fits in the buffer is sent in a single write, and one without a body ends the stream with its head.
+     */
+    private final class DataOutputStream extends BufferedOutputStream {
+        private final StatusCode statusCode;
+        private final List<Header> responseHeaders;
+        private boolean isHeadSent;
+        private boolean isClosed;
+
+        private DataOutputStream(final StatusCode statusCode, final List<Header> responseHeaders) {
+            // the buffer allocated by the superclass is replaced with a pooled one, which is the size of a frame, and
+            // the connection's stream is never written to directly, as everything is framed first
+            super(connection.getOutputStream(), 1);
+            this.buf = BufferPool.acquire();
+            this.statusCode = statusCode;
+            this.responseHeaders = responseHeaders;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == buf.length) {
+                send(buf, 0, count, false);
+                count = 0;
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len <= buf.length - count) {
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+                return;
+            }
+
+            if (count > 0) {
+                send(buf, 0, count, false);
+                count = 0;
+            }
+            if (len >= buf.length) {
+                // large writes are framed straight from the caller's array, rather than being copied through the buffer
+                send(b, off, len, false);
+            } else {
+                System.arraycopy(b, off, buf, 0, len);
+                count = len;
+            }
+        }
+
+        private void send(final byte[] b, int off, int len, final boolean endStream) throws IOException {
+            if (isClosed) {
+                throw new IOException("The response has already ended");
+            }
+            if (!isHeadSent) {
+                isHeadSent = true;
+                final int sent = connection.writeHeaders(Http2Stream.this, statusCode.getCode(), responseHeaders,
+                        b, off, len, endStream);
+                off += sent;
+                len -= sent;
+                if (len == 0) {
+                    // the stream was ended by the head itself, or by the frame that was sent along with it
+                    return;
+                }
+            }
+            if (len > 0 || endStream) {
+                connection.writeData(Http2Stream.this, b, off, len, endStream);
+            }
+        }
+
+        /**
+         * Sends everything that has been written so far to the client (including the response head, if nothing else
+         * has been written).
+         */
+        @Override
+        public void flush() throws IOException {
+            if (count > 0 || !isHeadSent) {
+                send(buf, 0, count, false);
+                count = 0;
+            }
+        }
+
+        /**
+         * Sends whatever is left in the buffer, ending the stream.
+         */
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            try {
+                send(buf, 0, count, true);
+                count = 0;
+                isClosed = true;
+                onLocalClosed();
+            } finally {
+                isClosed = true;
+                BufferPool.release(buf);
+                buf = null;
+            }
+        }
+    }
+}
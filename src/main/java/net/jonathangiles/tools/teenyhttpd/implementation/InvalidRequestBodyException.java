@@ -0,0 +1,22 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+
+import java.io.IOException;
+
+/**
+ * Thrown while a request body is being read if it is malformed or larger than is allowed, carrying the status code that
+ * the client should be sent in response.
+ */
+public class InvalidRequestBodyException extends IOException {
+    private final StatusCode statusCode;
+
+    public InvalidRequestBodyException(final StatusCode statusCode, final String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public StatusCode getStatusCode() {
+        return statusCode;
+    }
+}
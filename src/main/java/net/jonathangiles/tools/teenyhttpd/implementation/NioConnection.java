@@ -0,0 +1,538 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import javax.net.ssl.SSLEngine;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link ClientConnection} serviced by a {@link NioEventLoop}. Request bytes are accumulated by the event loop until a
+ * full request has arrived, at which point the connection is dispatched to a worker thread and the event loop stops
+ * reading from it until the request (and any requests pipelined behind it) has been served. Large request bodies are
+ * the exception: the connection is dispatched once the start of the body has arrived, and the worker reads the rest of
+ * it from the channel as it is asked for, waiting for the event loop to report that the channel is readable whenever
+ * there is nothing to read. Writes happen on the worker thread straight to the non-blocking
+ * channel, and only when the socket send buffer is full does the worker wait for the event loop to report that the
+ * channel is writable again. Files are transferred to the channel in the same way, without being copied through the JVM.
+ * Connections accepted by an HTTPS server are encrypted by a {@link TlsChannel}, which sits between the connection and
+ * the channel (and through which files are copied, as they have to be encrypted).
+ */
+public class NioConnection implements ClientConnection {
+    private static final long WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // the most of a request body that is received before the connection is dispatched, so that the body does not have
+    // to be held in memory in full
+    private static final int MAX_BUFFERED_BODY_SIZE = 64 * 1024;
+
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    // null unless the connection is encrypted
+    private final TlsChannel tls;
+    // the parser is owned by the event loop thread while waiting for a request, and by the worker thread once the
+    // connection is dispatched
+    private final RequestParser parser = new RequestParser();
+    private final InputStream inputStream = parser.getInputStream(new ChannelInputStream());
+    private final OutputStream outputStream = new ChannelOutputStream();
+    // a lock rather than a monitor, so that a virtual thread waiting to write does not pin its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition writable = writeLock.newCondition();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final Condition readable = readLock.newCondition();
+
+    private SelectionKey key;
+    private int requestCount = 1;
+
+    // only modified on the event loop thread
+    private boolean isDispatched;
+    private boolean isLongRunning;
+    private long lastActivity = System.currentTimeMillis();
+
+    private boolean isWriteReady;
+    private boolean isReadReady;
+    // set by the worker thread once the connection has switched to HTTP/2, whose reads may wait for as long as the
+    // connection is in use
+    private volatile boolean isUpgraded;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    NioConnection(final NioEventLoop eventLoop, final SocketChannel channel, final SSLEngine engine) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.tls = engine == null ? null : new TlsChannel(channel, engine, this::runHandshakeTasks);
+    }
+
+    void setKey(final SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public RequestParser readRequestHead() {
+        // connections are only dispatched once the whole request (or, for a large body, the start of it) has been
+        // received
+        return parser;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    @Override
+    public boolean prepareNextRequest() throws IOException {
+        requestCount++;
+
+        // discard the request that has just been served, keeping anything the client has sent after it. If the next
+        // request has already arrived in full, the calling thread can go on to serve it
+        parser.next();
+        if (tls != null && tls.hasBufferedInput()) {
+            // the start of the next request may have been decrypted along with the end of the last one's body
+            final byte[] chunk = BufferPool.acquire();
+            try {
+                appendBufferedInput(ByteBuffer.wrap(chunk));
+            } finally {
+                BufferPool.release(chunk);
+            }
+        }
+        return parser.parse() && parser.isRequestBuffered(MAX_BUFFERED_BODY_SIZE);
+    }
+
+    @Override
+    public boolean awaitNextRequest() {
+        // hand the connection back to the event loop to wait for the rest of the next request
+        eventLoop.execute(() -> {
+            isDispatched = false;
+            lastActivity = System.currentTimeMillis();
+            if (eventLoop.isDraining()) {
+                close();
+            } else if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        });
+        return false;
+    }
+
+    @Override
+    public void setUpgraded() {
+        isUpgraded = true;
+    }
+
+    @Override
+    public void setLongRunning() {
+        // we keep reading from long-running connections, but only so that we notice when the client goes away
+        eventLoop.execute(() -> {
+            isLongRunning = true;
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    /**
+     * Returns true if this connection has been waiting for a request for longer than the given idle timeout.
+     */
+    boolean isIdle(final long now, final long idleTimeoutMillis) {
+        return !isDispatched && !isLongRunning && now - lastActivity > idleTimeoutMillis;
+    }
+
+    /**
+     * Returns true if this connection is waiting for a request, and none of it has been received yet. Such a connection
+     * can be closed without cutting off a request.
+     */
+    boolean isAwaitingRequest() {
+        return !isDispatched && !isLongRunning && !parser.hasRequestStarted();
+    }
+
+    /**
+     * Called by the event loop when the channel has data to read.
+     */
+    void onReadable(final ByteBuffer readBuffer) throws IOException {
+        if (isDispatched && !isLongRunning) {
+            // a worker thread is waiting for more of a request body, which it reads from the channel itself
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            readLock.lock();
+            try {
+                isReadReady = true;
+                readable.signalAll();
+            } finally {
+                readLock.unlock();
+            }
+            return;
+        }
+
+        readBuffer.clear();
+        final int read = tls == null ? channel.read(readBuffer) : tls.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        } else if (tls != null && tls.hasPendingOutput()) {
+            // the handshake has more to send than the socket send buffer has room for
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        if (read == 0 || isLongRunning) {
+            return;
+        }
+
+        lastActivity = System.currentTimeMillis();
+        readBuffer.flip();
+        parser.append(readBuffer);
+
+        // a single read from the channel may bring in more than one TLS record, which are all decrypted before we wait
+        // for the channel to be readable again
+        if (tls != null) {
+            appendBufferedInput(readBuffer);
+        }
+
+        // invalid requests are dispatched as well, so that the client is sent an error response
+        if (!parser.parse() || !parser.isRequestBuffered(MAX_BUFFERED_BODY_SIZE)) {
+            return;
+        }
+
+        // stop reading until the request has been served, so that the worker thread has sole use of the parser
+        isDispatched = true;
+        key.interestOps(0);
+        eventLoop.dispatch(this);
+    }
+
+    /**
+     * Runs the expensive steps of the TLS handshake on the server's executor rather than the event loop. The channel is
+     * ignored until they have run, as the handshake can't go any further until then, and then read again.
+     */
+    private void runHandshakeTasks(final Runnable tasks) throws IOException {
+        key.interestOps(0);
+        final boolean isAccepted = eventLoop.offload(() -> {
+            try {
+                tasks.run();
+            } finally {
+                eventLoop.resumeReading(this);
+            }
+        });
+        if (!isAccepted) {
+            throw new IOException("The server is too busy to complete a TLS handshake");
+        }
+    }
+
+    /**
+     * Called on the event loop once the handshake tasks have run, to watch the channel for reads again. Returns false if
+     * the connection has been closed in the meantime.
+     */
+    boolean resumeReading() {
+        if (!key.isValid()) {
+            return false;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    /**
+     * Appends whatever the TLS layer has already read from the channel to the request, using the given buffer.
+     */
+    private void appendBufferedInput(final ByteBuffer buffer) throws IOException {
+        while (tls.hasBufferedInput()) {
+            buffer.clear();
+            if (tls.read(buffer) <= 0) {
+                return;
+            }
+            buffer.flip();
+            parser.append(buffer);
+        }
+    }
+
+    /**
+     * Called by the event loop when a worker thread is waiting for the channel to become writable.
+     */
+    void onWritable() throws IOException {
+        if (tls != null && !isDispatched && !isLongRunning) {
+            // the event loop itself is waiting to send the rest of the handshake
+            if (tls.flush()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeLock.lock();
+        try {
+            isWriteReady = true;
+            writable.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the given buffers to the channel, with a single gathering write where the socket
+     * send buffer has room, waiting for the event loop to signal that the channel is writable whenever it is full.
+     */
+    void write(final ByteBuffer... srcs) throws IOException {
+        writeLock.lock();
+        try {
+            while (hasRemaining(srcs) || (tls != null && tls.hasPendingOutput())) {
+                if (isClosed.get()) {
+                    throw new IOException("Connection closed");
+                }
+                final long written = tls == null ? channel.write(srcs) : tls.write(srcs);
+                if (written == 0 && (tls == null || tls.hasPendingOutput())) {
+                    awaitWritable();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a region of a file straight from the file to the channel, waiting for the event loop to signal that the
+     * channel is writable whenever the socket send buffer is full.
+     */
+    void transferFrom(final FileChannel file, long position, long count) throws IOException {
+        if (tls != null) {
+            copyFrom(file, position, count);
+            return;
+        }
+        writeLock.lock();
+        try {
+            while (count > 0) {
+                if (isClosed.get()) {
+                    throw new IOException("Connection closed");
+                }
+                final long transferred = file.transferTo(position, count, channel);
+                if (transferred == 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("The file ended before all of it was sent");
+                    }
+                    awaitWritable();
+                }
+                position += transferred;
+                count -= transferred;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a region of a file through the TLS layer, as it has to be encrypted on its way to the client.
+     */
+    private void copyFrom(final FileChannel file, long position, long count) throws IOException {
+        final byte[] chunk = BufferPool.acquire();
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (count > 0) {
+                buffer.clear().limit((int) Math.min(chunk.length, count));
+                final int read = file.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("The file ended before all of it was sent");
+                }
+                buffer.flip();
+                write(buffer);
+                position += read;
+                count -= read;
+            }
+        } finally {
+            BufferPool.release(chunk);
+        }
+    }
+
+    /**
+     * Reads bytes of a request body from the channel into the given buffer, waiting for the event loop to signal that
+     * the channel is readable whenever there is nothing to read, and returning -1 once the client has closed its side.
+     */
+    int read(final ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        readLock.lock();
+        try {
+            while (true) {
+                if (isClosed.get()) {
+                    throw new IOException("Connection closed");
+                }
+                final int read = tls == null ? channel.read(dst) : tls.read(dst);
+                if (read != 0) {
+                    return read;
+                } else if (tls != null && tls.hasPendingOutput()) {
+                    // the handshake is waiting to send something before it can read any further
+                    write();
+                } else {
+                    awaitReadable();
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void awaitReadable() throws IOException {
+        isReadReady = false;
+        eventLoop.execute(() -> {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        });
+
+        // reads on an upgraded connection time out after the idle timeout, for the caller to decide whether it is idle
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(
+                isUpgraded ? eventLoop.getIdleTimeoutMillis() : READ_TIMEOUT_MILLIS);
+        try {
+            while (!isReadReady && !isClosed.get()) {
+                if (remainingNanos <= 0) {
+                    if (isUpgraded) {
+                        throw new SocketTimeoutException("Timed out waiting for the client to send a frame");
+                    }
+                    close();
+                    throw new IOException("Timed out waiting for the client to send the request body");
+                }
+                remainingNanos = readable.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the client to send the request body", e);
+        }
+    }
+
+    private static boolean hasRemaining(final ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void awaitWritable() throws IOException {
+        isWriteReady = false;
+        eventLoop.execute(() -> {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MILLIS);
+        try {
+            while (!isWriteReady && !isClosed.get()) {
+                if (remainingNanos <= 0) {
+                    close();
+                    throw new IOException("Timed out waiting to write to the client");
+                }
+                remainingNanos = writable.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to write to the client", e);
+        }
+    }
+
+    /**
+     * Sends the given response and closes the connection, without waiting for the response to be written if the socket
+     * send buffer is full. This is called on the event loop thread when a request cannot be handled.
+     */
+    void reject(final byte[] response) {
+        try {
+            if (tls == null) {
+                channel.write(ByteBuffer.wrap(response));
+            } else {
+                tls.write(ByteBuffer.wrap(response));
+            }
+        } catch (IOException e) {
+            // the client has gone away already
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        if (!isClosed.compareAndSet(false, true)) {
+            return;
+        }
+        eventLoop.onConnectionClosed();
+
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+
+        writeLock.lock();
+        try {
+            writable.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+        readLock.lock();
+        try {
+            readable.signalAll();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private final class ChannelInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return NioConnection.this.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    private final class ChannelOutputStream extends OutputStream
+            implements GatheringOutputStream, FileTransferOutputStream {
+        @Override
+        public void write(final int b) throws IOException {
+            NioConnection.this.write(ByteBuffer.wrap(new byte[] { (byte) b }));
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            NioConnection.this.write(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void write(final byte[] first, final int firstOff, final int firstLen,
+                          final byte[] second, final int secondOff, final int secondLen) throws IOException {
+            NioConnection.this.write(ByteBuffer.wrap(first, firstOff, firstLen), ByteBuffer.wrap(second, secondOff, secondLen));
+        }
+
+        @Override
+        public void transferFrom(final FileChannel file, final long position, final long count) throws IOException {
+            NioConnection.this.transferFrom(file, position, count);
+        }
+
+        @Override
+        public void write(final ByteBuffer... srcs) throws IOException {
+            NioConnection.this.write(srcs);
+        }
+
+        @Override
+        public void close() {
+            NioConnection.this.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single event loop thread of the {@link NioServer}. Each event loop owns a {@link Selector} and services the read
+ * and write readiness of all connections that are registered with it. Work that must happen on the event loop thread
+ * (such as registering a channel or changing its interest set) is submitted through {@link #execute(Runnable)}.
+ */
+public class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long MAX_IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final NioServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final long idleTimeoutMillis;
+    private final long idleCheckIntervalMillis;
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    // a single read buffer is shared by all connections on this event loop, as reads only ever happen on this thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean isRunning = true;
+
+    // only modified on the event loop thread
+    private boolean isDraining = false;
+
+    NioEventLoop(final String name, final NioServer server, final long idleTimeoutMillis) throws IOException {
+        this.server = server;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.idleCheckIntervalMillis = Math.max(10, Math.min(MAX_IDLE_CHECK_INTERVAL_MILLIS, idleTimeoutMillis / 2));
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void register(final SocketChannel channel) {
+        execute(() -> {
+            try {
+                final SSLEngine engine = server.createSslEngine();
+                final NioConnection connection = new NioConnection(this, channel, engine);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                closeQuietly(channel);
+                server.onConnectionClosed();
+            }
+        });
+    }
+
+    /**
+     * Runs the given task on the event loop thread.
+     */
+    void execute(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void dispatch(final NioConnection connection) {
+        server.dispatch(connection);
+    }
+
+    /**
+     * Runs the given task on the server's executor, returning false if the executor rejects it.
+     */
+    boolean offload(final Runnable task) {
+        return server.offload(task);
+    }
+
+    /**
+     * Has the event loop read from the given connection, as it would if its channel had become readable, and carry on
+     * watching it for reads.
+     */
+    void resumeReading(final NioConnection connection) {
+        execute(() -> {
+            try {
+                if (connection.resumeReading()) {
+                    connection.onReadable(readBuffer);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                connection.close();
+            }
+        });
+    }
+
+    void onConnectionClosed() {
+        server.onConnectionClosed();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (isRunning) {
+                selector.select(idleCheckIntervalMillis);
+                runTasks();
+                closeIdleConnections();
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    final NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // a bug in handling one connection (in the parser, say, or the SSLEngine) must not take down
+                        // the event loop, and with it every other connection on it
+                        System.err.println("Event loop error on a connection : " + e);
+                        connection.close();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // the event loop has been closed
+        } catch (IOException e) {
+            System.err.println("Event loop error : " + e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop error : " + e);
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        final long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < idleCheckIntervalMillis) {
+            return;
+        }
+        lastIdleCheck = now;
+
+        for (SelectionKey key : selector.keys()) {
+            final NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null && connection.isIdle(now, idleTimeoutMillis)) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Closes all connections that are waiting for a request, and any connection that is handed back to this event loop
+     * from now on, so that connections are closed as soon as their current request has been served.
+     */
+    void drain() {
+        execute(() -> {
+            isDraining = true;
+            for (SelectionKey key : selector.keys()) {
+                final NioConnection connection = (NioConnection) key.attachment();
+                if (connection != null && connection.isAwaitingRequest()) {
+                    connection.close();
+                }
+            }
+        });
+    }
+
+    long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    boolean isDraining() {
+        return isDraining;
+    }
+
+    void close() {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    private void shutdown() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            selector.close();
+        } catch (ClosedSelectorException | IOException e) {
+            // we are shutting down anyway
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * A selector-based transport for TeenyHttpd. A single acceptor accepts new connections without blocking, and hands
+ * them out round-robin to a fixed set of {@link NioEventLoop} instances, which read from them without blocking. Idle
+ * connections therefore cost a selection key rather than a thread, and are closed by their event loop once they have
+ * been idle for longer than the idle timeout. Only once a full request has been read is the connection handed to the
+ * request handler, which runs on the given {@link ExecutorService}. Connections beyond the limit of the given
+ * {@link AdmissionControl}, and requests that the executor rejects, are sent a 503 response and closed. If the server
+ * is given an {@link SSLContext}, every connection is encrypted with its own {@link SSLEngine}.
+ */
+public class NioServer implements Closeable {
+    // how long to wait after failing to accept a connection (most often because we have run out of file descriptors)
+    // before trying again, as the connection stays in the backlog and would otherwise be retried straight away
+    private static final long ACCEPT_FAILURE_BACKOFF_MILLIS = 100;
+
+    private final int port;
+    private final int idleTimeoutMillis;
+    private final ExecutorService executorService;
+    private final Consumer<ClientConnection> requestHandler;
+    private final AdmissionControl admissionControl;
+    private final NioEventLoop[] eventLoops;
+    private final SSLContext sslContext;
+
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile boolean isRunning = false;
+    private int nextEventLoop = 0;
+
+    public NioServer(final int port,
+                     final int eventLoopCount,
+                     final int idleTimeoutMillis,
+                     final ExecutorService executorService,
+                     final AdmissionControl admissionControl,
+                     final SSLContext sslContext,
+                     final Consumer<ClientConnection> requestHandler) {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("eventLoopCount must be at least 1");
+        }
+        this.port = port;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.executorService = executorService;
+        this.requestHandler = requestHandler;
+        this.admissionControl = admissionControl;
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Binds the server socket and starts the event loop threads. Connections are not accepted until {@link #run()}
+     * is called.
+     */
+    public void bind() throws IOException {
+        acceptSelector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop("TeenyHttpd-EventLoop-" + i, this, idleTimeoutMillis);
+            eventLoops[i].start();
+        }
+        isRunning = true;
+    }
+
+    /**
+     * Runs the accept loop on the calling thread, until {@link #drain()} or {@link #close()} is called.
+     */
+    public void run() {
+        try {
+            while (isRunning) {
+                acceptSelector.select();
+
+                final Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // the server has been closed
+        } catch (IOException e) {
+            if (isRunning) {
+                System.err.println("Server Connection error : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Accepts the connections that are waiting to be accepted. A connection that can not be accepted is logged and
+     * skipped, so that one failure does not stop the server from accepting connections.
+     */
+    private void accept() {
+        while (isRunning) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                // the server has been closed
+                return;
+            } catch (IOException e) {
+                System.err.println("Failed to accept a connection : " + e.getMessage());
+                pauseAfterAcceptFailure();
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+
+            try {
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                continue;
+            }
+            if (!admissionControl.tryOpenConnection()) {
+                // the send buffer of a new connection is empty, so the whole response is written without blocking.
+                // Encrypted connections are closed without one, as it would take a handshake to send it.
+                try {
+                    if (sslContext == null) {
+                        channel.write(ByteBuffer.wrap(admissionControl.reject()));
+                    }
+                } catch (IOException e) {
+                    // the client has gone away already
+                }
+                closeQuietly(channel);
+                continue;
+            }
+
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                // the client has gone away already
+                closeQuietly(channel);
+                admissionControl.onConnectionClosed();
+                continue;
+            }
+            eventLoops[nextEventLoop].register(channel);
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        }
+    }
+
+    private static void pauseAfterAcceptFailure() {
+        try {
+            Thread.sleep(ACCEPT_FAILURE_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Returns a new engine to encrypt a connection with, or null if connections are not encrypted.
+     */
+    SSLEngine createSslEngine() {
+        return sslContext == null ? null : Tls.createEngine(sslContext);
+    }
+
+    void dispatch(final NioConnection connection) {
+        try {
+            executorService.execute(() -> requestHandler.accept(connection));
+        } catch (RejectedExecutionException e) {
+            connection.reject(admissionControl.reject());
+        }
+    }
+
+    boolean offload(final Runnable task) {
+        try {
+            executorService.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    void onConnectionClosed() {
+        admissionControl.onConnectionClosed();
+    }
+
+    /**
+     * Stops accepting connections, and closes all open connections that are waiting for a request. Connections that are
+     * being served are closed once their current request has been served, and connections that have been handed to a
+     * long-running handler are left open until {@link #close()} is called.
+     */
+    public void drain() throws IOException {
+        isRunning = false;
+
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (acceptSelector != null) {
+            acceptSelector.close();
+        }
+
+        for (NioEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.drain();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        isRunning = false;
+
+        for (NioEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.close();
+            }
+        }
+
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (acceptSelector != null) {
+            acceptSelector.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates the gzip-compressed variants of the files in a webroot that {@link FileResponse} sends to clients that
+ * accept gzip, so that static assets are compressed once (and as tightly as possible) rather than on every request.
+ * Each variant is written next to its file, with {@link FileResponse#GZIP_EXTENSION} appended to the name. Variants
+ * that are already newer than their file are left as they are, so doing this again at each startup only compresses
+ * the files that have changed.
+ */
+public final class Precompressor {
+
+    private Precompressor() { }
+
+    /**
+     * Writes a gzip-compressed variant of every file under the webroot that is of a compressible content type, and is
+     * at least the given number of bytes long. Variants that turn out to be no smaller than their file are not kept.
+     *
+     * @return The number of variants that were written.
+     */
+    public static int precompress(final Path webroot, final long minSize) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> paths = Files.walk(webroot)) {
+            files = paths.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().endsWith(FileResponse.GZIP_EXTENSION))
+                    .collect(Collectors.toList());
+        }
+
+        int written = 0;
+        for (Path file : files) {
+            try {
+                if (precompressFile(file, minSize)) {
+                    written++;
+                }
+            } catch (IOException e) {
+                // one file that can't be compressed shouldn't stop the others from being compressed
+                System.err.println("Unable to precompress " + file + " : " + e);
+            }
+        }
+        return written;
+    }
+
+    private static boolean precompressFile(final Path file, final long minSize) throws IOException {
+        final long size = Files.size(file);
+        if (size < minSize || !ContentCoding.isCompressible(FileResponse.contentTypeOf(file.getFileName().toString()))) {
+            return false;
+        }
+
+        final Path variant = file.resolveSibling(file.getFileName() + FileResponse.GZIP_EXTENSION);
+        if (Files.exists(variant)
+                && Files.getLastModifiedTime(variant).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+            return false;
+        }
+
+        // the variant is written alongside and then moved into place, so it is never served half-written
+        final Path temp = Files.createTempFile(file.getParent(), ".teenyhttpd-", FileResponse.GZIP_EXTENSION);
+        try {
+            try (OutputStream out = new BestCompressionOutputStream(Files.newOutputStream(temp))) {
+                Files.copy(file, out);
+            }
+            if (Files.size(temp) >= size) {
+                Files.deleteIfExists(variant);
+                return false;
+            }
+            Files.move(temp, variant, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Compresses with the best (and slowest) compression level, which only costs us once per file.
+     */
+    private static final class BestCompressionOutputStream extends GZIPOutputStream {
+        private BestCompressionOutputStream(final OutputStream out) throws IOException {
+            super(out, BufferPool.BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The body of a request, which is only read from the connection when it is asked for. It can either be read once,
+ * straight from the connection, through {@link #getInputStream()}, or it can be buffered so that it can be read any
+ * number of times (as {@link #asString(Charset)} does). A buffered body is held in memory up to a threshold, and beyond
+ * that it is spilled to a temporary file, so that large uploads don't have to fit in the heap.
+ *
+ * <p>Whatever part of the body the request handler does not read is discarded by the server before the next request
+ * on the connection is read, and any temporary file is deleted when the body is closed once the request has been
+ * served.</p>
+ */
+public class RequestBody implements Closeable {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final long contentLength;
+    private final int memoryThreshold;
+
+    private boolean isStreamed;
+    private boolean isBuffered;
+
+    // a buffered body is either held in 'buffer', or has been spilled to 'file'
+    private byte[] buffer;
+    private Path file;
+    private long bufferedLength;
+
+    private RequestBody(final InputStream in, final long contentLength, final int memoryThreshold) {
+        this.in = in;
+        this.contentLength = contentLength;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * Creates the body of a request with a {@code Content-Length}, which is read from the given connection stream.
+     *
+     * @param in The stream of the connection, positioned at the start of the body. Reads from it never go past the end
+     *           of the body, so that the next request on the connection is left in place.
+     * @param contentLength The length of the body in bytes.
+     * @param memoryThreshold The number of bytes of the body that may be held in memory when it is buffered.
+     */
+    public static RequestBody withLength(final InputStream in, final long contentLength, final int memoryThreshold) {
+        return new RequestBody(new FixedLengthInputStream(in, contentLength), contentLength, memoryThreshold);
+    }
+
+    /**
+     * Creates the body of a request that is sent with chunked transfer-encoding, which is decoded as it is read from the
+     * given connection stream.
+     *
+     * @param in The stream of the connection, positioned at the start of the body.
+     * @param maxChunkSize The largest chunk that is accepted.
+     * @param maxBodySize The largest body, in total, that is accepted.
+     * @param memoryThreshold The number of bytes of the body that may be held in memory when it is buffered.
+     * @see ChunkedInputStream
+     */
+    public static RequestBody chunked(final InputStream in, final long maxChunkSize, final long maxBodySize,
+                                      final int memoryThreshold) {
+        return new RequestBody(new ChunkedInputStream(in, maxChunkSize, maxBodySize), -1, memoryThreshold);
+    }
+
+    /**
+     * Creates the body of a request that is read from a stream of its own, which ends where the body does (as the body
+     * of each request on an HTTP/2 connection is).
+     *
+     * @param in The stream of the body.
+     * @param contentLength The length of the body in bytes, or -1 if the client did not say.
+     * @param memoryThreshold The number of bytes of the body that may be held in memory when it is buffered.
+     */
+    public static RequestBody delimited(final InputStream in, final long contentLength, final int memoryThreshold) {
+        return new RequestBody(in, contentLength, memoryThreshold);
+    }
+
+    /**
+     * Returns the length of the body in bytes, or -1 if it is not known until the body has been read.
+     */
+    public long getContentLength() {
+        return isBuffered ? bufferedLength : contentLength;
+    }
+
+    /**
+     * Returns a stream over the body. Until the body has been buffered, this reads straight from the connection, and so
+     * can only be read once - calling this again returns the same stream. Closing the stream does not close the
+     * connection.
+     */
+    public InputStream getInputStream() throws IOException {
+        if (isBuffered) {
+            return file == null ? new ByteArrayInputStream(buffer, 0, (int) bufferedLength) : Files.newInputStream(file);
+        }
+        isStreamed = true;
+        return in;
+    }
+
+    /**
+     * Returns the body decoded with the given charset, buffering it first if it has not been already.
+     */
+    public String asString(final Charset charset) throws IOException {
+        buffer();
+        if (file == null) {
+            return new String(buffer, 0, (int) bufferedLength, charset);
+        } else if (bufferedLength > Integer.MAX_VALUE) {
+            throw new IOException("The request body is too large to be read as a string");
+        }
+        return new String(Files.readAllBytes(file), charset);
+    }
+
+    /**
+     * Reads the rest of the body from the connection, holding it in memory up to the memory threshold, and spilling it
+     * to a temporary file beyond that.
+     */
+    public void buffer() throws IOException {
+        if (isBuffered) {
+            return;
+        } else if (isStreamed) {
+            throw new IllegalStateException("The request body has already been read as a stream");
+        }
+
+        final long expected = contentLength < 0 ? INITIAL_BUFFER_SIZE : contentLength;
+        byte[] bytes = new byte[(int) Math.max(1, Math.min(expected, memoryThreshold))];
+        int count = 0;
+        while (contentLength < 0 || count < contentLength) {
+            if (count == bytes.length) {
+                if (count >= memoryThreshold) {
+                    spill(bytes, count);
+                    return;
+                }
+                bytes = Arrays.copyOf(bytes, (int) Math.min((long) count * 2, memoryThreshold));
+            }
+            final int read = in.read(bytes, count, bytes.length - count);
+            if (read == -1) {
+                break;
+            }
+            count += read;
+        }
+
+        buffer = bytes;
+        bufferedLength = count;
+        isBuffered = true;
+    }
+
+    private void spill(final byte[] bytes, final int count) throws IOException {
+        final Path path = Files.createTempFile("teenyhttpd-", ".body");
+        long length = count;
+        try (OutputStream out = Files.newOutputStream(path)) {
+            out.write(bytes, 0, count);
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                out.write(bytes, 0, read);
+                length += read;
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+
+        file = path;
+        bufferedLength = length;
+        isBuffered = true;
+    }
+
+    /**
+     * Reads and throws away whatever is left of the body on the connection, up to the given number of bytes, returning
+     * true if the end of the body was reached. If it was not (or the body turns out to be malformed), the connection
+     * can not be used for another request.
+     */
+    public boolean discard(final long maxBytes) throws IOException {
+        if (isBuffered) {
+            return true;
+        } else if (in instanceof FixedLengthInputStream && ((FixedLengthInputStream) in).remaining > maxBytes) {
+            // there is no point reading any of it if we know we can't read all of it
+            return false;
+        }
+
+        final byte[] scratch = new byte[(int) Math.max(1, Math.min(maxBytes, INITIAL_BUFFER_SIZE))];
+        long discarded = 0;
+        try {
+            while (discarded <= maxBytes) {
+                final int read = in.read(scratch, 0, scratch.length);
+                if (read == -1) {
+                    return true;
+                }
+                discarded += read;
+            }
+        } catch (InvalidRequestBodyException e) {
+            // we can't tell where a malformed body ends
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the temporary file that the body was spilled to, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        if (file != null) {
+            Files.deleteIfExists(file);
+            file = null;
+        }
+    }
+
+    /**
+     * Reads a body of a known length from the connection, without ever reading past its end.
+     */
+    private static final class FixedLengthInputStream extends FilterInputStream {
+        private long remaining;
+
+        private FixedLengthInputStream(final InputStream in, final long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed before the full request body was received");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            } else if (len == 0) {
+                return 0;
+            }
+            final int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Connection closed before the full request body was received");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // the connection outlives the request
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,677 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.Header;
+import net.jonathangiles.tools.teenyhttpd.model.Method;
+import net.jonathangiles.tools.teenyhttpd.model.QueryParams;
+import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An incremental parser for the head (the request line and headers) of HTTP/1.x requests, working directly on the
+ * bytes received from the client. Bytes are added to a buffer that is reused for every request on the connection, and
+ * {@link #parse()} can be called whenever more bytes have arrived - it carries on from where it left off, so it works
+ * equally well over a blocking stream and a non-blocking channel.
+ *
+ * <p>Parsing a request allocates as little as possible: the method, HTTP version and the headers that TeenyHttpd
+ * itself needs ({@code Content-Length}, {@code Connection} and {@code Transfer-Encoding}) are recognised by comparing
+ * bytes, and all other headers are only recorded as offsets into the buffer. They are turned into {@link Header}
+ * instances on demand, when the request handler asks for them.</p>
+ *
+ * <p>Once the head is complete, any bytes that follow it (the body, or further pipelined requests) remain in the
+ * buffer, and are available through {@link #getInputStream(InputStream)}. {@link #next()} discards the current request
+ * so that the next one can be parsed.</p>
+ */
+public class RequestParser {
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final Method[] METHODS = Method.values();
+    private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_NAMES[i] = METHODS[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final byte[] HTTP_1_0_BYTES = HTTP_1_0.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1_BYTES = HTTP_1_1.getBytes(StandardCharsets.US_ASCII);
+    // the first line of the HTTP/2 connection preface, which looks like a request line to an HTTP/1.x parser
+    private static final byte[] HTTP_2_PREFACE_LINE = "PRI * HTTP/2.0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+
+    // parser states
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int COMPLETE = 2;
+    private static final int ERROR = 3;
+
+    // each header is recorded as four offsets: line start, name end, value start and value end
+    private static final int HEADER_FIELDS = 4;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    // the buffer holds valid bytes from 'start' to 'limit'. All offsets below are relative to 'start', so that the
+    // buffer can be compacted without having to adjust them
+    private int start;
+    private int limit;
+    private int position;
+    private int scanPosition;
+
+    private int state = REQUEST_LINE;
+    private StatusCode error;
+    private boolean isHttp2Preface;
+
+    private Method method;
+    private int uriStart;
+    private int uriEnd;
+    private int queryStart;
+    private String httpVersion;
+    private String path;
+
+    private int[] headers = new int[HEADER_FIELDS * 16];
+    private int headerCount;
+    private int connectionHeader;
+    private int transferEncodingHeader;
+    private int transferCodingCount;
+    private boolean isLastTransferCodingChunked;
+    private long contentLength;
+
+    public RequestParser() {
+        reset();
+    }
+
+    /**
+     * Reads whatever bytes are available from the given stream (blocking until at least one byte is available) into
+     * the buffer, returning the number of bytes read, or -1 if the end of the stream has been reached.
+     */
+    public int fill(final InputStream in) throws IOException {
+        ensureCapacity(1);
+        final int read = in.read(buffer, limit, buffer.length - limit);
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * Adds all remaining bytes of the given buffer to the buffer of this parser.
+     */
+    public void append(final ByteBuffer src) {
+        final int count = src.remaining();
+        ensureCapacity(count);
+        src.get(buffer, limit, count);
+        limit += count;
+    }
+
+    /**
+     * Parses as much of the request head as possible from the bytes received so far, returning true once the head is
+     * complete (or has been found to be invalid, in which case {@link #getError()} returns the status code to respond
+     * with), or false if more bytes are needed.
+     */
+    public boolean parse() {
+        while (state == REQUEST_LINE || state == HEADERS) {
+            final int lineEnd = indexOf('\n', scanPosition);
+            if (lineEnd < 0) {
+                scanPosition = limit - start;
+                if (scanPosition > MAX_HEAD_SIZE) {
+                    fail(StatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE);
+                    break;
+                }
+                return false;
+            }
+
+            final int lineStart = position;
+            int contentEnd = lineEnd;
+            if (contentEnd > lineStart && byteAt(contentEnd - 1) == '\r') {
+                contentEnd--;
+            }
+            position = lineEnd + 1;
+            scanPosition = position;
+
+            if (position > MAX_HEAD_SIZE) {
+                fail(StatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE);
+            } else if (state == REQUEST_LINE) {
+                // empty lines preceding the request line are ignored
+                if (contentEnd > lineStart) {
+                    parseRequestLine(lineStart, contentEnd);
+                }
+            } else if (contentEnd == lineStart) {
+                if (transferEncodingHeader >= 0 && contentLength >= 0) {
+                    // a request with both could be framed differently by us and by a proxy in front of us, which is
+                    // how requests are smuggled past proxies, so we don't try to decide which of them to believe
+                    fail(StatusCode.BAD_REQUEST);
+                } else {
+                    state = COMPLETE;
+                }
+            } else {
+                parseHeaderLine(lineStart, contentEnd);
+            }
+        }
+        return true;
+    }
+
+    private void parseRequestLine(final int lineStart, final int lineEnd) {
+        if (regionEquals(lineStart, lineEnd, HTTP_2_PREFACE_LINE)) {
+            // the client knows that we speak HTTP/2, and the rest of the connection is HTTP/2 frames
+            isHttp2Preface = true;
+            state = COMPLETE;
+            return;
+        }
+
+        // the request line is split into tokens on whitespace - https://www.w3.org/Protocols/rfc2616/rfc2616-sec5.html
+        final int methodStart = skipWhitespace(lineStart, lineEnd);
+        final int methodEnd = skipToken(methodStart, lineEnd);
+        uriStart = skipWhitespace(methodEnd, lineEnd);
+        uriEnd = skipToken(uriStart, lineEnd);
+        if (uriStart == uriEnd) {
+            fail(StatusCode.BAD_REQUEST);
+            return;
+        }
+
+        method = matchMethod(methodStart, methodEnd);
+        if (method == null) {
+            fail(StatusCode.NOT_IMPLEMENTED);
+            return;
+        }
+
+        queryStart = -1;
+        for (int i = uriStart; i < uriEnd; i++) {
+            if (byteAt(i) == '?') {
+                queryStart = i + 1;
+                break;
+            }
+        }
+
+        // requests without a version are treated as HTTP/1.0 requests
+        final int versionStart = skipWhitespace(uriEnd, lineEnd);
+        final int versionEnd = skipToken(versionStart, lineEnd);
+        if (versionStart == versionEnd || regionEquals(versionStart, versionEnd, HTTP_1_0_BYTES)) {
+            httpVersion = HTTP_1_0;
+        } else if (regionEquals(versionStart, versionEnd, HTTP_1_1_BYTES)) {
+            httpVersion = HTTP_1_1;
+        } else {
+            httpVersion = asString(versionStart, versionEnd);
+        }
+        state = HEADERS;
+    }
+
+    private void parseHeaderLine(final int lineStart, final int lineEnd) {
+        int colon = lineStart;
+        while (colon < lineEnd && byteAt(colon) != ':') {
+            colon++;
+        }
+        if (colon == lineStart || colon == lineEnd) {
+            fail(StatusCode.BAD_REQUEST);
+            return;
+        }
+
+        int nameEnd = colon;
+        while (nameEnd > lineStart && isWhitespace(byteAt(nameEnd - 1))) {
+            nameEnd--;
+        }
+        final int valueStart = skipWhitespace(colon + 1, lineEnd);
+        int valueEnd = lineEnd;
+        while (valueEnd > valueStart && isWhitespace(byteAt(valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        if (regionEqualsIgnoreCase(lineStart, nameEnd, CONTENT_LENGTH)) {
+            if (!parseContentLength(valueStart, valueEnd)) {
+                fail(StatusCode.BAD_REQUEST);
+                return;
+            }
+        } else if (regionEqualsIgnoreCase(lineStart, nameEnd, CONNECTION)) {
+            connectionHeader = headerCount;
+        } else if (regionEqualsIgnoreCase(lineStart, nameEnd, TRANSFER_ENCODING)) {
+            transferEncodingHeader = headerCount;
+            parseTransferCodings(valueStart, valueEnd);
+        }
+
+        final int offset = headerCount * HEADER_FIELDS;
+        if (offset == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        headers[offset] = lineStart;
+        headers[offset + 1] = nameEnd;
+        headers[offset + 2] = valueStart;
+        headers[offset + 3] = valueEnd;
+        headerCount++;
+    }
+
+    private boolean parseContentLength(final int valueStart, final int valueEnd) {
+        if (valueStart == valueEnd) {
+            return false;
+        }
+
+        long value = 0;
+        for (int i = valueStart; i < valueEnd; i++) {
+            final byte b = byteAt(i);
+            if (b < '0' || b > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+                return false;
+            }
+            value = value * 10 + (b - '0');
+        }
+
+        // conflicting lengths would leave us unable to tell where this request ends and the next one begins
+        if (contentLength >= 0 && contentLength != value) {
+            return false;
+        }
+        contentLength = value;
+        return true;
+    }
+
+    private Method matchMethod(final int tokenStart, final int tokenEnd) {
+        for (int i = 0; i < METHOD_NAMES.length; i++) {
+            if (regionEqualsIgnoreCase(tokenStart, tokenEnd, METHOD_NAMES[i])) {
+                return METHODS[i];
+            }
+        }
+        return null;
+    }
+
+    private void fail(final StatusCode statusCode) {
+        error = statusCode;
+        state = ERROR;
+    }
+
+    /**
+     * Returns true if the head of the request has been parsed and all bytes of its body (if it has a
+     * {@code Content-Length}) have been received.
+     */
+    public boolean isRequestBuffered() {
+        return isRequestBuffered(Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns true if the head of the request has been parsed and either all bytes of its body have been received, or
+     * at least the given number of them.
+     */
+    public boolean isRequestBuffered(final long maxBodyBytes) {
+        return state == ERROR
+                || (state == COMPLETE && limit - start - position >= Math.min(Math.max(0, contentLength), maxBodyBytes));
+    }
+
+    /**
+     * Returns the status code that an invalid request should be responded to with, or null if the request is valid.
+     */
+    public StatusCode getError() {
+        return error;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the path of the request URI, without any query string.
+     */
+    public String getPath() {
+        if (path == null) {
+            path = asString(uriStart, queryStart < 0 ? uriEnd : queryStart - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the lazily-parsed query params of the request URI.
+     */
+    public QueryParams getQueryParams() {
+        return queryStart < 0 || queryStart == uriEnd ? QueryParams.EMPTY : new QueryParams(asString(queryStart, uriEnd));
+    }
+
+    public String getHttpVersion() {
+        return httpVersion;
+    }
+
+    /**
+     * Returns true if, rather than a request, the client sent the start of the HTTP/2 connection preface. The rest of
+     * the preface is read from {@link #getInputStream(InputStream)}.
+     */
+    public boolean isHttp2Preface() {
+        return isHttp2Preface;
+    }
+
+    public boolean isHttp10() {
+        return HTTP_1_0.equals(httpVersion);
+    }
+
+    /**
+     * Returns the value of the {@code Content-Length} header, or -1 if the request does not have one.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns true if the request has a {@code Transfer-Encoding} header.
+     */
+    public boolean hasTransferEncoding() {
+        return transferEncodingHeader >= 0;
+    }
+
+    /**
+     * Returns true if the body of the request is sent with chunked transfer-encoding and no other transfer coding, which
+     * is the case when 'chunked' is the only coding across all of its {@code Transfer-Encoding} headers. A request with
+     * any other coding (such as 'gzip, chunked') has a body that we can't decode.
+     */
+    public boolean isChunked() {
+        return transferCodingCount == 1 && isLastTransferCodingChunked;
+    }
+
+    /**
+     * Returns the value of the first header with the given name (compared without regard to case), or null if the
+     * request does not have one. Unlike {@link #getHeaders()}, this does not copy the rest of the head.
+     */
+    public String getHeaderValue(final String name) {
+        for (int i = 0; i < headerCount; i++) {
+            final int offset = i * HEADER_FIELDS;
+            if (regionEqualsIgnoreCase(headers[offset], headers[offset + 1], name)) {
+                return asString(headers[offset + 2], headers[offset + 3]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the {@code Connection} header of the request contains the given option (compared without regard
+     * to case), such as 'close' or 'keep-alive'.
+     */
+    public boolean hasConnectionOption(final String option) {
+        if (connectionHeader < 0) {
+            return false;
+        }
+
+        final int offset = connectionHeader * HEADER_FIELDS;
+        final int valueEnd = headers[offset + 3];
+        int tokenStart = headers[offset + 2];
+        while (tokenStart < valueEnd) {
+            int tokenEnd = tokenStart;
+            while (tokenEnd < valueEnd && byteAt(tokenEnd) != ',') {
+                tokenEnd++;
+            }
+            int end = tokenEnd;
+            while (end > tokenStart && isWhitespace(byteAt(end - 1))) {
+                end--;
+            }
+            if (regionEqualsIgnoreCase(tokenStart, end, option)) {
+                return true;
+            }
+            tokenStart = skipWhitespace(tokenEnd + 1, valueEnd);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the headers of the request. The bytes of the head are copied out of the (reused) buffer, but each
+     * {@link Header} is only created when it is first accessed.
+     */
+    public List<Header> getHeaders() {
+        if (headerCount == 0) {
+            return new HeaderList(null, null, 0);
+        }
+
+        final int headStart = headers[0];
+        final byte[] head = Arrays.copyOfRange(buffer, start + headStart, start + headers[(headerCount - 1) * HEADER_FIELDS + 3]);
+        final int[] lines = new int[headerCount * 2];
+        for (int i = 0; i < headerCount; i++) {
+            lines[i * 2] = headers[i * HEADER_FIELDS] - headStart;
+            lines[i * 2 + 1] = headers[i * HEADER_FIELDS + 3] - headStart;
+        }
+        return new HeaderList(head, lines, headerCount);
+    }
+
+    /**
+     * Returns a stream over the bytes that follow the head of the current request, which reads from the given source
+     * stream (if any) once all buffered bytes have been read.
+     */
+    public InputStream getInputStream(final InputStream source) {
+        return new BufferedBytesInputStream(source);
+    }
+
+    /**
+     * Returns true if any bytes of the current request have been received.
+     */
+    public boolean hasRequestStarted() {
+        return limit > start;
+    }
+
+    /**
+     * Returns true if there are any bytes in the buffer that have not yet been parsed or read.
+     */
+    public boolean hasBufferedBytes() {
+        return limit - start > position;
+    }
+
+    /**
+     * Discards the current request (its head, and any bytes of its body that have been read), so that the next request
+     * can be parsed from the bytes that follow it.
+     */
+    public void next() {
+        start += position;
+        if (start == limit) {
+            start = 0;
+            limit = 0;
+            if (buffer.length > INITIAL_BUFFER_SIZE) {
+                // don't let a single large request pin memory for the lifetime of the connection
+                buffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+        reset();
+    }
+
+    private void reset() {
+        position = 0;
+        scanPosition = 0;
+        state = REQUEST_LINE;
+        error = null;
+        isHttp2Preface = false;
+        method = null;
+        httpVersion = null;
+        path = null;
+        headerCount = 0;
+        connectionHeader = -1;
+        transferEncodingHeader = -1;
+        transferCodingCount = 0;
+        isLastTransferCodingChunked = false;
+        contentLength = -1;
+    }
+
+    private void ensureCapacity(final int count) {
+        if (buffer.length - limit >= count) {
+            return;
+        }
+
+        final int length = limit - start;
+        if (buffer.length - length >= count && start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, length);
+        } else {
+            final byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + count)];
+            System.arraycopy(buffer, start, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+        start = 0;
+        limit = length;
+    }
+
+    private byte byteAt(final int offset) {
+        return buffer[start + offset];
+    }
+
+    private int indexOf(final char c, final int from) {
+        for (int i = start + from; i < limit; i++) {
+            if (buffer[i] == c) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    // a Transfer-Encoding header may list more than one coding, and may be repeated to add further codings to the list,
+    // so the codings are counted across every header
+    private void parseTransferCodings(final int valueStart, final int valueEnd) {
+        int tokenStart = valueStart;
+        while (tokenStart < valueEnd) {
+            int tokenEnd = tokenStart;
+            while (tokenEnd < valueEnd && byteAt(tokenEnd) != ',') {
+                tokenEnd++;
+            }
+            int end = tokenEnd;
+            while (end > tokenStart && isWhitespace(byteAt(end - 1))) {
+                end--;
+            }
+            // empty elements of the list are allowed, and don't count as a coding
+            if (end > tokenStart) {
+                transferCodingCount++;
+                isLastTransferCodingChunked = regionEqualsIgnoreCase(tokenStart, end, "chunked");
+            }
+            tokenStart = skipWhitespace(tokenEnd + 1, valueEnd);
+        }
+    }
+
+    private int skipWhitespace(int offset, final int end) {
+        while (offset < end && isWhitespace(byteAt(offset))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private int skipToken(int offset, final int end) {
+        while (offset < end && !isWhitespace(byteAt(offset))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private boolean regionEquals(final int from, final int to, final byte[] expected) {
+        if (to - from != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (byteAt(from + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(final int from, final int to, final byte[] expected) {
+        if (to - from != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (toLowerCase(byteAt(from + i)) != toLowerCase(expected[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(final int from, final int to, final String expected) {
+        if (to - from != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (toLowerCase(byteAt(from + i)) != toLowerCase((byte) expected.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(final byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private String asString(final int from, final int to) {
+        return new String(buffer, start + from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The headers of a single request, backed by a copy of the bytes of the request head.
+     */
+    private static final class HeaderList extends AbstractList<Header> {
+        private final byte[] head;
+        private final int[] lines;
+        private final Header[] headers;
+
+        private HeaderList(final byte[] head, final int[] lines, final int size) {
+            this.head = head;
+            this.lines = lines;
+            this.headers = new Header[size];
+        }
+
+        @Override
+        public Header get(final int index) {
+            if (index < 0 || index >= headers.length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + headers.length);
+            }
+            if (headers[index] == null) {
+                final int lineStart = lines[index * 2];
+                headers[index] = new Header(new String(head, lineStart, lines[index * 2 + 1] - lineStart,
+                        StandardCharsets.UTF_8));
+            }
+            return headers[index];
+        }
+
+        @Override
+        public int size() {
+            return headers.length;
+        }
+    }
+
+    /**
+     * Reads the buffered bytes that follow the request head, and then from the source stream.
+     */
+    private final class BufferedBytesInputStream extends InputStream {
+        private final InputStream source;
+
+        private BufferedBytesInputStream(final InputStream source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (hasBufferedBytes()) {
+                return buffer[start + position++] & 0xFF;
+            }
+            return source == null ? -1 : source.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final int buffered = limit - start - position;
+            if (buffered > 0) {
+                final int count = Math.min(len, buffered);
+                System.arraycopy(buffer, start + position, b, off, count);
+                position += count;
+                return count;
+            }
+            return source == null ? -1 : source.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            final int buffered = limit - start - position;
+            return buffered > 0 || source == null ? buffered : source.available();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.Header;
+import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the head of a response (the status line and headers) as bytes. The parts that are the same for many responses
+ * - the status line of each {@link StatusCode}, the 'Server' header and common header lines - are encoded once up
+ * front, and the 'Date' header is encoded at most once per second, so that writing them is just an array copy.
+ */
+public final class ResponseHead {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HEADER_SEPARATOR = { ':', ' ' };
+    static final String SERVER_NAME = "TeenyHttpd from JonathanGiles.net : 1.0";
+
+    private static final byte[] SERVER = ascii("Server: " + SERVER_NAME + "\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CONTENT_LENGTH_ZERO = ascii("Content-Length: 0\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+
+    private static final byte[][] CONTENT_ENCODINGS;
+    static {
+        final ContentCoding[] codings = ContentCoding.values();
+        CONTENT_ENCODINGS = new byte[codings.length][];
+        for (ContentCoding coding : codings) {
+            CONTENT_ENCODINGS[coding.ordinal()] = ascii("Content-Encoding: " + coding.getName() + "\r\n");
+        }
+    }
+
+    private static final byte[][] STATUS_LINES;
+    static {
+        final StatusCode[] statusCodes = StatusCode.values();
+        STATUS_LINES = new byte[statusCodes.length][];
+        for (StatusCode statusCode : statusCodes) {
+            STATUS_LINES[statusCode.ordinal()] = ascii(statusCode + "\r\n");
+        }
+    }
+
+    // the IMF-fixdate format required by RFC 7231, e.g. 'Sun, 06 Nov 1994 08:49:37 GMT'
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile CachedDate cachedDate = new CachedDate(0);
+
+    private ResponseHead() { }
+
+    public static void writeStatusLine(final OutputStream out, final StatusCode statusCode) throws IOException {
+        out.write(STATUS_LINES[statusCode.ordinal()]);
+    }
+
+    /**
+     * Writes the 'Server' and 'Date' headers that are sent with every response.
+     */
+    public static void writeServerAndDate(final OutputStream out) throws IOException {
+        out.write(SERVER);
+        out.write(dateHeader(System.currentTimeMillis()));
+    }
+
+    public static void writeHeader(final OutputStream out, final Header header) throws IOException {
+        writeString(out, header.getKey());
+        out.write(HEADER_SEPARATOR);
+        final List<String> values = header.getValues();
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+                out.write(' ');
+            }
+            writeString(out, values.get(i));
+        }
+        out.write(CRLF);
+    }
+
+    public static void writeContentLength(final OutputStream out, final long contentLength) throws IOException {
+        if (contentLength == 0) {
+            out.write(CONTENT_LENGTH_ZERO);
+            return;
+        }
+        out.write(CONTENT_LENGTH);
+        writeString(out, Long.toString(contentLength));
+        out.write(CRLF);
+    }
+
+    public static void writeTransferEncodingChunked(final OutputStream out) throws IOException {
+        out.write(TRANSFER_ENCODING_CHUNKED);
+    }
+
+    /**
+     * Writes the headers that say the body varies by the request's 'Accept-Encoding' header, and which content coding
+     * it has been compressed with (if it has been compressed).
+     */
+    public static void writeContentCoding(final OutputStream out, final ContentCoding coding) throws IOException {
+        out.write(VARY_ACCEPT_ENCODING);
+        if (coding != ContentCoding.IDENTITY) {
+            out.write(CONTENT_ENCODINGS[coding.ordinal()]);
+        }
+    }
+
+    public static void writeConnection(final OutputStream out, final boolean keepAlive) throws IOException {
+        out.write(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+    }
+
+    /**
+     * Writes the empty line that ends the head of the response.
+     */
+    public static void writeEnd(final OutputStream out) throws IOException {
+        out.write(CRLF);
+    }
+
+    /**
+     * Formats the given time as an IMF-fixdate, as used by the 'Date' and 'Last-Modified' headers.
+     */
+    public static String formatDate(final long epochMillis) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /**
+     * Returns the encoded 'Date' header line for the given time, which is only re-encoded when the second changes.
+     */
+    static byte[] dateHeader(final long nowMillis) {
+        return cachedDate(nowMillis).header;
+    }
+
+    /**
+     * Returns the value of the 'Date' header for the current time, for responses whose heads are not written as
+     * HTTP/1.1 text.
+     */
+    static String currentDate() {
+        return cachedDate(System.currentTimeMillis()).value;
+    }
+
+    private static CachedDate cachedDate(final long nowMillis) {
+        final long second = nowMillis / 1000;
+        CachedDate date = cachedDate;
+        if (date.second != second) {
+            // racing threads may each encode the date, but they all encode the same value
+            date = new CachedDate(second);
+            cachedDate = date;
+        }
+        return date;
+    }
+
+    private static void writeString(final OutputStream out, final String s) throws IOException {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) >= 0x80) {
+                // headers are almost always ASCII, so we only pay for encoding the string when they are not
+                out.write(s.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    private static byte[] ascii(final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final class CachedDate {
+        private final long second;
+        private final String value;
+        private final byte[] header;
+
+        CachedDate(final long second) {
+            this.second = second;
+            this.value = IMF_FIXDATE.format(Instant.ofEpochSecond(second));
+            this.header = ascii("Date: " + value + "\r\n");
+        }
+    }
+}
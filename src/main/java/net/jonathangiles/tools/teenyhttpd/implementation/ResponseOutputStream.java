@@ -0,0 +1,177 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The buffered stream that all responses on a connection are written to. Calls to {@link #flush()} - including those
+ * made by {@link net.jonathangiles.tools.teenyhttpd.model.Response#writeBody(BufferedOutputStream)} implementations -
+ * are deferred, and the buffered bytes are only sent to the client when {@link #flushToClient()} is called. This allows
+ * the responses to pipelined requests to be sent together, rather than with one write per response. The buffer comes
+ * from the {@link BufferPool}, and if the transport supports it, bytes that do not fit in the buffer are sent together
+ * with those that are already buffered in one {@link GatheringOutputStream gathering write}. Likewise, files that do
+ * not fit in the buffer are {@link FileTransferOutputStream transferred} straight to the client where the transport
+ * supports it.
+ *
+ * <p>A connection is only ever served by one thread at a time, so unlike {@link BufferedOutputStream} this stream does
+ * not synchronize. This also means that a virtual thread that blocks while writing to the client does not pin its
+ * carrier thread.</p>
+ */
+public class ResponseOutputStream extends BufferedOutputStream {
+
+    public ResponseOutputStream(final OutputStream out) {
+        // the buffer allocated by the superclass is not used - a pooled buffer is taken when the first byte is written,
+        // and given back once the response has been sent
+        super(out, 1);
+        buf = null;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (buf == null) {
+            buf = BufferPool.acquire();
+        } else if (count == buf.length) {
+            flushBuffer();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (buf == null) {
+            buf = BufferPool.acquire();
+        }
+        if (len <= buf.length - count) {
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+            return;
+        }
+
+        if (count > 0 && out instanceof GatheringOutputStream) {
+            // the buffered bytes (typically the response head) and the new bytes go out in a single write
+            ((GatheringOutputStream) out).write(buf, 0, count, b, off, len);
+            count = 0;
+        } else if (len >= buf.length) {
+            // there is no point copying large writes into the buffer, so they go straight to the client
+            flushBuffer();
+            out.write(b, off, len);
+        } else {
+            flushBuffer();
+            System.arraycopy(b, off, buf, 0, len);
+            count = len;
+        }
+    }
+
+    /**
+     * Writes the given number of bytes of the file, starting at the given position. A region that fits in the buffer
+     * is read into it, so that it is sent together with whatever is already buffered (typically the response head).
+     * Larger regions are sent straight from the file to the client, without being copied through the JVM, if the
+     * transport supports it - otherwise they are copied through the buffer.
+     */
+    public void transferFrom(final FileChannel file, long position, long length) throws IOException {
+        if (buf == null) {
+            buf = BufferPool.acquire();
+        }
+        if (length <= buf.length - count) {
+            readFully(file, position, buf, count, (int) length);
+            count += (int) length;
+            return;
+        }
+
+        flushBuffer();
+        if (out instanceof FileTransferOutputStream) {
+            ((FileTransferOutputStream) out).transferFrom(file, position, length);
+            return;
+        }
+        while (length > 0) {
+            final int chunk = (int) Math.min(buf.length, length);
+            readFully(file, position, buf, 0, chunk);
+            out.write(buf, 0, chunk);
+            position += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer. Like {@link #transferFrom(FileChannel, long, long)}, bytes that do not
+     * fit in the buffer are written to the client straight from the given buffer where the transport supports it,
+     * together with whatever is already buffered.
+     */
+    public void write(final ByteBuffer src) throws IOException {
+        if (buf == null) {
+            buf = BufferPool.acquire();
+        }
+        if (src.remaining() <= buf.length - count) {
+            final int length = src.remaining();
+            src.get(buf, count, length);
+            count += length;
+            return;
+        }
+
+        if (out instanceof FileTransferOutputStream) {
+            ((FileTransferOutputStream) out).write(ByteBuffer.wrap(buf, 0, count), src);
+            count = 0;
+            return;
+        }
+        flushBuffer();
+        while (src.hasRemaining()) {
+            final int chunk = Math.min(buf.length, src.remaining());
+            src.get(buf, 0, chunk);
+            out.write(buf, 0, chunk);
+        }
+    }
+
+    private static void readFully(final FileChannel file, final long position, final byte[] b, final int off,
+                                  final int len) throws IOException {
+        final ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+        while (dst.hasRemaining()) {
+            if (file.read(dst, position + dst.position() - off) < 0) {
+                throw new EOFException("The file ended before all of it was sent");
+            }
+        }
+    }
+
+    /**
+     * Does nothing - use {@link #flushToClient()} to send buffered bytes to the client.
+     */
+    @Override
+    public void flush() {
+        // deferred until flushToClient() is called
+    }
+
+    /**
+     * Sends all buffered bytes to the client, and gives the buffer back to the pool until more bytes are written.
+     */
+    public void flushToClient() throws IOException {
+        try {
+            flushBuffer();
+            out.flush();
+        } finally {
+            if (buf != null) {
+                BufferPool.release(buf);
+                buf = null;
+                count = 0;
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushToClient();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches request paths to the routes that have been registered for them, using a tree with one level per path segment.
+ * Route paths are made up of:
+ *
+ * <ul>
+ *     <li>Static segments (such as 'user' in '/user/:id'), which are found with a single map lookup, without regard to
+ *     case.</li>
+ *     <li>Path param segments (such as ':id'), which match any single segment and capture it under the given name.</li>
+ *     <li>Anything else (such as the '(?&lt;filePath&gt;.*)' used by file routes), in which case the route path from
+ *     that segment onwards is treated as a regular expression, which is matched against the rest of the request
+ *     path.</li>
+ * </ul>
+ *
+ * <p>A request path is matched in a single pass over its segments. Where more than one route could match, static
+ * segments are preferred over path params, which are preferred over regular expressions. Captured path params are
+ * only URL-decoded if they contain an escape sequence.</p>
+ *
+ * @param <T> The type of value registered for each route.
+ */
+public class Router<T> {
+    // the characters that mean a segment is a regular expression rather than a static segment or path param
+    private static final String REGEX_CHARACTERS = "\\[](){}*+?^$|";
+
+    private static final Pattern PATH_PARAM_PATTERN = Pattern.compile(":([^/]*+)");
+    private static final Pattern NAMED_GROUP_PATTERN = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    private final Node<T> root = new Node<>();
+
+    /**
+     * Registers the given value for the given route path, returning the value that is registered for it afterwards.
+     * If a value has already been registered for an equivalent route path, the existing value is kept and returned.
+     */
+    public T add(String path, final T value) {
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+
+        Node<T> node = root;
+        final List<String> paramNames = new ArrayList<>();
+        int segmentStart = 1;
+        while (true) {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            if (segmentEnd < 0) {
+                segmentEnd = path.length();
+            }
+            final String segment = path.substring(segmentStart, segmentEnd);
+
+            if (isRegex(segment) || (segment.indexOf(':') > 0)) {
+                // the rest of the path is a regular expression
+                return node.addRegexRoute(new RegexRoute<>(path.substring(segmentStart), paramNames, value));
+            } else if (segment.startsWith(":")) {
+                paramNames.add(segment.substring(1));
+                if (node.paramChild == null) {
+                    node.paramChild = new Node<>();
+                }
+                node = node.paramChild;
+            } else {
+                node = node.getOrCreateStaticChild(segment.toLowerCase(Locale.ROOT));
+            }
+
+            if (segmentEnd == path.length()) {
+                break;
+            }
+            segmentStart = segmentEnd + 1;
+        }
+
+        if (node.value == null) {
+            node.value = value;
+            node.paramNames = paramNames;
+        }
+        return node.value;
+    }
+
+    /**
+     * Returns the route that best matches the given request path, or null if no route matches it.
+     */
+    public Match<T> find(final String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        return find(root, path, 1, new ArrayList<>());
+    }
+
+    /**
+     * Returns the values of all routes that match the given request path, without capturing any path params.
+     */
+    public List<T> findAll(final String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return Collections.emptyList();
+        }
+        final List<T> values = new ArrayList<>();
+        findAll(root, path, 1, values);
+        return values;
+    }
+
+    private Match<T> find(final Node<T> node, final String path, final int segmentStart, final List<String> params) {
+        if (segmentStart > path.length()) {
+            // we have consumed every segment of the path
+            return node.value == null ? null : new Match<>(node.value, toMap(node.paramNames, params, null, null));
+        }
+
+        int segmentEnd = path.indexOf('/', segmentStart);
+        if (segmentEnd < 0) {
+            segmentEnd = path.length();
+        }
+
+        if (node.staticChildren != null) {
+            final String segment = path.substring(segmentStart, segmentEnd);
+            Node<T> child = node.staticChildren.get(segment);
+            if (child == null && hasUpperCase(segment)) {
+                child = node.staticChildren.get(segment.toLowerCase(Locale.ROOT));
+            }
+            if (child != null) {
+                final Match<T> match = find(child, path, segmentEnd + 1, params);
+                if (match != null) {
+                    return match;
+                }
+            }
+        }
+
+        if (node.paramChild != null) {
+            params.add(path.substring(segmentStart, segmentEnd));
+            final Match<T> match = find(node.paramChild, path, segmentEnd + 1, params);
+            if (match != null) {
+                return match;
+            }
+            params.remove(params.size() - 1);
+        }
+
+        if (node.regexRoutes != null) {
+            final String remainder = path.substring(segmentStart);
+            for (RegexRoute<T> regexRoute : node.regexRoutes) {
+                final Matcher matcher = regexRoute.pattern.matcher(remainder);
+                if (matcher.matches()) {
+                    return new Match<>(regexRoute.value,
+                            toMap(regexRoute.paramNames, params, regexRoute.groupNames, matcher));
+                }
+            }
+        }
+        return null;
+    }
+
+    private void findAll(final Node<T> node, final String path, final int segmentStart, final List<T> values) {
+        if (segmentStart > path.length()) {
+            if (node.value != null) {
+                values.add(node.value);
+            }
+            return;
+        }
+
+        int segmentEnd = path.indexOf('/', segmentStart);
+        if (segmentEnd < 0) {
+            segmentEnd = path.length();
+        }
+
+        if (node.staticChildren != null) {
+            final String segment = path.substring(segmentStart, segmentEnd);
+            Node<T> child = node.staticChildren.get(segment);
+            if (child == null && hasUpperCase(segment)) {
+                child = node.staticChildren.get(segment.toLowerCase(Locale.ROOT));
+            }
+            if (child != null) {
+                findAll(child, path, segmentEnd + 1, values);
+            }
+        }
+
+        if (node.paramChild != null) {
+            findAll(node.paramChild, path, segmentEnd + 1, values);
+        }
+
+        if (node.regexRoutes != null) {
+            final String remainder = path.substring(segmentStart);
+            for (RegexRoute<T> regexRoute : node.regexRoutes) {
+                if (regexRoute.pattern.matcher(remainder).matches()) {
+                    values.add(regexRoute.value);
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> toMap(final List<String> paramNames, final List<String> params,
+                                             final List<String> groupNames, final Matcher matcher) {
+        if (paramNames.isEmpty() && (groupNames == null || groupNames.isEmpty())) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < paramNames.size(); i++) {
+            map.put(paramNames.get(i), decode(params.get(i)));
+        }
+        if (groupNames != null) {
+            for (String groupName : groupNames) {
+                final String group = matcher.group(groupName);
+                if (group != null) {
+                    map.put(groupName, decode(group));
+                }
+            }
+        }
+        return map;
+    }
+
+    private static String decode(final String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        try {
+            // a '+' in a path is a literal plus sign rather than an encoded space
+            return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // the value is not validly encoded, so we pass it on as it is
+            return value;
+        }
+    }
+
+    private static boolean isRegex(final String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            if (REGEX_CHARACTERS.indexOf(segment.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasUpperCase(final String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            if (Character.isUpperCase(segment.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The result of matching a request path: the value registered for the matching route, and the path params that
+     * were captured from the request path.
+     */
+    public static final class Match<T> {
+        private final T value;
+        private final Map<String, String> pathParams;
+
+        private Match(final T value, final Map<String, String> pathParams) {
+            this.value = value;
+            this.pathParams = pathParams;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public Map<String, String> getPathParams() {
+            return pathParams;
+        }
+    }
+
+    private static final class Node<T> {
+        private Map<String, Node<T>> staticChildren;
+        private Node<T> paramChild;
+        private List<RegexRoute<T>> regexRoutes;
+
+        // the value of the route that ends at this node, if any, and the names of the path params captured on the way
+        private T value;
+        private List<String> paramNames;
+
+        Node<T> getOrCreateStaticChild(final String segment) {
+            if (staticChildren == null) {
+                staticChildren = new HashMap<>();
+            }
+            return staticChildren.computeIfAbsent(segment, k -> new Node<>());
+        }
+
+        T addRegexRoute(final RegexRoute<T> regexRoute) {
+            if (regexRoutes == null) {
+                regexRoutes = new ArrayList<>();
+            }
+            for (RegexRoute<T> existing : regexRoutes) {
+                if (existing.pattern.pattern().equals(regexRoute.pattern.pattern())) {
+                    return existing.value;
+                }
+            }
+            regexRoutes.add(regexRoute);
+            return regexRoute.value;
+        }
+    }
+
+    private static final class RegexRoute<T> {
+        private final Pattern pattern;
+        private final List<String> paramNames;
+        private final List<String> groupNames = new ArrayList<>();
+        private final T value;
+
+        RegexRoute(final String regex, final List<String> paramNames, final T value) {
+            // path params within the regular expression become named groups, so that they are captured as well
+            final String expandedRegex = PATH_PARAM_PATTERN.matcher(regex).replaceAll("(?<$1>[^/]*+)");
+            this.pattern = Pattern.compile(expandedRegex, Pattern.CASE_INSENSITIVE);
+            this.paramNames = paramNames;
+            this.value = value;
+
+            final Matcher matcher = NAMED_GROUP_PATTERN.matcher(expandedRegex);
+            while (matcher.find()) {
+                groupNames.add(matcher.group(1));
+            }
+        }
+    }
+}
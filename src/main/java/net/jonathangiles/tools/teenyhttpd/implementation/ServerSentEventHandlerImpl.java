@@ -4,22 +4,51 @@ import net.jonathangiles.tools.teenyhttpd.model.Request;
 import net.jonathangiles.tools.teenyhttpd.model.ServerSentEventHandler;
 import net.jonathangiles.tools.teenyhttpd.model.ServerSentEventMessage;
 
-import java.io.PrintWriter;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
+/**
+ * Sends messages to the clients of a server-sent event stream. Each client has a bounded queue of encoded messages,
+ * which is drained by a writer thread whenever it has messages in it, so sending a message never blocks on a client's
+ * connection, and a slow (or stalled) client only holds up its own messages. Once a client's queue is full, the
+ * overflow policy decides whether the oldest or the newest message is dropped, or the client is disconnected. A client
+ * whose writer has been stuck on a single write for longer than the write timeout is disconnected, so that a client
+ * that has stopped reading can not hold a writer thread for good.
+ */
 public abstract class ServerSentEventHandlerImpl implements ServerSentEventHandler {
-    private boolean isActive = false;
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final long DEFAULT_WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
 
-    private final List<ServerSentEventRequest> clients = new CopyOnWriteArrayList<>();
+
+    private volatile boolean isActive = false;
+
+    private final Map<ServerSentEventRequest, Client> clients = new ConcurrentHashMap<>();
+
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private volatile long writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WRITE_TIMEOUT_MILLIS);
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    // checks the writers for as long as the event stream is active
+    private ScheduledFuture<?> writeCheck;
 
     /** {@inheritDoc} */
     @Override public final void onConnect(Request request) {
         if (!(request instanceof ServerSentEventRequest)) {
             throw new IllegalArgumentException("Request must be an instance of ServerSentEventRequest");
         }
-        clients.add((ServerSentEventRequest) request);
+        clients.put((ServerSentEventRequest) request, new Client((ServerSentEventRequest) request));
         checkState();
     }
 
@@ -28,8 +57,11 @@ public abstract class ServerSentEventHandlerImpl implements ServerSentEventHandl
         if (!(request instanceof ServerSentEventRequest)) {
             throw new IllegalArgumentException("Request must be an instance of ServerSentEventRequest");
         }
-        clients.remove((ServerSentEventRequest) request);
-        checkState();
+        final Client client = clients.remove(request);
+        if (client != null) {
+            droppedMessages.addAndGet(client.clear());
+            checkState();
+        }
     }
 
     /** {@inheritDoc} */
@@ -37,34 +69,236 @@ public abstract class ServerSentEventHandlerImpl implements ServerSentEventHandl
         return isActive;
     }
 
+    /** {@inheritDoc} */
+    @Override public void setQueueCapacity(final int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "overflowPolicy must not be null");
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setWriteTimeout(final Duration writeTimeout) {
+        if (writeTimeout == null || writeTimeout.isZero() || writeTimeout.isNegative()) {
+            throw new IllegalArgumentException("writeTimeout must be positive");
+        }
+        this.writeTimeoutNanos = writeTimeout.toNanos();
+    }
+
+    /** {@inheritDoc} */
+    @Override public int getQueuedMessageCount() {
+        int count = 0;
+        for (Client client : clients.values()) {
+            count += client.getQueueDepth();
+        }
+        return count;
+    }
+
+    /** {@inheritDoc} */
+    @Override public int getMaxQueueDepth() {
+        int max = 0;
+        for (Client client : clients.values()) {
+            max = Math.max(max, client.getQueueDepth());
+        }
+        return max;
+    }
+
+    /** {@inheritDoc} */
+    @Override public long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
+
     /** {@inheritDoc} */
     @Override public final void sendMessage(final Function<Request, ServerSentEventMessage> messageGenerator) {
         if (!hasActiveConnections()) {
             return;
         }
 
-        clients.forEach(client -> {
-            PrintWriter writer = client.getWriter();
-            if (writer != null) {
-                if (writer.checkError()) {
-                    // an error here means that the client has disconnected - so we should perform a disconnection
-                    onDisconnect(client);
-                    return;
-                }
-                writer.write(messageGenerator.apply(client).toString());
-                writer.write("\n\n");
-                writer.flush();
+        // a message that is the same for every client (as it is unless it is tailored per client) is only encoded once
+        ServerSentEventMessage lastMessage = null;
+        byte[] event = null;
+        for (Client client : clients.values()) {
+            final ServerSentEventMessage message = messageGenerator.apply(client.request);
+            if (message != lastMessage || event == null) {
+                event = (message + "\n\n").getBytes(StandardCharsets.UTF_8);
+                lastMessage = message;
             }
-        });
+            client.offer(event);
+        }
+    }
+
+    /**
+     * Disconnects all clients, closing their event streams. This is called when the server stops.
+     */
+    public void closeAll() {
+        clients.keySet().forEach(this::disconnect);
     }
 
-    private void checkState() {
+    private void disconnect(final ServerSentEventRequest request) {
+        onDisconnect(request);
+        request.close();
+    }
+
+    private synchronized void checkState() {
         if (!isActive && !clients.isEmpty()) {
             isActive = true;
+            writeCheck = Writers.scheduleCheck(this::checkWriters);
             onActive();
         } else if (isActive && clients.isEmpty()) {
             isActive = false;
+            writeCheck.cancel(false);
+            writeCheck = null;
             onInactive();
         }
     }
+
+    /**
+     * Disconnects the clients whose writers have been waiting on a single write for longer than the write timeout.
+     */
+    private void checkWriters() {
+        final long now = System.nanoTime();
+        for (Client client : clients.values()) {
+            final long writeStarted = client.writeStarted;
+            if (writeStarted != 0 && now - writeStarted > writeTimeoutNanos) {
+                // the stalled write fails once the connection is closed, after which its writer thread disconnects
+                // the client in the usual way
+                onDisconnect(client.request);
+                client.request.abort();
+            }
+        }
+    }
+
+    /**
+     * A client, along with the queue of events that are waiting to be written to it. While the queue has events in it,
+     * a writer thread writes them to the client, flushing whenever it has caught up.
+     */
+    private final class Client implements Runnable {
+        private final ServerSentEventRequest request;
+
+        // a lock rather than a monitor, so that a virtual thread waiting for it does not pin its carrier thread
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private boolean isWriting;
+        private boolean isDisconnected;
+
+        // when the write that the writer is waiting on started, or zero if it is not writing
+        private volatile long writeStarted;
+
+        private Client(final ServerSentEventRequest request) {
+            this.request = request;
+        }
+
+        void offer(final byte[] event) {
+            final boolean startWriting;
+            lock.lock();
+            try {
+                if (isDisconnected) {
+                    droppedMessages.incrementAndGet();
+                    return;
+                } else if (queue.size() >= queueCapacity) {
+                    switch (overflowPolicy) {
+                        case DROP_OLDEST:
+                            queue.poll();
+                            droppedMessages.incrementAndGet();
+                            break;
+                        case DROP_NEWEST:
+                            droppedMessages.incrementAndGet();
+                            return;
+                        default:
+                            // the new event is dropped along with those that are queued, once the client is removed.
+                            // The client is disconnected on another thread, as closing the connection may have to
+                            // wait for a stalled write.
+                            isDisconnected = true;
+                            droppedMessages.incrementAndGet();
+                            Writers.execute(() -> disconnect(request));
+                            return;
+                    }
+                }
+                queue.add(event);
+                startWriting = !isWriting;
+                isWriting = true;
+            } finally {
+                lock.unlock();
+            }
+            if (startWriting) {
+                Writers.execute(this);
+            }
+        }
+
+        int getQueueDepth() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Empties the queue, returning the number of events that will now never be written.
+         */
+        int clear() {
+            lock.lock();
+            try {
+                final int count = queue.size();
+                queue.clear();
+                isDisconnected = true;
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Writes events until the queue is empty, and then flushes them to the client.
+         */
+        @Override public void run() {
+            final OutputStream out = request.getOutputStream();
+            try {
+                while (true) {
+                    byte[] event = poll(false);
+                    if (event == null) {
+                        writeStarted = System.nanoTime();
+                        out.flush();
+                        writeStarted = 0;
+                        // more events may have been queued while we were flushing
+                        event = poll(true);
+                        if (event == null) {
+                            return;
+                        }
+                    }
+                    writeStarted = System.nanoTime();
+                    out.write(event);
+                    writeStarted = 0;
+                }
+            } catch (IOException e) {
+                // the client has disconnected
+                disconnect(request);
+            } finally {
+                writeStarted = 0;
+            }
+        }
+
+        /**
+         * Takes the next event from the queue, and if there is none and 'isLast' is true, lets the next event that is
+         * queued start a new writer.
+         */
+        private byte[] poll(final boolean isLast) {
+            lock.lock();
+            try {
+                final byte[] event = queue.poll();
+                if (event == null && isLast) {
+                    isWriting = false;
+                }
+                return event;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 }
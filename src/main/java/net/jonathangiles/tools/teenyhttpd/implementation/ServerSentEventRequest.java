@@ -5,29 +5,68 @@ import net.jonathangiles.tools.teenyhttpd.model.Headers;
 import net.jonathangiles.tools.teenyhttpd.model.Method;
 import net.jonathangiles.tools.teenyhttpd.model.Request;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 import java.util.Optional;
 
 public class ServerSentEventRequest implements Request, Closeable {
     private final Request request;
-    private final PrintWriter out;
+    private final Closeable connection;
+    private final OutputStream out;
 
-    public ServerSentEventRequest(final Request request, final Socket clientSocket) throws IOException {
+    public ServerSentEventRequest(final Request request, final ClientConnection connection) throws IOException {
+        this(request, connection.getOutputStream(), connection);
+    }
+
+    /**
+     * Creates an event stream that is written to the given stream rather than straight to the connection, as it is on
+     * an HTTP/2 connection. Closing the event stream closes the given stream, and then the given closeable.
+     */
+    public ServerSentEventRequest(final Request request, final OutputStream out, final Closeable connection) {
         this.request = request;
-        this.out = new PrintWriter(clientSocket.getOutputStream());
+        this.connection = connection;
+        this.out = out;
     }
 
-    public PrintWriter getWriter() {
+    /**
+     * Returns the stream that events are written to.
+     */
+    public OutputStream getOutputStream() {
         return out;
     }
 
+    /**
+     * Closes the connection to the client without closing the event stream first, which would flush it. This is how a
+     * client that has stopped reading is cut off, as it fails a write that is waiting for the client, rather than
+     * joining it in waiting.
+     */
+    public void abort() {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // the client has gone away already
+        }
+    }
+
+    /**
+     * Closes the event stream, and with it the connection to the client.
+     */
     @Override
     public void close() {
-        out.close();
+        try {
+            out.close();
+        } catch (IOException e) {
+            // the client has gone away already
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // the client has gone away already
+        }
     }
 
     @Override
@@ -45,6 +84,16 @@ public class ServerSentEventRequest implements Request, Closeable {
         return null;
     }
 
+    @Override
+    public InputStream getBodyStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public long getContentLength() {
+        return 0;
+    }
+
     @Override
     public Map<String, Header> getHeaders() {
         return request.getHeaders();
@@ -6,6 +6,12 @@ import net.jonathangiles.tools.teenyhttpd.model.Method;
 import net.jonathangiles.tools.teenyhttpd.model.QueryParams;
 import net.jonathangiles.tools.teenyhttpd.model.Request;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -20,6 +26,7 @@ public class SimpleRequest implements Request {
     private List<Header> headers;
     private Map<String, Header> headersMap;
     private String body;
+    private RequestBody requestBody;
     private Map<String, String> pathParams; // FIXME: this is a hack
 
     public SimpleRequest(final Method method, final String path, final QueryParams queryParams) {
@@ -56,6 +63,12 @@ public class SimpleRequest implements Request {
         this.body = body;
     }
 
+    public SimpleRequest(Method method, String path, QueryParams queryParams, final List<Header> headers,
+                         Map<String, String> pathParams, RequestBody requestBody) {
+        this(method, path, queryParams, headers, pathParams, (String) null);
+        this.requestBody = requestBody;
+    }
+
     @Override public Method getMethod() {
         return method;
     }
@@ -66,9 +79,57 @@ public class SimpleRequest implements Request {
 
     @Override
     public String getBody() {
+        if (body == null && requestBody != null) {
+            try {
+                body = requestBody.asString(getCharset());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         return body;
     }
 
+    @Override
+    public InputStream getBodyStream() {
+        if (requestBody != null) {
+            try {
+                return requestBody.getInputStream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new ByteArrayInputStream(body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public long getContentLength() {
+        if (requestBody != null) {
+            return requestBody.getContentLength();
+        }
+        return body == null ? 0 : body.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Returns the charset named by the 'Content-Type' header, falling back to UTF-8 if there is none (or it is not
+     * supported).
+     */
+    private Charset getCharset() {
+        final String contentType = getHeader(Headers.CONTENT_TYPE).map(Header::getFirstValue).orElse(null);
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                final String[] pair = parameter.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                    try {
+                        return Charset.forName(pair[1].trim().replace("\"", ""));
+                    } catch (IllegalArgumentException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
     /**
      * Returns a read-only Map of headers.
      * @return
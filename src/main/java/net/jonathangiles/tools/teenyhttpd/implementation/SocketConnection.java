@@ -0,0 +1,187 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import javax.net.ssl.SSLSocket;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ClientConnection} backed by a plain blocking {@link Socket}, where a thread is dedicated to the connection
+ * for as long as it is being serviced. The socket read timeout doubles as the idle timeout of persistent connections.
+ * If the socket was accepted through a channel, files are sent to it with {@link FileChannel#transferTo}.
+ */
+public class SocketConnection implements ClientConnection {
+    private final Socket socket;
+    private final Consumer<ClientConnection> onClose;
+    private final RequestParser parser = new RequestParser();
+    private InputStream socketInputStream;
+    private InputStream inputStream;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+    private volatile boolean isIdle = true;
+    private int requestCount = 1;
+
+    public SocketConnection(final Socket socket, final int idleTimeoutMillis, final Consumer<ClientConnection> onClose) {
+        this.socket = socket;
+        this.onClose = onClose;
+        try {
+            socket.setSoTimeout(idleTimeoutMillis);
+            // responses are assembled in a buffer before they are written, so there is nothing for Nagle's algorithm to
+            // coalesce, and it would only delay the end of responses that span more than one write
+            socket.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            // the socket is already closed, which will be noticed as soon as we try to read from it
+        }
+    }
+
+    @Override
+    public RequestParser readRequestHead() throws IOException {
+        final InputStream in = getSocketInputStream();
+        while (!parser.parse()) {
+            isIdle = !parser.hasRequestStarted();
+            if (parser.fill(in) < 0) {
+                return null;
+            }
+        }
+        isIdle = false;
+        return parser;
+    }
+
+    /**
+     * Returns true if the connection is waiting for the next request, and none of it has been received yet. Such a
+     * connection can be closed without cutting off a request.
+     */
+    public boolean isIdle() {
+        return isIdle;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            inputStream = parser.getInputStream(getSocketInputStream());
+        }
+        return inputStream;
+    }
+
+    private InputStream getSocketInputStream() throws IOException {
+        if (socketInputStream == null) {
+            socketInputStream = socket.getInputStream();
+        }
+        return socketInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        // a TLS socket layered over a socket that was accepted through a channel reports that channel as its own, but
+        // anything written to the channel would bypass the encryption
+        final SocketChannel channel = socket instanceof SSLSocket ? null : socket.getChannel();
+        return channel == null ? socket.getOutputStream() : new ChannelSocketOutputStream(socket.getOutputStream(), channel);
+    }
+
+    @Override
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    @Override
+    public boolean prepareNextRequest() throws IOException {
+        requestCount++;
+
+        // discard the request that has just been served, keeping anything the client has sent after it. The client is
+        // pipelining requests if the next request head was read along with the last request, which we check for in
+        // the parser's own buffer rather than with available(), as the streams of sockets accepted through a channel
+        // always report that nothing is available on some versions of Java
+        parser.next();
+        return parser.parse();
+    }
+
+    @Override
+    public boolean awaitNextRequest() {
+        // the next request is read by the same thread, blocking until it arrives or the idle timeout elapses
+        isIdle = true;
+        return true;
+    }
+
+    @Override
+    public void setLongRunning() {
+        // long-running requests no longer read from the socket, so they should not be timed out
+        try {
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public void setUpgraded() {
+        // the socket read timeout is already the idle timeout, and the socket stays usable after it times out
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!isClosed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            socket.close();
+        } finally {
+            onClose.accept(this);
+        }
+    }
+
+    /**
+     * The output stream of a socket that was accepted through a (blocking) channel, which files can be transferred to,
+     * and which can send a response head and body in a single gathering write.
+     */
+    private static final class ChannelSocketOutputStream extends FilterOutputStream
+            implements GatheringOutputStream, FileTransferOutputStream {
+        private final SocketChannel channel;
+
+        private ChannelSocketOutputStream(final OutputStream out, final SocketChannel channel) {
+            super(out);
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void write(final byte[] first, final int firstOff, final int firstLen,
+                          final byte[] second, final int secondOff, final int secondLen) throws IOException {
+            write(ByteBuffer.wrap(first, firstOff, firstLen), ByteBuffer.wrap(second, secondOff, secondLen));
+        }
+
+        @Override
+        public void transferFrom(final FileChannel file, long position, long count) throws IOException {
+            while (count > 0) {
+                final long transferred = file.transferTo(position, count, channel);
+                if (transferred == 0 && position >= file.size()) {
+                    throw new EOFException("The file ended before all of it was sent");
+                }
+                position += transferred;
+                count -= transferred;
+            }
+        }
+
+        @Override
+        public void write(final ByteBuffer... srcs) throws IOException {
+            long remaining = 0;
+            for (ByteBuffer src : srcs) {
+                remaining += src.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(srcs);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file that {@link FileResponse} serves, along with everything about it that goes into the response: whether it
+ * exists, its length, modification time and content type, and optionally its contents. Small files are held as bytes
+ * on the heap, and medium-sized ones are memory-mapped, whereas large files are read from disk each time they are sent.
+ * The contents of a file are a snapshot, so they always agree with the length, even if the file changes on disk. The
+ * validators that conditional requests are checked against - the entity tag and the last modification date - are
+ * derived from the metadata, and are formatted once per file.
+ *
+ * @see FileCache
+ */
+public final class StaticFile {
+    private static final long MISSING = -1;
+
+    // an estimate of what the metadata of a cached file costs, so that missing files are not free to cache
+    static final int OVERHEAD = 256;
+
+    private final File file;
+    private final long length;
+    private final long lastModified;
+    private final String contentType;
+    private final String entityTag;
+    private final String lastModifiedDate;
+    private final byte[] bytes;
+    private final MappedByteBuffer mapped;
+
+    private StaticFile(final File file, final long length, final long lastModified, final String contentType,
+                       final byte[] bytes, final MappedByteBuffer mapped) {
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.contentType = contentType;
+        // a file that is replaced changes its length or modification time (or both), and so its tag
+        this.entityTag = length == MISSING ? null
+                : "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        this.lastModifiedDate = length == MISSING ? null : ResponseHead.formatDate(lastModified);
+        this.bytes = bytes;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Reads the metadata of the file, without reading its contents.
+     */
+    public static StaticFile load(final File file) throws IOException {
+        return load(file, 0, 0);
+    }
+
+    /**
+     * Reads the metadata of the file, and its contents if it is no larger than the given sizes: files up to
+     * {@code maxHeapSize} bytes are read onto the heap, and those up to {@code maxMappedSize} bytes are mapped.
+     */
+    static StaticFile load(final File file, final long maxHeapSize, final long maxMappedSize) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        final String contentType = FileResponse.contentTypeOf(file);
+        if (attributes == null || !attributes.isRegularFile()) {
+            return new StaticFile(file, MISSING, 0, contentType, null, null);
+        }
+
+        final long length = attributes.size();
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        if (length <= maxHeapSize) {
+            final byte[] bytes = Files.readAllBytes(file.toPath());
+            return new StaticFile(file, bytes.length, lastModified, contentType, bytes, null);
+        } else if (length <= maxMappedSize) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // the mapping stays valid once the channel is closed
+                final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                return new StaticFile(file, length, lastModified, contentType, null, mapped);
+            }
+        }
+        return new StaticFile(file, length, lastModified, contentType, null, null);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns true if the file exists, and is a regular file.
+     */
+    public boolean exists() {
+        return length != MISSING;
+    }
+
+    public long length() {
+        return exists() ? length : 0;
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the strong entity tag of the file (including its quotes), or null if the file does not exist.
+     */
+    public String getEntityTag() {
+        return entityTag;
+    }
+
+    /**
+     * Returns the modification time of the file formatted for the 'Last-Modified' header, or null if the file does not
+     * exist.
+     */
+    public String getLastModifiedDate() {
+        return lastModifiedDate;
+    }
+
+    /**
+     * Returns the number of bytes that holding on to this file costs.
+     */
+    long getCachedSize() {
+        if (bytes != null) {
+            return OVERHEAD + bytes.length;
+        } else if (mapped != null) {
+            return OVERHEAD + mapped.capacity();
+        }
+        return OVERHEAD;
+    }
+
+    /**
+     * Writes the contents of the file to the given stream. When that is the stream of the connection, contents that are
+     * not held in memory go straight from the file to the client, as do mapped contents.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        writeTo(out, 0, length());
+    }
+
+    /**
+     * Writes the given number of bytes of the file, starting at the given position, to the given stream.
+     */
+    public void writeTo(final OutputStream out, final long position, final long count) throws IOException {
+        if (count == 0) {
+            // a missing file is sent as an empty body
+            return;
+        } else if (bytes != null) {
+            out.write(bytes, (int) position, (int) count);
+        } else if (mapped != null) {
+            // each response gets its own view of the mapping, as its position is moved as it is written
+            final ByteBuffer contents = mapped.duplicate();
+            contents.position((int) position).limit((int) (position + count));
+            if (out instanceof ResponseOutputStream) {
+                ((ResponseOutputStream) out).write(contents);
+                return;
+            }
+            final byte[] chunk = BufferPool.acquire();
+            try {
+                while (contents.hasRemaining()) {
+                    final int n = Math.min(chunk.length, contents.remaining());
+                    contents.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            } finally {
+                BufferPool.release(chunk);
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (out instanceof ResponseOutputStream) {
+                    ((ResponseOutputStream) out).transferFrom(channel, position, count);
+                } else {
+                    copy(channel, position, count, out);
+                }
+            }
+        }
+    }
+
+    private static void copy(final FileChannel channel, long position, long count, final OutputStream out)
+            throws IOException {
+        final byte[] chunk = BufferPool.acquire();
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (count > 0) {
+                buffer.clear().limit((int) Math.min(chunk.length, count));
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("The file ended before all of it was sent");
+                }
+                out.write(chunk, 0, read);
+                position += read;
+                count -= read;
+            }
+        } finally {
+            BufferPool.release(chunk);
+        }
+    }
+}
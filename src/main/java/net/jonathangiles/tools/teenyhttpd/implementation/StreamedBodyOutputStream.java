@@ -0,0 +1,115 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The stream that the body of a response of unknown length is written to as it is sent. For HTTP/1.1 clients, the body
+ * is framed with chunked transfer-encoding, with a chunk written each time the buffer fills (so the buffer size is the
+ * chunk size, although a single write larger than that is sent as one chunk of its own) - otherwise it is written
+ * as-is, and the end of the body is marked by closing the connection. Calling {@link #flush()} sends what has been
+ * written so far to the client, so that request handlers can send partial output early. {@link ChunkedInputStream}
+ * decodes request bodies that are framed the same way.
+ */
+public class StreamedBodyOutputStream extends BufferedOutputStream {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ResponseOutputStream target;
+    private final boolean isChunked;
+    private boolean isFinished;
+
+    public StreamedBodyOutputStream(final ResponseOutputStream target, final int chunkSize, final boolean chunked) {
+        // the buffer allocated by the superclass is replaced with a pooled one when the chunk size allows it
+        super(target, 1);
+        this.buf = chunkSize == BufferPool.BUFFER_SIZE ? BufferPool.acquire() : new byte[chunkSize];
+        this.target = target;
+        this.isChunked = chunked;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (count == buf.length) {
+            writeChunk(buf, 0, count);
+            count = 0;
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (len <= buf.length - count) {
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+            return;
+        }
+
+        if (count > 0) {
+            writeChunk(buf, 0, count);
+            count = 0;
+        }
+        if (len >= buf.length) {
+            // large writes become a chunk of their own, rather than being copied through the buffer
+            writeChunk(b, off, len);
+        } else {
+            System.arraycopy(b, off, buf, 0, len);
+            count = len;
+        }
+    }
+
+    private void writeChunk(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (isChunked) {
+            target.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+            target.write(CRLF);
+            target.write(b, off, len);
+            target.write(CRLF);
+        } else {
+            target.write(b, off, len);
+        }
+    }
+
+    /**
+     * Sends everything that has been written so far to the client.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeChunk(buf, 0, count);
+            count = 0;
+        }
+        target.flushToClient();
+    }
+
+    /**
+     * Writes whatever is left in the buffer, followed by the last chunk that marks the end of a chunked body. The
+     * response is left to be flushed to the client along with any other buffered responses.
+     */
+    public void finish() throws IOException {
+        if (isFinished) {
+            return;
+        }
+        isFinished = true;
+        try {
+            writeChunk(buf, 0, count);
+            count = 0;
+            if (isChunked) {
+                target.write(LAST_CHUNK);
+            }
+        } finally {
+            BufferPool.release(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Finishes the body, without closing the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
@@ -0,0 +1,32 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.Header;
+import net.jonathangiles.tools.teenyhttpd.model.ResponseBodyWriter;
+import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response whose body is generated while it is being sent, and so has no known length. It is sent to HTTP/1.1 clients
+ * with chunked transfer-encoding, so that the connection can still be reused afterwards.
+ */
+public class StreamingResponse extends ResponseBase {
+    private final ResponseBodyWriter bodyWriter;
+
+    public StreamingResponse(final StatusCode statusCode, final ResponseBodyWriter bodyWriter) {
+        this(statusCode, new ArrayList<>(), bodyWriter);
+    }
+
+    public StreamingResponse(final StatusCode statusCode, final List<Header> headers, final ResponseBodyWriter bodyWriter) {
+        super(statusCode, headers);
+        this.bodyWriter = bodyWriter;
+    }
+
+    @Override
+    public void writeBody(final BufferedOutputStream dataOut) throws IOException {
+        bodyWriter.writeBody(dataOut);
+    }
+}
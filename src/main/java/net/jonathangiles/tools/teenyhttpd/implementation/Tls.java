@@ -0,0 +1,98 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The TLS setup that is shared by both transports: the non-blocking transport encrypts connections with an
+ * {@link SSLEngine} (see {@link TlsChannel}), whereas the blocking transport layers an {@link SSLSocket} over each
+ * accepted socket. The blocking transport does the handshake on the thread that serves the connection, and the
+ * non-blocking transport on the event loop, which hands the expensive steps (such as the key exchange) to the server's
+ * executor. Either way, the thread that accepts connections is never held up by a handshake, and the application
+ * protocol is negotiated with ALPN.
+ */
+public final class Tls {
+    /**
+     * The application protocols that are offered with ALPN, in order of preference.
+     */
+    public static final List<String> APPLICATION_PROTOCOLS = List.of("http/1.1");
+
+    private Tls() {
+        // no-op
+    }
+
+    /**
+     * Loads a key store (in any format that {@link KeyStore} can detect, such as PKCS12 or JKS) holding the server's
+     * private key and certificate chain, and returns a context that serves it.
+     */
+    public static SSLContext loadContext(final File keyStoreFile, final char[] password) {
+        try {
+            final KeyStore keyStore = KeyStore.getInstance(keyStoreFile, password);
+            final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Unable to load the key store " + keyStoreFile, e);
+        }
+    }
+
+    /**
+     * Configures how many sessions the server remembers, and for how long, so that clients that come back within that
+     * time resume their session with an abbreviated handshake rather than doing the key exchange again.
+     */
+    public static void configureSessionCache(final SSLContext context, final int size, final Duration timeout) {
+        final SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(size);
+        sessions.setSessionTimeout((int) Math.min(Integer.MAX_VALUE, timeout.getSeconds()));
+    }
+
+    /**
+     * Creates the engine that encrypts a connection accepted by the non-blocking transport.
+     */
+    static SSLEngine createEngine(final SSLContext context) {
+        final SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setHandshakeApplicationProtocolSelector((e, offered) -> selectApplicationProtocol(offered));
+        return engine;
+    }
+
+    /**
+     * Layers TLS over a socket accepted by the blocking transport. The handshake happens when the socket is first read
+     * from.
+     */
+    public static Socket wrap(final SSLContext context, final Socket socket) throws IOException {
+        final SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(socket, null, true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.setHandshakeApplicationProtocolSelector((s, offered) -> selectApplicationProtocol(offered));
+        return sslSocket;
+    }
+
+    /**
+     * Returns the protocol we prefer of those the client offered, or null to not use ALPN at all if we support none of
+     * them (rather than failing the handshake, as the client may well speak HTTP/1.1 anyway).
+     */
+    static String selectApplicationProtocol(final List<String> offered) {
+        for (String protocol : APPLICATION_PROTOCOLS) {
+            if (offered.contains(protocol)) {
+                return protocol;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,382 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The TLS layer of a {@link NioConnection}, which decrypts what is read from its non-blocking channel and encrypts what
+ * is written to it with an {@link SSLEngine}. Like the channel, it never blocks: reads return zero when a whole TLS
+ * record has not arrived yet, and writes return zero when the socket send buffer is full. The handshake is driven by
+ * the reads and writes themselves, so it happens on the event loop as the first request is read - apart from its
+ * expensive steps (such as the key exchange), which are handed to a {@link TaskRunner} to run on another thread, so
+ * that they don't hold up the other connections on the event loop.
+ *
+ * <p>Records are staged in direct buffers that are taken from a pool only while they hold bytes, so a connection that
+ * is waiting for a request holds none. Reads and writes may happen on different threads (the event loop reads from
+ * a connection that a worker is writing a server-sent event stream to), so they are synchronized, but neither ever
+ * waits inside the lock.</p>
+ */
+final class TlsChannel {
+    private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate(0) };
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final TaskRunner taskRunner;
+    private final int bufferSize;
+
+    // bytes read from the channel that have not been decrypted yet (ready to be filled further)
+    private ByteBuffer netIn;
+    // decrypted bytes that did not fit in the buffer they were read into (ready to be read)
+    private ByteBuffer appIn;
+    // encrypted bytes that the channel has not taken yet (ready to be written)
+    private ByteBuffer netOut;
+
+    private boolean isInboundDone;
+    private boolean isClosed;
+    private boolean isHandshakeFinished;
+    // set while the delegated tasks of the handshake are running on another thread, during which the engine can't go
+    // any further
+    private boolean isRunningTasks;
+
+    TlsChannel(final SocketChannel channel, final SSLEngine engine, final TaskRunner taskRunner) {
+        this.channel = channel;
+        this.engine = engine;
+        this.taskRunner = taskRunner;
+        this.bufferSize = Math.max(engine.getSession().getPacketBufferSize(),
+                engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Returns the application protocol that was negotiated with ALPN, or null if none was (or the handshake has not
+     * finished yet).
+     */
+    String getApplicationProtocol() {
+        final String protocol = engine.getApplicationProtocol();
+        return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+
+    /**
+     * Reads decrypted bytes into the given buffer, returning how many were read, zero if there are none to read until
+     * more arrive (which includes while the handshake is in progress), or -1 once the client has closed the
+     * connection.
+     */
+    synchronized int read(final ByteBuffer dst) throws IOException {
+        while (true) {
+            checkOpen();
+            if (appIn != null) {
+                final int n = Math.min(appIn.remaining(), dst.remaining());
+                final ByteBuffer slice = appIn.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                appIn.position(appIn.position() + n);
+                if (!appIn.hasRemaining()) {
+                    appIn = release(appIn);
+                }
+                return n;
+            } else if (isInboundDone) {
+                return -1;
+            } else if (isRunningTasks) {
+                return 0;
+            }
+
+            // the handshake may be waiting for us to send something before it can read any further
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                handshake(SSLEngineResult.HandshakeStatus.NEED_WRAP);
+                if (netOut != null) {
+                    return 0;
+                }
+            }
+
+            // a single read from the channel may have brought in several records, so we only read from it again once
+            // we have decrypted all of the whole records we already have
+            if (netIn != null && unwrap()) {
+                continue;
+            }
+
+            if (netIn == null) {
+                netIn = acquire();
+            }
+            final int read = channel.read(netIn);
+            if (read <= 0) {
+                if (netIn.position() == 0) {
+                    netIn = release(netIn);
+                }
+                if (read < 0) {
+                    isInboundDone = true;
+                    return -1;
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns true if bytes that have been read from the channel have not all been read from this channel yet.
+     */
+    synchronized boolean hasBufferedInput() {
+        return appIn != null || (netIn != null && netIn.position() > 0);
+    }
+
+    /**
+     * Encrypts as many of the remaining bytes of the given buffers as fit in a record, and writes the record to the
+     * channel, returning the number of bytes that were consumed - zero if encrypted bytes that were written earlier
+     * are still waiting for room in the socket send buffer. A record that the channel does not take in full is kept,
+     * and is written first by the next write or {@link #flush()}.
+     */
+    synchronized long write(final ByteBuffer... srcs) throws IOException {
+        checkOpen();
+        if (!flush()) {
+            return 0;
+        }
+
+        final SSLEngineResult result = wrap(srcs);
+        if (result.bytesConsumed() == 0 && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+                && hasRemaining(srcs)) {
+            // the client has started a new handshake, which we would need to read from it to finish
+            throw new SSLException("Renegotiation is not supported");
+        }
+        handshake(result.getHandshakeStatus());
+        flush();
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Returns true if there are encrypted bytes that the channel has not taken yet.
+     */
+    synchronized boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    /**
+     * Writes as much of the pending encrypted bytes to the channel as it will take, carrying on with the handshake if
+     * it was waiting for them to be written, and returns true if none are left.
+     */
+    synchronized boolean flush() throws IOException {
+        if (!flushPending()) {
+            return false;
+        }
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            handshake(SSLEngineResult.HandshakeStatus.NEED_WRAP);
+        }
+        return netOut == null;
+    }
+
+    /**
+     * Decrypts the next record of what has been read, returning false if there is nothing to decrypt until more has
+     * been read.
+     */
+    private boolean unwrap() throws IOException {
+        if (appIn == null) {
+            appIn = acquire();
+        }
+        final SSLEngineResult result;
+        netIn.flip();
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+            if (!appIn.hasRemaining()) {
+                appIn = release(appIn);
+            }
+            if (netIn.position() == 0) {
+                netIn = release(netIn);
+            }
+        }
+
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                return false;
+            case BUFFER_OVERFLOW:
+                // our buffers are as large as the session says a record can be
+                throw new SSLException("A TLS record was larger than the session allows");
+            case CLOSED:
+                isInboundDone = true;
+                break;
+            default:
+                break;
+        }
+        handshake(result.getHandshakeStatus());
+        return isInboundDone || result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    /**
+     * Carries out the steps of the handshake that don't need anything from the client, stopping when it needs to read
+     * from the client, or when the socket send buffer is full.
+     */
+    private void handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    if (isRunningTasks) {
+                        return;
+                    } else if (!isHandshakeFinished) {
+                        // the initial handshake is driven by the event loop, so its expensive parts (such as the key
+                        // exchange) are run elsewhere, and the handshake carries on once the channel is read again
+                        isRunningTasks = true;
+                        taskRunner.run(() -> {
+                            try {
+                                runDelegatedTasks();
+                            } finally {
+                                synchronized (this) {
+                                    isRunningTasks = false;
+                                }
+                            }
+                        });
+                        return;
+                    }
+                    // any later handshake is driven by a worker thread, which may as well run the tasks itself
+                    runDelegatedTasks();
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    if (!flushPending()) {
+                        return;
+                    }
+                    status = wrap(NOTHING).getHandshakeStatus();
+                    break;
+                default:
+                    if (status == SSLEngineResult.HandshakeStatus.FINISHED) {
+                        isHandshakeFinished = true;
+                    }
+                    flushPending();
+                    return;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private SSLEngineResult wrap(final ByteBuffer[] srcs) throws IOException {
+        // we only wrap once everything that was wrapped before has been written, so the record always fits
+        netOut = acquire();
+        final SSLEngineResult result;
+        try {
+            result = engine.wrap(srcs, netOut);
+        } finally {
+            netOut.flip();
+            if (!netOut.hasRemaining()) {
+                netOut = release(netOut);
+            }
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("A TLS record was larger than the session allows");
+        }
+        return result;
+    }
+
+    private boolean flushPending() throws IOException {
+        while (netOut != null) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+            if (!netOut.hasRemaining()) {
+                netOut = release(netOut);
+            }
+        }
+        return true;
+    }
+
+    private void checkOpen() throws IOException {
+        if (isClosed) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    /**
+     * Sends the client a close_notify alert if the socket has room for it, and gives the buffers back to the pool.
+     */
+    synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+        try {
+            engine.closeOutbound();
+            if (flushPending()) {
+                wrap(NOTHING);
+                flushPending();
+            }
+        } catch (IOException e) {
+            // the client has gone away already
+        }
+        isClosed = true;
+        netIn = release(netIn);
+        appIn = release(appIn);
+        netOut = release(netOut);
+    }
+
+    /**
+     * Runs the delegated tasks of a handshake on a thread other than the event loop, after which the channel should be
+     * read from again to carry on with the handshake.
+     */
+    interface TaskRunner {
+
+        /**
+         * Runs the given tasks on another thread, or throws if they can't be run.
+         */
+        void run(Runnable tasks) throws IOException;
+    }
+
+    private static boolean hasRemaining(final ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ByteBuffer acquire() {
+        return PacketBufferPool.acquire(bufferSize);
+    }
+
+    private static ByteBuffer release(final ByteBuffer buffer) {
+        PacketBufferPool.release(buffer);
+        return null;
+    }
+
+    /**
+     * A pool of the direct buffers that TLS records are staged in, which are too large (and too costly to allocate) to
+     * give every connection its own.
+     */
+    private static final class PacketBufferPool {
+        private static final int MAX_POOLED_BUFFERS = 256;
+
+        private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+        private static final AtomicInteger POOLED = new AtomicInteger();
+
+        static ByteBuffer acquire(final int size) {
+            final ByteBuffer buffer = POOL.poll();
+            if (buffer != null) {
+                POOLED.decrementAndGet();
+                if (buffer.capacity() >= size) {
+                    return buffer.clear();
+                }
+            }
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        static void release(final ByteBuffer buffer) {
+            if (buffer == null) {
+                return;
+            }
+            if (POOLED.incrementAndGet() > MAX_POOLED_BUFFERS) {
+                POOLED.decrementAndGet();
+                return;
+            }
+            POOL.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, which are only available from Java 21 onwards. This is the version of the class that is
+ * used on older versions of Java - the TeenyHttpd JAR is a multi-release JAR, and contains a Java 21 version of this
+ * class that uses virtual threads directly. This version looks for them reflectively, so that they are still used on
+ * Java 21 when TeenyHttpd is not loaded from its JAR (as it is not when its classes are on the class path as a
+ * directory).
+ */
+public final class VirtualThreads {
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findNewVirtualThreadPerTaskExecutor();
+
+    private VirtualThreads() {
+        // no-op
+    }
+
+    /**
+     * Returns true if virtual threads can be used on this version of Java.
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread. If virtual threads are not supported, this falls
+     * back to an executor that runs each task on a platform thread, which is started as it is needed and reused once it
+     * is idle, so callers should check {@link #isSupported()} first if it matters which they get.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null) {
+            return Executors.newCachedThreadPool();
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Unable to create a virtual thread executor", e);
+        }
+    }
+
+    private static Method findNewVirtualThreadPerTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
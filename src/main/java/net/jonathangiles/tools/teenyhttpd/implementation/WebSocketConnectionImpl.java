@@ -0,0 +1,549 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.Request;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketConnection;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketHandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection that has been upgraded from HTTP/1.1 to the WebSocket protocol (RFC 6455).
+ *
+ * <p>The thread that upgraded the connection goes on to read frames from it for as long as it stays open, unmasking
+ * them and putting fragmented messages back together before handing each message to the handler. Messages are sent
+ * from any thread, each as a single frame that is queued, and written by a writer thread whenever the queue has frames
+ * in it, so sending (or broadcasting) a message never waits on the client. The connection is dropped if the client
+ * falls so far behind that its queue fills up, or if a write to it has waited for longer than the write timeout.
+ * Whenever the client has sent nothing for as long as a read waits, it is sent a ping, and the connection is dropped if
+ * it has still sent nothing (not even the pong) by the time the next read times out.</p>
+ */
+public final class WebSocketConnectionImpl implements WebSocketConnection {
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private static final int MAX_QUEUED_FRAMES = 1024;
+    private static final long WRITE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final ClientConnection connection;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Request request;
+    private final WebSocketHandler handler;
+    private final int maxMessageSize;
+
+    // only used by the thread that reads the connection
+    private final byte[] frameHeader = new byte[8];
+    private final byte[] mask = new byte[4];
+    private final byte[] controlPayload = new byte[WebSocketFrame.MAX_CONTROL_PAYLOAD];
+    private byte[] message = new byte[1024];
+    private int messageLength;
+    private int messageOpcode = -1;
+    private boolean isPingSent;
+
+    // A lock rather than a monitor, so that a virtual thread waiting to queue a frame does not pin its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition flushed = writeLock.newCondition();
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private boolean isWriting;
+
+    // when the write that the writer is waiting on started, or zero if it is not writing
+    private volatile long writeStarted;
+    private ScheduledFuture<?> writeCheck;
+
+    // once a close frame has been sent, nothing else may be, and we wait for the client's close frame in reply
+    private volatile boolean isCloseSent;
+    private volatile boolean isClosed;
+    private int closeCode = ABNORMAL_CLOSURE;
+    private String closeReason = "";
+
+    /**
+     * @param connection The connection, once the '101 Switching Protocols' response has been sent on it.
+     * @param request The request that opened the connection.
+     * @param handler The handler that messages are passed to.
+     * @param maxMessageSize The largest message, in bytes, that is accepted.
+     */
+    public WebSocketConnectionImpl(final ClientConnection connection, final Request request,
+                                   final WebSocketHandler handler, final int maxMessageSize) throws IOException {
+        this.connection = connection;
+        this.in = connection.getInputStream();
+        this.out = connection.getOutputStream();
+        this.request = request;
+        this.handler = handler;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Returns the value of the 'Sec-WebSocket-Accept' header that answers the given 'Sec-WebSocket-Key' header, or null
+     * if the key is not a valid one (which is the base64 encoding of 16 bytes).
+     */
+    public static String getAcceptKey(final String key) {
+        try {
+            if (key == null || Base64.getDecoder().decode(key.trim()).length != 16) {
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            final byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Serves the connection, passing each message that the client sends to the handler, and returns once the
+     * connection has closed.
+     */
+    public void serve() throws IOException {
+        if (handler instanceof WebSocketHandlerImpl) {
+            ((WebSocketHandlerImpl) handler).add(this);
+        }
+        writeCheck = Writers.scheduleCheck(this::checkWrite);
+        try {
+            handler.onOpen(this);
+            while (readFrame()) {
+                // keep reading until the client closes the connection
+            }
+        } catch (CloseException e) {
+            closeCode = e.code;
+            closeReason = e.getMessage();
+            close(e.code, e.getMessage());
+        } catch (SocketTimeoutException e) {
+            // the client has not answered a ping, or our close frame
+        } catch (IOException e) {
+            // the connection is closed from under us when the server stops, or a write fails
+            if (!isClosed) {
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            // the handler failed, which leaves the connection in an unknown state
+            closeCode = INTERNAL_ERROR;
+            close(INTERNAL_ERROR, "");
+            throw e;
+        } finally {
+            // the close frame (and anything else that is still queued) is written before the connection is closed
+            awaitFlushed();
+            closeConnection();
+            writeCheck.cancel(false);
+            if (handler instanceof WebSocketHandlerImpl) {
+                ((WebSocketHandlerImpl) handler).remove(this);
+            }
+            handler.onClose(this, closeCode, closeReason);
+        }
+    }
+
+    /**
+     * Starts to close the connection, telling the client that the server is going away. This is called when the server
+     * stops.
+     */
+    public void shutdown() {
+        close(GOING_AWAY, "The server is stopping");
+    }
+
+    @Override
+    public Request getRequest() {
+        return request;
+    }
+
+    @Override
+    public void send(final String message) {
+        sendFrame(WebSocketFrame.encodeText(message));
+    }
+
+    @Override
+    public void send(final byte[] message) {
+        sendFrame(WebSocketFrame.encodeBinary(message));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !isCloseSent && !isClosed;
+    }
+
+    @Override
+    public void close(final int code, final String reason) {
+        writeLock.lock();
+        try {
+            if (isCloseSent || isClosed) {
+                return;
+            }
+            isCloseSent = true;
+            enqueue(WebSocketFrame.encodeClose(code, reason));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues an encoded data frame, which may be shared with other connections (as a broadcast frame is). If the write
+     * fails, the connection is closed, and the reading thread tells the handler.
+     */
+    void sendFrame(final byte[] frame) {
+        writeLock.lock();
+        try {
+            if (!isCloseSent && !isClosed) {
+                enqueue(frame);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeControlFrame(final int opcode, final byte[] payload, final int len) {
+        final byte[] frame = WebSocketFrame.encode(opcode, payload, 0, len);
+        writeLock.lock();
+        try {
+            if (!isCloseSent && !isClosed) {
+                enqueue(frame);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a frame to the queue, starting a writer if there is not one already. This is called with the write lock
+     * held.
+     */
+    private void enqueue(final byte[] frame) {
+        if (queue.size() >= MAX_QUEUED_FRAMES) {
+            // the client is too far behind to catch up, and can not be sent a close frame, which would be queued too
+            abort();
+            return;
+        }
+        queue.add(frame);
+        if (!isWriting) {
+            isWriting = true;
+            Writers.execute(this::writeQueued);
+        }
+    }
+
+    /**
+     * Writes frames until the queue is empty, and then flushes them to the client.
+     */
+    private void writeQueued() {
+        try {
+            while (true) {
+                byte[] frame = poll(false);
+                if (frame == null) {
+                    writeStarted = System.nanoTime();
+                    out.flush();
+                    writeStarted = 0;
+                    // more frames may have been queued while we were flushing
+                    frame = poll(true);
+                    if (frame == null) {
+                        return;
+                    }
+                }
+                writeStarted = System.nanoTime();
+                out.write(frame);
+                writeStarted = 0;
+            }
+        } catch (IOException e) {
+            closeConnection();
+        } finally {
+            writeStarted = 0;
+        }
+    }
+
+    /**
+     * Takes the next frame from the queue, and if there is none and 'isLast' is true, lets the next frame that is
+     * queued start a new writer.
+     */
+    private byte[] poll(final boolean isLast) {
+        writeLock.lock();
+        try {
+            final byte[] frame = queue.poll();
+            if (frame == null && isLast) {
+                isWriting = false;
+                flushed.signalAll();
+            }
+            return frame;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Aborts the connection if the writer has been waiting on a single write for longer than the write timeout, which
+     * fails the write.
+     */
+    private void checkWrite() {
+        final long started = writeStarted;
+        if (started != 0 && System.nanoTime() - started > WRITE_TIMEOUT_NANOS) {
+            abort();
+        }
+    }
+
+    /**
+     * Marks the connection as closed, so that nothing more is queued, and closes it on a thread of its own. Closing the
+     * connection may wait for the write that it is stalled on (as closing a TLS socket does), so the thread that is
+     * sending a message, or the watchdog that all connections share, must not do it themselves.
+     */
+    private void abort() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        Writers.execute(this::closeConnection);
+    }
+
+    /**
+     * Waits until everything that has been queued has been written to the client, or the connection has closed.
+     */
+    private void awaitFlushed() {
+        writeLock.lock();
+        try {
+            while (isWriting && !isClosed) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void closeConnection() {
+        isClosed = true;
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // the client has gone away already
+        }
+        writeLock.lock();
+        try {
+            queue.clear();
+            flushed.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the next frame and acts on it, returning false once the connection has been closed by the client.
+     */
+    private boolean readFrame() throws IOException {
+        if (!readFully(frameHeader, 2, true)) {
+            return false;
+        }
+        final boolean isFinal = (frameHeader[0] & 0x80) != 0;
+        final int opcode = frameHeader[0] & 0x0F;
+        final boolean isControl = (opcode & 0x8) != 0;
+        if ((frameHeader[0] & 0x70) != 0) {
+            throw new CloseException(PROTOCOL_ERROR, "No extensions have been agreed");
+        } else if ((frameHeader[1] & 0x80) == 0) {
+            throw new CloseException(PROTOCOL_ERROR, "Frames sent by the client must be masked");
+        }
+
+        long length = frameHeader[1] & 0x7F;
+        if (length == 126) {
+            readFully(frameHeader, 2, false);
+            length = ((frameHeader[0] & 0xFF) << 8) | (frameHeader[1] & 0xFF);
+        } else if (length == 127) {
+            readFully(frameHeader, 8, false);
+            length = 0;
+            for (int i = 0; i < 8; i++) {
+                length = (length << 8) | (frameHeader[i] & 0xFF);
+            }
+            if (length < 0) {
+                throw new CloseException(PROTOCOL_ERROR, "Invalid frame length");
+            }
+        }
+        readFully(mask, 4, false);
+
+        if (isControl) {
+            if (!isFinal || length > WebSocketFrame.MAX_CONTROL_PAYLOAD) {
+                throw new CloseException(PROTOCOL_ERROR, "Control frames can not be fragmented or longer than 125 bytes");
+            }
+            readPayload(controlPayload, 0, (int) length);
+            return onControlFrame(opcode, (int) length);
+        }
+
+        if (opcode == WebSocketFrame.CONTINUATION) {
+            if (messageOpcode < 0) {
+                throw new CloseException(PROTOCOL_ERROR, "A continuation frame did not continue a message");
+            }
+        } else if (opcode == WebSocketFrame.TEXT || opcode == WebSocketFrame.BINARY) {
+            if (messageOpcode >= 0) {
+                throw new CloseException(PROTOCOL_ERROR, "A new message started before the last one had ended");
+            }
+            messageOpcode = opcode;
+        } else {
+            throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+        }
+
+        // the fragments of a message are put back together in the message buffer, which grows as they arrive
+        if (length > maxMessageSize - messageLength) {
+            throw new CloseException(MESSAGE_TOO_BIG, "Messages may be at most " + maxMessageSize + " bytes");
+        }
+        final int end = messageLength + (int) length;
+        if (end > message.length) {
+            message = Arrays.copyOf(message, Math.min(maxMessageSize, Math.max(end, message.length * 2)));
+        }
+        readPayload(message, messageLength, (int) length);
+        messageLength = end;
+
+        if (isFinal) {
+            onMessage();
+        }
+        return true;
+    }
+
+    private boolean onControlFrame(final int opcode, final int length) throws IOException {
+        switch (opcode) {
+            case WebSocketFrame.CLOSE:
+                if (length == 1) {
+                    throw new CloseException(PROTOCOL_ERROR, "A close frame's status code was cut short");
+                } else if (length >= 2) {
+                    final int code = ((controlPayload[0] & 0xFF) << 8) | (controlPayload[1] & 0xFF);
+                    if (!WebSocketFrame.isValidCloseCode(code)) {
+                        throw new CloseException(PROTOCOL_ERROR, "Invalid close status code " + code);
+                    }
+                    closeCode = code;
+                    closeReason = decodeText(controlPayload, 2, length - 2);
+                } else {
+                    closeCode = NO_STATUS;
+                }
+
+                // we echo the client's status code, unless we started the close ourselves (in which case this is the
+                // client's reply), and then close the connection
+                writeControlFrame(WebSocketFrame.CLOSE, controlPayload, closeCode == NO_STATUS ? 0 : 2);
+                isCloseSent = true;
+                return false;
+            case WebSocketFrame.PING:
+                writeControlFrame(WebSocketFrame.PONG, controlPayload, length);
+                return true;
+            case WebSocketFrame.PONG:
+                // the client is still there, which is all that the pings we send are for
+                return true;
+            default:
+                throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+        }
+    }
+
+    private void onMessage() throws IOException {
+        final int opcode = messageOpcode;
+        final byte[] payload = Arrays.copyOf(message, messageLength);
+        messageOpcode = -1;
+        messageLength = 0;
+        if (message.length > 64 * 1024) {
+            // don't hold on to the buffer of an unusually large message for the rest of the connection
+            message = new byte[1024];
+        }
+
+        if (isCloseSent) {
+            // messages that arrive while we wait for the client to reply to our close frame are discarded
+            return;
+        }
+        if (opcode == WebSocketFrame.TEXT) {
+            handler.onMessage(this, decodeText(payload, 0, payload.length));
+        } else {
+            handler.onMessage(this, payload);
+        }
+    }
+
+    /**
+     * Decodes UTF-8 text, which must be valid (RFC 6455, section 8.1).
+     */
+    private static String decodeText(final byte[] b, final int off, final int len) throws CloseException {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(b, off, len))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            throw new CloseException(INVALID_PAYLOAD, "Text was not valid UTF-8");
+        }
+    }
+
+    /**
+     * Reads a masked payload into the buffer, unmasking it as it goes.
+     */
+    private void readPayload(final byte[] b, final int off, final int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            final int n = read(b, off + read, len - read);
+            if (n < 0) {
+                throw new EOFException("The client closed the connection part way through a frame");
+            }
+            for (int i = off + read; i < off + read + n; i++) {
+                b[i] ^= mask[(i - off) & 3];
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Reads exactly the given number of bytes into the buffer, returning false if the client closed the connection
+     * before sending any of them.
+     */
+    private boolean readFully(final byte[] b, final int len, final boolean isFrameStart) throws IOException {
+        int read = 0;
+        while (read < len) {
+            final int n = read(b, read, len - read);
+            if (n < 0) {
+                if (read == 0 && isFrameStart) {
+                    return false;
+                }
+                throw new EOFException("The client closed the connection part way through a frame");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    /**
+     * Reads what the client has sent, sending it a ping if it has sent nothing for as long as a read waits. A read that
+     * times out again without the client having sent anything since the ping (or since our close frame) gives up.
+     */
+    private int read(final byte[] b, final int off, final int len) throws IOException {
+        while (true) {
+            try {
+                final int n = in.read(b, off, len);
+                isPingSent = false;
+                return n;
+            } catch (SocketTimeoutException e) {
+                if (isPingSent || isCloseSent) {
+                    throw e;
+                }
+                isPingSent = true;
+                writeControlFrame(WebSocketFrame.PING, NO_PAYLOAD, 0);
+            }
+        }
+    }
+
+    /**
+     * Thrown when the client breaks the protocol, or sends a message that can not be accepted, to close the connection
+     * with the given status code.
+     */
+    private static final class CloseException extends IOException {
+        private final int code;
+
+        private CloseException(final int code, final String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the frames that the server sends on a WebSocket connection (RFC 6455, section 5.2). Frames sent by a server
+ * are never masked, so a frame depends only on its payload, and a message that is broadcast can be encoded once and
+ * the same bytes written to every connection.
+ */
+final class WebSocketFrame {
+    static final int CONTINUATION = 0x0;
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    // the largest payload of a control frame, which can not be fragmented
+    static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private static final int FIN = 0x80;
+
+    private WebSocketFrame() { }
+
+    /**
+     * Encodes a whole message as a single, final frame.
+     */
+    static byte[] encode(final int opcode, final byte[] payload, final int off, final int len) {
+        final int headerLength = len <= 125 ? 2 : len <= 0xFFFF ? 4 : 10;
+        final byte[] frame = new byte[headerLength + len];
+        frame[0] = (byte) (FIN | opcode);
+        if (len <= 125) {
+            frame[1] = (byte) len;
+        } else if (len <= 0xFFFF) {
+            frame[1] = 126;
+            frame[2] = (byte) (len >>> 8);
+            frame[3] = (byte) len;
+        } else {
+            frame[1] = 127;
+            // the length is 64 bits, but a Java array never needs more than the low 31 of them
+            frame[6] = (byte) (len >>> 24);
+            frame[7] = (byte) (len >>> 16);
+            frame[8] = (byte) (len >>> 8);
+            frame[9] = (byte) len;
+        }
+        System.arraycopy(payload, off, frame, headerLength, len);
+        return frame;
+    }
+
+    static byte[] encodeText(final String message) {
+        final byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        return encode(TEXT, payload, 0, payload.length);
+    }
+
+    static byte[] encodeBinary(final byte[] message) {
+        return encode(BINARY, message, 0, message.length);
+    }
+
+    /**
+     * Encodes a close frame with the given status code and reason, cutting the reason short (at a character boundary)
+     * if it would not fit in a control frame.
+     */
+    static byte[] encodeClose(final int code, final String reason) {
+        byte[] reasonBytes = reason == null ? new byte[0] : reason.getBytes(StandardCharsets.UTF_8);
+        int reasonLength = Math.min(reasonBytes.length, MAX_CONTROL_PAYLOAD - 2);
+        while (reasonLength < reasonBytes.length && (reasonBytes[reasonLength] & 0xC0) == 0x80) {
+            reasonLength--;
+        }
+
+        final byte[] payload = new byte[2 + reasonLength];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+        return encode(CLOSE, payload, 0, payload.length);
+    }
+
+    /**
+     * Returns true if the status code may be sent in a close frame (RFC 6455, section 7.4).
+     */
+    static boolean isValidCloseCode(final int code) {
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1011) || (code >= 3000 && code <= 4999);
+    }
+}
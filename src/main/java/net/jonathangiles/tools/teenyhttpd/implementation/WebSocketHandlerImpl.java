@@ -0,0 +1,48 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketConnection;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketHandler;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public abstract class WebSocketHandlerImpl implements WebSocketHandler {
+
+    private final List<WebSocketConnectionImpl> connections = new CopyOnWriteArrayList<>();
+
+    /** {@inheritDoc} */
+    @Override public final void broadcast(final String message) {
+        if (!connections.isEmpty()) {
+            sendToAll(WebSocketFrame.encodeText(message));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override public final void broadcast(final byte[] message) {
+        if (!connections.isEmpty()) {
+            sendToAll(WebSocketFrame.encodeBinary(message));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override public Collection<WebSocketConnection> getConnections() {
+        return Collections.unmodifiableList(connections);
+    }
+
+    void add(final WebSocketConnectionImpl connection) {
+        connections.add(connection);
+    }
+
+    void remove(final WebSocketConnectionImpl connection) {
+        connections.remove(connection);
+    }
+
+    private void sendToAll(final byte[] frame) {
+        // server frames are not masked, so the same encoded frame can be written to every connection
+        for (WebSocketConnectionImpl connection : connections) {
+            connection.sendFrame(frame);
+        }
+    }
+}
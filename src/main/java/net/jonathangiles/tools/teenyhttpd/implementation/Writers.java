@@ -0,0 +1,61 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that write queued messages (server-sent events and WebSocket frames) to clients in the background, so
+ * that sending a message never waits on a client's connection, along with the watchdog that checks for writes that a
+ * client has stalled. These are shared by every server, and are only busy while messages are waiting to be written.
+ */
+final class Writers {
+    // how often writes are checked for having taken longer than their timeout
+    private static final long CHECK_INTERVAL_MILLIS = 250;
+
+    private static final Executor EXECUTOR = createExecutor();
+    private static final ScheduledThreadPoolExecutor WATCHDOG = createWatchdog();
+
+    private Writers() { }
+
+    /**
+     * Runs a writer on a thread of its own.
+     */
+    static void execute(final Runnable writer) {
+        EXECUTOR.execute(writer);
+    }
+
+    /**
+     * Runs the given check at a regular interval, until it is cancelled.
+     */
+    static ScheduledFuture<?> scheduleCheck(final Runnable check) {
+        return WATCHDOG.scheduleWithFixedDelay(check, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static Executor createExecutor() {
+        if (VirtualThreads.isSupported()) {
+            return VirtualThreads.newVirtualThreadPerTaskExecutor();
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            final Thread thread = new Thread(task, "TeenyHttpd-Writer-" + threadCount.incrementAndGet());
+            // a writer should not keep the JVM alive once the server has stopped
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ScheduledThreadPoolExecutor createWatchdog() {
+        final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, task -> {
+            final Thread thread = new Thread(task, "TeenyHttpd-Writer-Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // checks are cancelled as often as connections close, and should not pile up in the queue until they are due
+        watchdog.setRemoveOnCancelPolicy(true);
+        return watchdog;
+    }
+}
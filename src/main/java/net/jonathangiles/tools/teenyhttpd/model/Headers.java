@@ -2,11 +2,29 @@ package net.jonathangiles.tools.teenyhttpd.model;
 
 public enum Headers {
     ACCEPT("Accept"),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    ACCEPT_RANGES("Accept-Ranges"),
     ACCESS_CONTROL_ALLOW_ORIGIN("Access-Control-Allow-Origin"),
+    ALLOW("Allow"),
     CACHE_CONTROL("Cache-Control"),
     CONNECTION("Connection"),
+    CONTENT_ENCODING("Content-Encoding"),
     CONTENT_TYPE("Content-Type"),
-    CONTENT_LENGTH("Content-Length");
+    CONTENT_LENGTH("Content-Length"),
+    CONTENT_RANGE("Content-Range"),
+    ETAG("ETag"),
+    HTTP2_SETTINGS("HTTP2-Settings"),
+    IF_MODIFIED_SINCE("If-Modified-Since"),
+    IF_NONE_MATCH("If-None-Match"),
+    IF_RANGE("If-Range"),
+    LAST_MODIFIED("Last-Modified"),
+    RANGE("Range"),
+    SEC_WEBSOCKET_ACCEPT("Sec-WebSocket-Accept"),
+    SEC_WEBSOCKET_KEY("Sec-WebSocket-Key"),
+    SEC_WEBSOCKET_VERSION("Sec-WebSocket-Version"),
+    TRANSFER_ENCODING("Transfer-Encoding"),
+    UPGRADE("Upgrade"),
+    VARY("Vary");
 
     private final String key;
 
@@ -2,6 +2,9 @@ package net.jonathangiles.tools.teenyhttpd.model;
 
 import net.jonathangiles.tools.teenyhttpd.implementation.SimpleRequest;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -27,8 +30,32 @@ public interface Request {
 
     String getPath();
 
+    /**
+     * Returns the body of the request as a string, decoded with the charset given in its 'Content-Type' header (or
+     * UTF-8 if there is none), or null if the request has no body. The body is read in full the first time this is
+     * called, so {@link #getBodyStream()} is a better fit for large or binary bodies.
+     */
     String getBody();
 
+    /**
+     * Returns a stream over the bytes of the request body, which is empty if the request has no body. Unless
+     * {@link #getBody()} has been called first, the stream reads straight from the connection, so the body can only be
+     * read once, and only while the request is being handled. By default, this is a stream over the UTF-8 encoding of
+     * {@link #getBody()}.
+     */
+    default InputStream getBodyStream() {
+        final String body = getBody();
+        return new ByteArrayInputStream(body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the length of the request body in bytes, or -1 if it is not known until the body has been read. By
+     * default, this is -1.
+     */
+    default long getContentLength() {
+        return -1;
+    }
+
     /**
      * Returns a read-only Map of headers.
      * @return
@@ -8,6 +8,7 @@ import java.util.List;
 import net.jonathangiles.tools.teenyhttpd.implementation.ByteResponse;
 import net.jonathangiles.tools.teenyhttpd.implementation.EmptyResponse;
 import net.jonathangiles.tools.teenyhttpd.implementation.FileResponse;
+import net.jonathangiles.tools.teenyhttpd.implementation.StreamingResponse;
 import net.jonathangiles.tools.teenyhttpd.implementation.StringResponse;
 
 public interface Response {
@@ -40,6 +41,20 @@ public interface Response {
         return new StringResponse(statusCode, headers, body);
     }
 
+    /**
+     * Creates a response whose body is written by the given writer while the response is being sent, so that it does
+     * not have to be held in memory or have its length known up front. The body is sent with chunked transfer-encoding
+     * (or, to HTTP/1.0 clients, delimited by closing the connection).
+     */
+    static Response createStreaming(final StatusCode statusCode, final ResponseBodyWriter bodyWriter) {
+        return new StreamingResponse(statusCode, bodyWriter);
+    }
+
+    static Response createStreaming(final StatusCode statusCode, final List<Header> headers,
+                                    final ResponseBodyWriter bodyWriter) {
+        return new StreamingResponse(statusCode, headers, bodyWriter);
+    }
+
     static Response createFileResponse(final Request request) {
         return new FileResponse(request);
     }
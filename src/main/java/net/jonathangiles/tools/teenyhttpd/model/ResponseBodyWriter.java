@@ -0,0 +1,19 @@
+package net.jonathangiles.tools.teenyhttpd.model;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes the body of a streamed response, as created by {@link Response#createStreaming(StatusCode, ResponseBodyWriter)}.
+ * The body is sent to the client as it is written, without its length having to be known up front. Calling
+ * {@link BufferedOutputStream#flush()} sends everything written so far to the client straight away, rather than waiting
+ * for the server's buffer to fill.
+ */
+@FunctionalInterface
+public interface ResponseBodyWriter {
+
+    /**
+     * Writes the body to the given stream, which must not be closed.
+     */
+    void writeBody(BufferedOutputStream out) throws IOException;
+}
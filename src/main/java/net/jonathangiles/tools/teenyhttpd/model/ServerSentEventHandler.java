@@ -3,11 +3,26 @@ package net.jonathangiles.tools.teenyhttpd.model;
 import net.jonathangiles.tools.teenyhttpd.implementation.ServerSentEventHandlerImpl;
 import net.jonathangiles.tools.teenyhttpd.implementation.ServerSentEventRequest;
 
+import java.time.Duration;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public interface ServerSentEventHandler {
 
+    /**
+     * What happens to a message that is sent to a client whose queue of messages waiting to be written is already full.
+     */
+    enum OverflowPolicy {
+        /** The oldest message in the queue is dropped to make room for the new one. */
+        DROP_OLDEST,
+
+        /** The new message is dropped. */
+        DROP_NEWEST,
+
+        /** The client is disconnected, and the messages in its queue are dropped. */
+        DISCONNECT
+    }
+
     static ServerSentEventHandler create() {
         return create(null);
     }
@@ -46,6 +61,61 @@ public interface ServerSentEventHandler {
      */
     void onDisconnect(Request request);
 
+    /**
+     * Sets how many messages may wait to be written to each client. Messages are written to each client by a thread of
+     * its own, so sending a message never waits for a client, and a client that is slow to read its messages falls
+     * behind without holding up the others. Once a client's queue is full, the overflow policy decides what happens to
+     * further messages. The default is 1024. Handlers that do not queue messages ignore this.
+     * @param queueCapacity The maximum number of queued messages per client, which must be at least one.
+     */
+    default void setQueueCapacity(int queueCapacity) {
+        // messages are not queued
+    }
+
+    /**
+     * Sets what happens to a message that is sent to a client whose queue is full. The default is to disconnect the
+     * client, which can reconnect and catch up. Handlers that do not queue messages ignore this.
+     * @param overflowPolicy The overflow policy.
+     */
+    default void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        // messages are not queued
+    }
+
+    /**
+     * Sets how long writing a message to a client may take before the client is disconnected. A client that has
+     * stopped reading its messages would otherwise hold a writer thread for good, whatever the overflow policy. The
+     * default is 30 seconds. Handlers that do not queue messages ignore this.
+     * @param writeTimeout The write timeout, which must be positive.
+     */
+    default void setWriteTimeout(Duration writeTimeout) {
+        // messages are not queued
+    }
+
+    /**
+     * Returns the number of messages that are waiting to be written, across all clients.
+     * @return the number of messages that are waiting to be written.
+     */
+    default int getQueuedMessageCount() {
+        return 0;
+    }
+
+    /**
+     * Returns the number of messages that are waiting to be written to the client that is furthest behind.
+     * @return the length of the longest queue.
+     */
+    default int getMaxQueueDepth() {
+        return 0;
+    }
+
+    /**
+     * Returns the number of messages that have been dropped because a client's queue was full, including those that
+     * were still queued for clients that were disconnected.
+     * @return the number of messages that have been dropped.
+     */
+    default long getDroppedMessageCount() {
+        return 0;
+    }
+
     /**
      * Sends a message to all clients, with the message appended to the `data` field of the Server-Sent Event.
      * @param message The message to send.
@@ -65,7 +135,8 @@ public interface ServerSentEventHandler {
 
     /**
      * Sends a message to all clients, with the message being generated by the provided function. This allows for the
-     * message to be tailored per client, if required (e.g. by using path parameters or query parameters).
+     * message to be tailored per client, if required (e.g. by using path parameters or query parameters). A message is
+     * encoded once for each run of clients that the function returns the same instance for.
      *
      * @param messageGenerator A function that takes a {@link ServerSentEventRequest} and returns a
      * {@link ServerSentEventMessage}, that will then be sent to the client represented by the given request.
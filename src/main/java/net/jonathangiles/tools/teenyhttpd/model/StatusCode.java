@@ -6,6 +6,8 @@ import net.jonathangiles.tools.teenyhttpd.implementation.TypedResponseImpl;
 public enum StatusCode {
     // https://www.w3.org/Protocols/rfc2616/rfc2616-sec6.html
 
+    SWITCHING_PROTOCOLS(101, "Switching Protocols"),
+
     OK(200, "OK"),
     CREATED(201, "Created"),
     ACCEPTED(202, "Accepted"),
@@ -40,6 +42,8 @@ public enum StatusCode {
     UNSUPPORTED_MEDIA_TYPE(415, "Unsupported Media Type"),
     REQUESTED_RANGE_NOT_SATISFIABLE(416, "Requested range not satisfiable"),
     EXPECTATION_FAILED(417, "Expectation Failed"),
+    UPGRADE_REQUIRED(426, "Upgrade Required"),
+    REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
 
     INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
     NOT_IMPLEMENTED(501, "Not Implemented"),
@@ -0,0 +1,73 @@
+package net.jonathangiles.tools.teenyhttpd.model;
+
+/**
+ * A WebSocket connection to a single client, which stays open until either side closes it. Messages may be sent to the
+ * client from any thread, and are queued to be written in the background, so sending a message never waits for the
+ * client. A client that falls too far behind, or stops reading altogether, is disconnected.
+ */
+public interface WebSocketConnection {
+
+    /** The connection was closed because its purpose was fulfilled. */
+    int NORMAL_CLOSURE = 1000;
+
+    /** The connection was closed because the server is stopping, or the client is navigating away. */
+    int GOING_AWAY = 1001;
+
+    /** The connection was closed because the other side broke the WebSocket protocol. */
+    int PROTOCOL_ERROR = 1002;
+
+    /** The connection was closed because a message was of a type (text or binary) that can not be accepted. */
+    int UNSUPPORTED_DATA = 1003;
+
+    /** Reported when the other side closed the connection without giving a status code. Never sent. */
+    int NO_STATUS = 1005;
+
+    /** Reported when the connection was lost without being closed by either side. Never sent. */
+    int ABNORMAL_CLOSURE = 1006;
+
+    /** The connection was closed because a text message was not valid UTF-8. */
+    int INVALID_PAYLOAD = 1007;
+
+    /** The connection was closed because a message was larger than can be accepted. */
+    int MESSAGE_TOO_BIG = 1009;
+
+    /** The connection was closed because the server failed to handle a message. */
+    int INTERNAL_ERROR = 1011;
+
+    /**
+     * Returns the request that opened the connection, with the path params and query params that it was made with.
+     */
+    Request getRequest();
+
+    /**
+     * Sends a text message to the client. Messages sent once the connection has started to close are dropped.
+     * @param message The message to send.
+     */
+    void send(String message);
+
+    /**
+     * Sends a binary message to the client. Messages sent once the connection has started to close are dropped.
+     * @param message The message to send.
+     */
+    void send(byte[] message);
+
+    /**
+     * Returns true until the connection has started to close.
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the connection normally.
+     */
+    default void close() {
+        close(NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Starts to close the connection, telling the client why. The connection is closed once the client has replied, or
+     * after the idle timeout if it does not.
+     * @param code The status code, such as {@link #NORMAL_CLOSURE}.
+     * @param reason The reason that the connection is being closed, which may be empty.
+     */
+    void close(int code, String reason);
+}
@@ -0,0 +1,99 @@
+package net.jonathangiles.tools.teenyhttpd.model;
+
+import net.jonathangiles.tools.teenyhttpd.implementation.WebSocketHandlerImpl;
+
+import java.util.Collection;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+public interface WebSocketHandler {
+
+    static WebSocketHandler create(BiConsumer<WebSocketConnection, String> onMessage) {
+        return create(null, onMessage, null);
+    }
+
+    static WebSocketHandler create(Consumer<WebSocketConnection> onOpen,
+                                   BiConsumer<WebSocketConnection, String> onMessage,
+                                   Consumer<WebSocketConnection> onClose) {
+        return new WebSocketHandlerImpl() {
+            @Override public void onOpen(WebSocketConnection connection) {
+                if (onOpen != null) {
+                    onOpen.accept(connection);
+                }
+            }
+
+            @Override public void onMessage(WebSocketConnection connection, String message) {
+                if (onMessage != null) {
+                    onMessage.accept(connection, message);
+                }
+            }
+
+            @Override public void onClose(WebSocketConnection connection, int code, String reason) {
+                if (onClose != null) {
+                    onClose.accept(connection);
+                }
+            }
+        };
+    }
+
+    /**
+     * Called when a client has opened a connection to the WebSocket endpoint, before any of its messages are received.
+     * @param connection The new connection.
+     */
+    void onOpen(WebSocketConnection connection);
+
+    /**
+     * Called with each text message that a client sends, on the thread that reads the client's connection, so the
+     * next message from the same client is not read until this returns.
+     * @param connection The connection that the message was received on.
+     * @param message The message.
+     */
+    void onMessage(WebSocketConnection connection, String message);
+
+    /**
+     * Called with each binary message that a client sends. By default, binary messages are not accepted, and the
+     * connection is closed with {@link WebSocketConnection#UNSUPPORTED_DATA}.
+     * @param connection The connection that the message was received on.
+     * @param message The message.
+     */
+    default void onMessage(WebSocketConnection connection, byte[] message) {
+        connection.close(WebSocketConnection.UNSUPPORTED_DATA, "Binary messages are not accepted");
+    }
+
+    /**
+     * Called once a connection has closed, whichever side closed it.
+     * @param connection The connection that has closed.
+     * @param code The status code that the connection was closed with, which is
+     *             {@link WebSocketConnection#ABNORMAL_CLOSURE} if the connection was lost.
+     * @param reason The reason that the connection was closed, which may be empty.
+     */
+    void onClose(WebSocketConnection connection, int code, String reason);
+
+    /**
+     * Sends a text message to all connected clients. The message is encoded once, and the same frame is written to
+     * every client.
+     * @param message The message to send.
+     */
+    void broadcast(String message);
+
+    /**
+     * Sends a binary message to all connected clients. The message is encoded once, and the same frame is written to
+     * every client.
+     * @param message The message to send.
+     */
+    void broadcast(byte[] message);
+
+    /**
+     * Returns the connections that are currently open.
+     * @return the connections that are currently open.
+     */
+    Collection<WebSocketConnection> getConnections();
+
+    /**
+     * Returns true if there are open connections to the WebSocket endpoint.
+     * @return true if there are open connections to the WebSocket endpoint.
+     */
+    default boolean hasActiveConnections() {
+        return !getConnections().isEmpty();
+    }
+}
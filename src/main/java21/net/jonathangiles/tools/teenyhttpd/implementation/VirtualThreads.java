@@ -0,0 +1,29 @@
+package net.jonathangiles.tools.teenyhttpd.implementation;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads. This is the Java 21 version of this class, which is used in place of the base version when
+ * TeenyHttpd runs on Java 21 or later.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+        // no-op
+    }
+
+    /**
+     * Returns true if virtual threads can be used on this version of Java.
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+}
@@ -0,0 +1,135 @@
+package net.jonathangiles.tools.teenyhttpd;
+
+import net.jonathangiles.tools.teenyhttpd.implementation.RequestParser;
+import net.jonathangiles.tools.teenyhttpd.model.Header;
+import net.jonathangiles.tools.teenyhttpd.model.Method;
+import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestParserTest {
+
+    private static RequestParser parse(String request) {
+        RequestParser parser = new RequestParser();
+        parser.append(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(parser.parse());
+        return parser;
+    }
+
+    @Test
+    public void testRequestLineAndHeaders() {
+        RequestParser parser = parse("GET /search?query=test&sort=desc HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Accept: text/html, application/json\r\n\r\n");
+
+        assertNull(parser.getError());
+        assertEquals(Method.GET, parser.getMethod());
+        assertEquals("/search", parser.getPath());
+        assertEquals("test", parser.getQueryParams().getQueryParams().get("query"));
+        assertEquals("desc", parser.getQueryParams().getQueryParams().get("sort"));
+        assertEquals("HTTP/1.1", parser.getHttpVersion());
+        assertFalse(parser.isHttp10());
+        assertEquals(-1, parser.getContentLength());
+
+        List<Header> headers = parser.getHeaders();
+        assertEquals(2, headers.size());
+        assertEquals("Host", headers.get(0).getKey());
+        assertEquals("localhost", headers.get(0).getFirstValue());
+        assertEquals("Accept", headers.get(1).getKey());
+        assertEquals(2, headers.get(1).getValues().size());
+        assertEquals("application/json", headers.get(1).getValues().get(1));
+    }
+
+    @Test
+    public void testPartialReads() {
+        String request = "POST /echo HTTP/1.1\r\nContent-Length: 5\r\nConnection: keep-alive, Upgrade\r\n\r\nhello";
+        RequestParser parser = new RequestParser();
+
+        // feed the request one byte at a time, as a non-blocking channel may deliver it
+        byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+        int headLength = request.indexOf("hello");
+        for (int i = 0; i < bytes.length; i++) {
+            parser.append(ByteBuffer.wrap(bytes, i, 1));
+            assertEquals(i >= headLength - 1, parser.parse(), "unexpected parse result at byte " + i);
+            assertEquals(i == bytes.length - 1, parser.isRequestBuffered());
+        }
+
+        assertEquals(Method.POST, parser.getMethod());
+        assertEquals("/echo", parser.getPath());
+        assertEquals(5, parser.getContentLength());
+        assertTrue(parser.hasConnectionOption("keep-alive"));
+        assertTrue(parser.hasConnectionOption("upgrade"));
+        assertFalse(parser.hasConnectionOption("close"));
+    }
+
+    @Test
+    public void testPipelinedRequests() throws IOException {
+        RequestParser parser = parse("\r\nPOST /a HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc" +
+                "GET /b HTTP/1.0\r\n\r\n" +
+                "GET /c HTTP/1.1\r\n");
+
+        assertEquals("/a", parser.getPath());
+        InputStream body = parser.getInputStream(null);
+        byte[] bytes = new byte[3];
+        assertEquals(3, body.read(bytes));
+        assertEquals("abc", new String(bytes, StandardCharsets.UTF_8));
+
+        parser.next();
+        assertTrue(parser.parse());
+        assertEquals("/b", parser.getPath());
+        assertTrue(parser.isHttp10());
+        assertTrue(parser.getHeaders().isEmpty());
+
+        parser.next();
+        assertFalse(parser.parse());
+        parser.append(ByteBuffer.wrap("\r\n".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(parser.parse());
+        assertEquals("/c", parser.getPath());
+        assertFalse(parser.hasBufferedBytes());
+    }
+
+    @Test
+    public void testRequestWithoutVersionIsHttp10() {
+        RequestParser parser = parse("get /\r\n\r\n");
+        assertEquals(Method.GET, parser.getMethod());
+        assertTrue(parser.isHttp10());
+    }
+
+    @Test
+    public void testChunkedIsOnlyRecognisedAsTheSoleTransferCoding() {
+        assertFalse(parse("POST / HTTP/1.1\r\n\r\n").isChunked());
+        assertTrue(parse("POST / HTTP/1.1\r\nTransfer-Encoding: Chunked\r\n\r\n").isChunked());
+        assertTrue(parse("POST / HTTP/1.1\r\nTransfer-Encoding: , chunked ,\r\n\r\n").isChunked());
+        assertFalse(parse("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n").isChunked());
+        assertFalse(parse("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n").isChunked());
+        assertFalse(parse("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, chunked\r\n\r\n").isChunked());
+        assertFalse(parse("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n").isChunked());
+        assertFalse(parse("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n\r\n").isChunked());
+        assertFalse(parse("POST / HTTP/1.1\r\nTransfer-Encoding:\r\n\r\n").isChunked());
+    }
+
+    @Test
+    public void testInvalidRequests() {
+        assertEquals(StatusCode.BAD_REQUEST, parse("GET\r\n\r\n").getError());
+        assertEquals(StatusCode.NOT_IMPLEMENTED, parse("BREW /pot HTTP/1.1\r\n\r\n").getError());
+        assertEquals(StatusCode.BAD_REQUEST, parse("GET / HTTP/1.1\r\nno colon\r\n\r\n").getError());
+        assertEquals(StatusCode.BAD_REQUEST, parse("POST / HTTP/1.1\r\nContent-Length: abc\r\n\r\n").getError());
+        assertEquals(StatusCode.BAD_REQUEST,
+                parse("POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n").getError());
+        assertEquals(StatusCode.BAD_REQUEST,
+                parse("POST / HTTP/1.1\r\nContent-Length: 1\r\nTransfer-Encoding: chunked\r\n\r\n").getError());
+
+        StringBuilder hugeHeader = new StringBuilder("GET / HTTP/1.1\r\nX-Huge: ");
+        for (int i = 0; i < 70 * 1024; i++) {
+            hugeHeader.append('a');
+        }
+        assertEquals(StatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE, parse(hugeHeader.toString()).getError());
+    }
+}
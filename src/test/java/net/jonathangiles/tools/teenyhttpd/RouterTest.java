@@ -0,0 +1,102 @@
+package net.jonathangiles.tools.teenyhttpd;
+
+import net.jonathangiles.tools.teenyhttpd.implementation.Router;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RouterTest {
+
+    @Test
+    public void testStaticRoutes() {
+        Router<String> router = new Router<>();
+        router.add("/", "root");
+        router.add("/hello", "hello");
+        router.add("/hello/world", "world");
+
+        assertEquals("root", router.find("/").getValue());
+        assertEquals("hello", router.find("/hello").getValue());
+        assertEquals("hello", router.find("/HELLO").getValue());
+        assertEquals("world", router.find("/hello/world").getValue());
+        assertNull(router.find("/hello/"));
+        assertNull(router.find("/goodbye"));
+        assertNull(router.find("*"));
+    }
+
+    @Test
+    public void testPathParams() {
+        Router<String> router = new Router<>();
+        router.add("/user/:id", "user");
+        router.add("/user/:id/:name", "userName");
+
+        Router.Match<String> match = router.find("/user/123/john");
+        assertEquals("userName", match.getValue());
+        assertEquals("123", match.getPathParams().get("id"));
+        assertEquals("john", match.getPathParams().get("name"));
+
+        assertEquals("", router.find("/user/").getPathParams().get("id"));
+        assertNull(router.find("/user"));
+    }
+
+    @Test
+    public void testPathParamsAreOnlyDecodedWhenEscaped() {
+        Router<String> router = new Router<>();
+        router.add("/search/:term", "search");
+
+        assertEquals("a+b", router.find("/search/a+b").getPathParams().get("term"));
+        assertEquals("a b+c", router.find("/search/a%20b+c").getPathParams().get("term"));
+    }
+
+    @Test
+    public void testStaticSegmentsArePreferredOverPathParams() {
+        Router<String> router = new Router<>();
+        router.add("/user/:id", "user");
+        router.add("/user/me", "me");
+        router.add("/:a/b/c", "abc");
+        router.add("/x/b/:c", "xbc");
+
+        assertEquals("me", router.find("/user/me").getValue());
+        assertEquals("user", router.find("/user/you").getValue());
+
+        // the static 'x' segment leads to a match, but the path param must be tried when it doesn't
+        assertEquals("xbc", router.find("/x/b/d").getValue());
+        Router.Match<String> match = router.find("/y/b/c");
+        assertEquals("abc", match.getValue());
+        assertEquals("y", match.getPathParams().get("a"));
+    }
+
+    @Test
+    public void testRegexFallback() {
+        Router<String> router = new Router<>();
+        router.add("/(?<filePath>.*)", "files");
+        router.add("/api/:version/(?<rest>.*)", "api");
+        router.add("/status", "status");
+
+        assertEquals("status", router.find("/status").getValue());
+
+        Router.Match<String> files = router.find("/css/site.css");
+        assertEquals("files", files.getValue());
+        assertEquals("css/site.css", files.getPathParams().get("filePath"));
+        assertEquals("", router.find("/").getPathParams().get("filePath"));
+
+        Map<String, String> params = router.find("/api/v1/users/1").getPathParams();
+        assertEquals("v1", params.get("version"));
+        assertEquals("users/1", params.get("rest"));
+    }
+
+    @Test
+    public void testFindAll() {
+        Router<String> router = new Router<>();
+        assertEquals("user", router.add("/user/:id", "user"));
+        assertEquals("user", router.add("/user/:name", "other"));
+        router.add("/user/me", "me");
+        router.add("/(?<filePath>.*)", "files");
+
+        assertEquals(Arrays.asList("me", "user", "files"), router.findAll("/user/me"));
+        assertEquals(Arrays.asList("user", "files"), router.findAll("/user/123"));
+        assertTrue(router.findAll("*").isEmpty());
+    }
+}
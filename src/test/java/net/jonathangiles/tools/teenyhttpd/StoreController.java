@@ -5,6 +5,7 @@ import net.jonathangiles.tools.teenyhttpd.model.Header;
 import net.jonathangiles.tools.teenyhttpd.model.Request;
 import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
 import net.jonathangiles.tools.teenyhttpd.model.TypedResponse;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketHandler;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -124,4 +125,14 @@ public class StoreController {
         return body + " Handled!";
     }
 
+    @Get("/thread")
+    public String thread() {
+        return Thread.currentThread().toString();
+    }
+
+    @WebSocket("/store/echo")
+    public WebSocketHandler echo() {
+        return WebSocketHandler.create((connection, message) -> connection.send("echo: " + message));
+    }
+
 }
\ No newline at end of file
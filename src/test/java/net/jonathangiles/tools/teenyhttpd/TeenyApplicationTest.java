@@ -12,10 +12,17 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
 
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -373,4 +380,50 @@ public class TeenyApplicationTest {
         assertEquals("Hello, World!" + " Handled!", response.getBody());
     }
 
+    @Test
+    @EnabledForJreRange(min = JRE.JAVA_21)
+    void testVirtualThreadsProperty() {
+        TeenyApplication.stop();
+        System.setProperty("server.virtualThreads", "true");
+        try {
+            TeenyApplication.start().register(new StoreController());
+        } finally {
+            System.clearProperty("server.virtualThreads");
+        }
+
+        Response response = executeRequest(Method.GET, "/store/thread");
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().startsWith("VirtualThread"), response.getBody());
+    }
+
+    @Test
+    void testWebSocket() throws IOException {
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /store/echo HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n"
+                    + "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+
+            InputStream in = socket.getInputStream();
+            StringBuilder head = new StringBuilder();
+            while (head.indexOf("\r\n\r\n") < 0) {
+                head.append((char) in.read());
+            }
+            assertTrue(head.toString().startsWith("HTTP/1.1 101 Switching Protocols"), head.toString());
+
+            // a masked text frame, with a mask of zero so that the payload goes as it is
+            byte[] message = "Hello".getBytes(StandardCharsets.UTF_8);
+            out.write(new byte[] { (byte) 0x81, (byte) (0x80 | message.length), 0, 0, 0, 0 });
+            out.write(message);
+            out.flush();
+
+            DataInputStream frames = new DataInputStream(in);
+            assertEquals(0x81, frames.readUnsignedByte());
+            byte[] reply = new byte[frames.readUnsignedByte()];
+            frames.readFully(reply);
+            assertEquals("echo: Hello", new String(reply, StandardCharsets.UTF_8));
+        }
+    }
+
 }
@@ -0,0 +1,15 @@
+package net.jonathangiles.tools.teenyhttpd;
+
+/**
+ * Runs all of the {@link TeenyHttpdTest} tests against the selector-based, non-blocking transport.
+ */
+public class TeenyHttpdNioTest extends TeenyHttpdTest {
+
+    @Override
+    protected TeenyHttpd createServer(int port) {
+        TeenyHttpd server = new TeenyHttpd(port);
+        server.setNonBlocking(true);
+        server.setEventLoopThreads(2);
+        return server;
+    }
+}
@@ -1,9 +1,15 @@
 package net.jonathangiles.tools.teenyhttpd;
 
+import net.jonathangiles.tools.teenyhttpd.implementation.ResponseBase;
+import net.jonathangiles.tools.teenyhttpd.implementation.Tls;
+import net.jonathangiles.tools.teenyhttpd.implementation.WebSocketHandlerImpl;
 import net.jonathangiles.tools.teenyhttpd.model.Header;
 import net.jonathangiles.tools.teenyhttpd.model.Method;
 import net.jonathangiles.tools.teenyhttpd.model.Response;
+import net.jonathangiles.tools.teenyhttpd.model.ServerSentEventHandler;
 import net.jonathangiles.tools.teenyhttpd.model.StatusCode;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketConnection;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketHandler;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.StringEntity;
@@ -13,10 +19,52 @@ import org.apache.http.util.EntityUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -31,10 +79,14 @@ public class TeenyHttpdTest {
     @BeforeEach
     public void setup() {
         httpClient = HttpClients.createDefault();
-        server = new TeenyHttpd(TEST_PORT);
+        server = createServer(TEST_PORT);
         server.start();
     }
 
+    protected TeenyHttpd createServer(int port) {
+        return new TeenyHttpd(port);
+    }
+
     @AfterEach
     public void tearDown() {
         server.stop();
@@ -325,6 +377,56 @@ public class TeenyHttpdTest {
         assertNull(response.getEntity()); // HEAD requests don't have a response body
     }
 
+    @Test
+    public void testHeadRequestsAreAnsweredByGetRoutesWithoutBodies(@TempDir Path webroot) throws Exception {
+        Files.write(webroot.resolve("app.js"), "console.log('hello');".getBytes(StandardCharsets.US_ASCII));
+        AtomicBoolean bodyWritten = new AtomicBoolean();
+        server.addStringRoute("/hello", request -> "Hello, " + request.getMethod());
+        server.addGetRoute("/stream", request -> Response.createStreaming(StatusCode.OK,
+                out -> bodyWritten.set(true)));
+        server.addGetRoute("/both", request -> Response.create(StatusCode.OK, "GET route"));
+        server.addRoute(Method.HEAD, "/both", request -> Response.create(StatusCode.ACCEPTED, "HEAD route"));
+        server.addFileRoute("/", webroot.toFile());
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // the handler can tell that it is a HEAD request, and the length is that of the body it would have sent
+            out.write(("HEAD /hello HTTP/1.1\r\n\r\n"
+                    + "HEAD /stream HTTP/1.1\r\n\r\n"
+                    + "HEAD /both HTTP/1.1\r\n\r\n"
+                    + "HEAD /app.js HTTP/1.1\r\n\r\n"
+                    + "GET /hello HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String hello = RawResponse.readHead(in);
+            assertTrue(hello.startsWith("HTTP/1.1 200"), hello);
+            assertTrue(hello.contains("Content-Length: 11"), hello);
+
+            // a body of unknown length is neither generated nor delimited, so the connection stays open
+            String stream = RawResponse.readHead(in);
+            assertTrue(stream.startsWith("HTTP/1.1 200"), stream);
+            assertFalse(stream.contains("Transfer-Encoding"), stream);
+            assertFalse(stream.contains("Connection"), stream);
+            assertFalse(bodyWritten.get());
+
+            // a route of its own takes precedence over the GET route
+            assertTrue(RawResponse.readHead(in).startsWith("HTTP/1.1 202"));
+
+            // files have their length and validators worked out from their metadata
+            String file = RawResponse.readHead(in);
+            assertTrue(file.startsWith("HTTP/1.1 200"), file);
+            assertTrue(file.contains("Content-Length: 21"), file);
+            assertTrue(file.contains("ETag: "), file);
+
+            // nothing was sent after any of the heads, as the next response follows straight on
+            assertEquals("Hello, GET", RawResponse.read(in).body);
+        }
+
+        HttpResponse response = executeRequest(Method.PUT, "http://localhost:" + TEST_PORT + "/hello");
+        assertEquals(405, response.getStatusLine().getStatusCode());
+        assertEquals("GET, HEAD", response.getFirstHeader("Allow").getValue());
+    }
+
     @Test
     public void testPostRequestWithPathAndQueryParams() throws Exception {
         server.addRoute(Method.POST, "/post/:id", request -> {
@@ -391,17 +493,18 @@ public class TeenyHttpdTest {
     public void testConcurrentRequests() throws Exception {
         server.addGetRoute("/user/:id", request -> StatusCode.OK.asResponse());
 
-        HttpGet request = new HttpGet("http://localhost:" + TEST_PORT + "/user/123");
+        // each request gets its own instance, as a request can only be executed by one thread at a time
+        String url = "http://localhost:" + TEST_PORT + "/user/123";
         CompletableFuture<HttpResponse> future1 = CompletableFuture.supplyAsync(() -> {
             try {
-                return httpClient.execute(request);
+                return httpClient.execute(new HttpGet(url));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         });
         CompletableFuture<HttpResponse> future2 = CompletableFuture.supplyAsync(() -> {
             try {
-                return httpClient.execute(request);
+                return httpClient.execute(new HttpGet(url));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -433,6 +536,24 @@ public class TeenyHttpdTest {
         assertEquals(405, response.getStatusLine().getStatusCode());
     }
 
+    @Test
+    public void testUnsupportedMethodOnPathParamRouteReturns405WithAllowHeader() throws Exception {
+        server.addGetRoute("/user/:id", request -> StatusCode.OK.asResponse());
+        server.addRoute(Method.DELETE, "/user/:id", request -> StatusCode.OK.asResponse());
+        server.addRoute(Method.POST, "/user", request -> StatusCode.OK.asResponse());
+
+        HttpResponse response = executeRequest(Method.PUT, "http://localhost:" + TEST_PORT + "/user/123");
+        assertEquals(405, response.getStatusLine().getStatusCode());
+        assertEquals("GET, HEAD, DELETE", response.getFirstHeader("Allow").getValue());
+
+        // POST has routes, but not for this path
+        response = executeRequest(Method.POST, "http://localhost:" + TEST_PORT + "/user/123");
+        assertEquals(405, response.getStatusLine().getStatusCode());
+
+        response = executeRequest(Method.PUT, "http://localhost:" + TEST_PORT + "/user/123/details");
+        assertEquals(404, response.getStatusLine().getStatusCode());
+    }
+
     @Test
     public void testMultipleGetMethods() throws Exception {
         server.addGetRoute("/user/:id/details", request -> {
@@ -449,6 +570,1302 @@ public class TeenyHttpdTest {
         assertEquals("Query Params: {test2=456, test=123}", EntityUtils.toString(response.getEntity()));
     }
 
+    @Test
+    public void testKeepAliveServesMultipleRequestsOnOneConnection() throws Exception {
+        server.addStringRoute("/hello", request -> "Hello world!");
+        server.addGetRoute("/empty", request -> StatusCode.OK.asResponse());
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse first = RawResponse.read(in);
+            assertEquals(200, first.statusCode);
+            assertEquals("Hello world!", first.body);
+            assertNull(first.headers.get("connection"));
+
+            out.write("GET /empty HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse second = RawResponse.read(in);
+            assertEquals(200, second.statusCode);
+            assertEquals("0", second.headers.get("content-length"));
+
+            out.write("GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse third = RawResponse.read(in);
+            assertEquals("Hello world!", third.body);
+            assertEquals("close", third.headers.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testHttp10ClosesConnectionByDefault() throws Exception {
+        server.addStringRoute("/hello", request -> "Hello world!");
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.getOutputStream().write("GET /hello HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse response = RawResponse.read(socket.getInputStream());
+            assertEquals("Hello world!", response.body);
+            assertEquals("close", response.headers.get("connection"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testMaxRequestsPerConnection() throws Exception {
+        server.addStringRoute("/hello", request -> "Hello world!");
+        server.setMaxRequestsPerConnection(2);
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /hello HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertNull(RawResponse.read(in).headers.get("connection"));
+
+            out.write("GET /hello HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("close", RawResponse.read(in).headers.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testPipelinedRequestsAreAnsweredInOrder() throws Exception {
+        server.addGetRoute("/echo/:id", request -> Response.create(StatusCode.OK, "echo " + request.getPathParams().get("id")));
+        server.addRoute(Method.POST, "/echo", request -> Response.create(StatusCode.OK, "posted " + request.getBody()));
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // all requests are sent in a single write, before any of the responses have been read
+            out.write(("GET /echo/1 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello" +
+                    "GET /echo/3 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /echo/4 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+            assertEquals("echo 1", RawResponse.read(in).body);
+            assertEquals("posted hello", RawResponse.read(in).body);
+            assertEquals("echo 3", RawResponse.read(in).body);
+            RawResponse last = RawResponse.read(in);
+            assertEquals("echo 4", last.body);
+            assertEquals("close", last.headers.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testLargeRequestBodiesCanBeStreamedOrBuffered() throws Exception {
+        // bodies larger than this are spilled to a temporary file when they are read in full
+        server.setRequestBodyMemoryThreshold(1024);
+        server.addRoute(Method.POST, "/stream", request -> {
+            long count = 0;
+            long mismatches = 0;
+            try (InputStream body = request.getBodyStream()) {
+                int b;
+                while ((b = body.read()) != -1) {
+                    if (b != count++ % 251) {
+                        mismatches++;
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return Response.create(StatusCode.OK, request.getContentLength() + " " + count + " " + mismatches);
+        });
+        server.addRoute(Method.POST, "/text", request -> {
+            final String body = request.getBody();
+            final boolean isRepeatable = body.equals(request.getBody());
+            return Response.create(StatusCode.OK, body.length() + " " + body.charAt(body.length() - 1) + " " + isRepeatable);
+        });
+        server.addRoute(Method.POST, "/ignore", request -> Response.create(StatusCode.OK, "ignored"));
+
+        final byte[] binary = new byte[300_000];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) (i % 251);
+        }
+        final byte[] text = new byte[300_000];
+        Arrays.fill(text, (byte) 'a');
+        text[text.length - 1] = 'z';
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("POST /stream HTTP/1.1\r\nContent-Length: 300000\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.write(binary);
+            assertEquals("300000 300000 0", RawResponse.read(in).body);
+
+            out.write("POST /text HTTP/1.1\r\nContent-Length: 300000\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.write(text);
+            assertEquals("300000 z true", RawResponse.read(in).body);
+
+            // a small body that the handler does not read is skipped, so the connection can be used again
+            out.write("POST /ignore HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello".getBytes(StandardCharsets.US_ASCII));
+            RawResponse ignored = RawResponse.read(in);
+            assertEquals("ignored", ignored.body);
+            assertNull(ignored.headers.get("connection"));
+
+            // whereas the connection is closed rather than reading the rest of a large one
+            out.write("POST /ignore HTTP/1.1\r\nContent-Length: 300000\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.write(binary, 0, 70_000);
+            ignored = RawResponse.read(in);
+            assertEquals("ignored", ignored.body);
+            assertEquals("close", ignored.headers.get("connection"));
+        }
+    }
+
+    @Test
+    public void testChunkedRequestBodiesAreDecodedAsTheyArrive() throws Exception {
+        final CountDownLatch firstChunkRead = new CountDownLatch(1);
+        server.addRoute(Method.POST, "/ingest", request -> {
+            try (InputStream body = request.getBodyStream()) {
+                final byte[] first = new byte[5];
+                assertEquals(5, body.read(first, 0, 5));
+                firstChunkRead.countDown();
+                final String rest = new String(body.readAllBytes(), StandardCharsets.US_ASCII);
+                return Response.create(StatusCode.OK, new String(first, StandardCharsets.US_ASCII) + rest + " "
+                        + request.getContentLength());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        server.addRoute(Method.POST, "/text", request -> {
+            final String body = request.getBody();
+            return Response.create(StatusCode.OK, body + " " + request.getContentLength());
+        });
+        server.addStringRoute("/hello", request -> "Hello world!");
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // the handler sees the first chunk before the rest of the body has been sent
+            out.write("POST /ingest HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertTrue(firstChunkRead.await(5, TimeUnit.SECONDS));
+            out.write(("6;name=value\r\n world\r\n0\r\nX-Checksum: 1234\r\n\r\n" +
+                    "POST /text HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n" +
+                    "GET /hello HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+            assertEquals("hello world -1", RawResponse.read(in).body);
+            assertEquals("abcde 5", RawResponse.read(in).body);
+            assertEquals("Hello world!", RawResponse.read(in).body);
+        }
+    }
+
+    @Test
+    public void testRequestBodiesWithOtherTransferCodingsAreNotImplemented() throws Exception {
+        server.addRoute(Method.POST, "/text", request -> Response.create(StatusCode.OK, request.getBody()));
+
+        // only a body whose sole coding is chunked can be decoded, wherever the other codings are listed
+        final String[] requests = {
+                "POST /text HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n",
+                "POST /text HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n",
+                "POST /text HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n\r\n",
+        };
+        for (String request : requests) {
+            try (Socket socket = new Socket("localhost", TEST_PORT)) {
+                socket.getOutputStream().write((request + "3\r\nabc\r\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                RawResponse response = RawResponse.read(socket.getInputStream());
+                assertEquals(501, response.statusCode, request);
+                assertEquals("close", response.headers.get("connection"));
+            }
+        }
+    }
+
+    @Test
+    public void testRequestBodyLimits() throws Exception {
+        server.setMaxRequestBodySize(8);
+        server.setMaxRequestChunkSize(4);
+        server.addRoute(Method.POST, "/text", request -> Response.create(StatusCode.OK, request.getBody()));
+
+        final String[] requests = {
+                "POST /text HTTP/1.1\r\nContent-Length: 10\r\n\r\n0123456789",
+                "POST /text HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\n01234\r\n0\r\n\r\n",
+                "POST /text HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n4\r\n0123\r\n4\r\n4567\r\n1\r\n8\r\n0\r\n\r\n",
+        };
+        for (String request : requests) {
+            try (Socket socket = new Socket("localhost", TEST_PORT)) {
+                socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+                RawResponse response = RawResponse.read(socket.getInputStream());
+                assertEquals(413, response.statusCode, request);
+                assertEquals("close", response.headers.get("connection"));
+            }
+        }
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.getOutputStream().write("POST /text HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals(400, RawResponse.read(socket.getInputStream()).statusCode);
+        }
+    }
+
+    @Test
+    @EnabledForJreRange(min = JRE.JAVA_21)
+    public void testRequestsAreServedOnVirtualThreads() throws Exception {
+        // virtual threads must be turned on before the server starts, so a second server is started on another port
+        final int port = TEST_PORT + 13;
+        server.stop();
+        server = createServer(port);
+        server.setVirtualThreads(true);
+        server.addStringRoute("/thread", request -> Thread.currentThread().toString());
+        server.start();
+
+        HttpResponse response = executeRequest(Method.GET, "http://localhost:" + port + "/thread");
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        String thread = EntityUtils.toString(response.getEntity());
+        assertTrue(thread.startsWith("VirtualThread"), thread);
+    }
+
+    @Test
+    @EnabledForJreRange(max = JRE.JAVA_20)
+    public void testVirtualThreadsFallBackToPlatformThreadsBeforeJava21() throws Exception {
+        final int port = TEST_PORT + 13;
+        server.stop();
+        server = createServer(port);
+        server.setVirtualThreads(true);
+        server.addStringRoute("/thread", request -> Thread.currentThread().toString());
+        server.start();
+
+        HttpResponse response = executeRequest(Method.GET, "http://localhost:" + port + "/thread");
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        String thread = EntityUtils.toString(response.getEntity());
+        assertTrue(thread.startsWith("Thread["), thread);
+    }
+
+    @Test
+    public void testConnectionsBeyondMaxConnectionsAreRejected() throws Exception {
+        // the limit must be set before the server starts, so a second server is started on another port
+        final int port = TEST_PORT + 10;
+        server.stop();
+        server = createServer(port);
+        server.setMaxConnections(1);
+        server.setRetryAfter(Duration.ofSeconds(5));
+        server.addStringRoute("/hello", request -> "Hello world!");
+        server.start();
+
+        try (Socket first = new Socket("localhost", port)) {
+            first.getOutputStream().write("GET /hello HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse accepted = RawResponse.read(first.getInputStream());
+            assertEquals(200, accepted.statusCode, accepted.headers.toString());
+            assertEquals("Hello world!", accepted.body);
+            assertEquals(1, server.getOpenConnectionCount());
+
+            try (Socket second = new Socket("localhost", port)) {
+                RawResponse rejected = RawResponse.read(second.getInputStream());
+                assertEquals(503, rejected.statusCode);
+                assertEquals("5", rejected.headers.get("retry-after"));
+                assertEquals("close", rejected.headers.get("connection"));
+                assertEquals(-1, second.getInputStream().read());
+            }
+            assertEquals(1, server.getRejectedCount());
+        }
+
+        // once the first connection has closed, there is room for another
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getOpenConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        HttpResponse response = executeRequest(Method.GET, "http://localhost:" + port + "/hello");
+        assertEquals(200, response.getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void testHttpsConnectionsAreServedAndResumeTheirSessions(@TempDir Path dir) throws Exception {
+        File keyStore = createSelfSignedKeyStore(dir);
+        SSLContext serverContext = Tls.loadContext(keyStore, "changeit".toCharArray());
+
+        // TLS must be set up before the server starts, so a second server is started on another port
+        final int port = TEST_PORT + 11;
+        server.stop();
+        server = createServer(port);
+        server.setSslContext(serverContext);
+        server.setTlsSessionCache(100, Duration.ofMinutes(5));
+        byte[] large = new byte[300_000];
+        new Random(42).nextBytes(large);
+        server.addGetRoute("/large", request -> Response.create(StatusCode.OK, large));
+        server.addRoute(Method.POST, "/length", request -> {
+            try {
+                return Response.create(StatusCode.OK, String.valueOf(request.getBodyStream().readAllBytes().length));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        server.start();
+
+        // the client trusts the self-signed certificate, and offers HTTP/2 as well as HTTP/1.1
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(KeyStore.getInstance(keyStore, "changeit".toCharArray()));
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+        byte[] firstSessionId;
+        try (SSLSocket socket = connectTls(clientContext, port)) {
+            assertEquals("http/1.1", socket.getApplicationProtocol());
+            firstSessionId = socket.getSession().getId();
+
+            // a large request body and a large response both span many TLS records
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("POST /length HTTP/1.1\r\nContent-Length: " + large.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(large);
+            out.write("GET /large HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals(String.valueOf(large.length), RawResponse.read(in).body);
+            assertArrayEquals(large, RawResponse.read(in).bytes);
+        }
+
+        // a client that comes back resumes its session rather than doing a full handshake
+        try (SSLSocket socket = connectTls(clientContext, port)) {
+            assertArrayEquals(firstSessionId, socket.getSession().getId());
+            socket.getOutputStream().write("GET /large HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertArrayEquals(large, RawResponse.read(socket.getInputStream()).bytes);
+        }
+    }
+
+    @Test
+    public void testHttp2RequestsAreServedConcurrentlyOnOneConnection() throws Exception {
+        // HTTP/2 must be enabled before the server starts, so a second server is started on another port
+        final int port = TEST_PORT + 12;
+        server.stop();
+        server = createServer(port);
+        server.setHttp2Enabled(true);
+        server.addStringRoute("/hello", request -> "Hello world!");
+        CountDownLatch bothArrived = new CountDownLatch(2);
+        server.addGetRoute("/together", request -> {
+            bothArrived.countDown();
+            try {
+                return Response.create(StatusCode.OK, String.valueOf(bothArrived.await(10, TimeUnit.SECONDS)));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        byte[] large = new byte[300_000];
+        new Random(42).nextBytes(large);
+        server.addGetRoute("/large", request -> Response.create(StatusCode.OK, large));
+        server.addRoute(Method.POST, "/length", request -> {
+            try {
+                return Response.create(StatusCode.OK, String.valueOf(request.getBodyStream().readAllBytes().length));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        server.start();
+
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // the first request upgrades the connection, and is answered over HTTP/2 on stream 1
+            out.write(("GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+                    + "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABk\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 101 Switching Protocols", RawResponse.readLine(in));
+            while (!RawResponse.readLine(in).isEmpty()) {
+                // the rest of the head
+            }
+            out.write(HTTP2_PREFACE);
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+            Map<Integer, Http2Response> responses = readHttp2Responses(in, out, 1);
+            assertEquals(200, responses.get(1).status);
+            assertEquals("Hello world!", responses.get(1).body.toString("UTF-8"));
+
+            // each of these requests only completes once the other has arrived
+            writeFrame(out, 0x1, 0x5, 3, requestHead(0x82, "/together"));
+            writeFrame(out, 0x1, 0x5, 5, requestHead(0x82, "/together"));
+            responses = readHttp2Responses(in, out, 2);
+            assertEquals("true", responses.get(3).body.toString("UTF-8"));
+            assertEquals("true", responses.get(5).body.toString("UTF-8"));
+
+            // a body larger than the flow-control window is sent as the client makes room for it
+            writeFrame(out, 0x1, 0x5, 7, requestHead(0x82, "/large"));
+            responses = readHttp2Responses(in, out, 1);
+            assertArrayEquals(large, responses.get(7).body.toByteArray());
+
+            // a request body arrives in as many frames as it takes
+            writeFrame(out, 0x1, 0x4, 9, requestHead(0x83, "/length"));
+            for (int offset = 0; offset < 60_000; offset += 16_384) {
+                writeFrame(out, 0x0, offset + 16_384 >= 60_000 ? 0x1 : 0, 9,
+                        Arrays.copyOfRange(large, offset, Math.min(offset + 16_384, 60_000)));
+            }
+            responses = readHttp2Responses(in, out, 1);
+            assertEquals("60000", responses.get(9).body.toString("UTF-8"));
+        }
+
+        // a client that knows the server speaks HTTP/2 can start the connection with it
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(HTTP2_PREFACE);
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+            writeFrame(out, 0x1, 0x5, 1, requestHead(0x82, "/hello"));
+            writeFrame(out, 0x1, 0x5, 3, requestHead(0x82, "/missing"));
+            Map<Integer, Http2Response> responses = readHttp2Responses(new DataInputStream(socket.getInputStream()), out, 2);
+            assertEquals("Hello world!", responses.get(1).body.toString("UTF-8"));
+            assertEquals(404, responses.get(3).status);
+        }
+    }
+
+    @Test
+    public void testStalledServerSentEventClientsDoNotHoldUpOthers() throws Exception {
+        ServerSentEventHandler sse = ServerSentEventHandler.create();
+        sse.setQueueCapacity(8);
+        sse.setOverflowPolicy(ServerSentEventHandler.OverflowPolicy.DISCONNECT);
+        server.addServerSentEventRoute("/events", sse);
+
+        try (Socket stalled = new Socket(); Socket reader = new Socket("localhost", TEST_PORT)) {
+            // the stalled client never reads its events, and has little room to receive them
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(new InetSocketAddress("localhost", TEST_PORT));
+            stalled.setSoTimeout(10_000);
+            stalled.getOutputStream().write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse.readHead(stalled.getInputStream());
+            awaitServerSentEvents(sse, stalled);
+
+            reader.setSoTimeout(10_000);
+            reader.getOutputStream().write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse.readHead(reader.getInputStream());
+            awaitServerSentEvents(sse, reader);
+            // nothing has been read ahead of the sync, so the rest of the events can be read through a buffer
+            InputStream readerIn = new BufferedInputStream(reader.getInputStream());
+
+            // far more events than the stalled client's connection can hold are sent, a queue's worth at a time, as
+            // fast as the reader reads them
+            String large = String.join("", Collections.nCopies(32 * 1024, "x"));
+            int received = 0;
+            for (int sent = 0; sent < 400; ) {
+                for (int i = 0; i < 8; i++) {
+                    sse.sendMessage(sent++ + large);
+                }
+                while (received < sent) {
+                    String line = RawResponse.readLine(readerIn);
+                    if (line.startsWith("data: ") && !line.equals("data: sync")) {
+                        assertEquals("data: " + received + large, line);
+                        received++;
+                    }
+                }
+            }
+            assertTrue(sse.getDroppedMessageCount() > 0);
+
+            // the stalled client's queue overflowed, and so it has been disconnected
+            byte[] scratch = new byte[64 * 1024];
+            while (stalled.getInputStream().read(scratch) != -1) {
+                // discard the events that reached the client before it was disconnected
+            }
+            // the client is removed before its connection is closed
+            assertEquals(0, sse.getMaxQueueDepth());
+        }
+    }
+
+    @Test
+    public void testServerSentEventClientsThatStopReadingAreDisconnected() throws Exception {
+        ServerSentEventHandler sse = ServerSentEventHandler.create();
+        sse.setQueueCapacity(8);
+        // a client that stops reading is never disconnected for falling behind, only for its writes timing out
+        sse.setOverflowPolicy(ServerSentEventHandler.OverflowPolicy.DROP_NEWEST);
+        sse.setWriteTimeout(Duration.ofMillis(500));
+        server.addServerSentEventRoute("/events", sse);
+
+        try (Socket stalled = new Socket()) {
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(new InetSocketAddress("localhost", TEST_PORT));
+            stalled.setSoTimeout(10_000);
+            stalled.getOutputStream().write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse.readHead(stalled.getInputStream());
+            awaitServerSentEvents(sse, stalled);
+
+            // events are sent until the client's connection is full, and a write to it has been waiting for longer
+            // than the write timeout
+            String large = String.join("", Collections.nCopies(32 * 1024, "x"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            for (int i = 0; sse.hasActiveConnections() && System.nanoTime() < deadline; i++) {
+                sse.sendMessage(i + large);
+                Thread.sleep(1);
+            }
+            assertFalse(sse.hasActiveConnections());
+            assertTrue(sse.getDroppedMessageCount() > 0);
+
+            byte[] scratch = new byte[64 * 1024];
+            while (stalled.getInputStream().read(scratch) != -1) {
+                // discard the events that reached the client before it was disconnected
+            }
+        }
+    }
+
+    /**
+     * Waits until the client of an event stream is sent its events. A client is only added to the handler once the
+     * response head has been sent, so "sync" events are sent until one reaches the client.
+     */
+    private static void awaitServerSentEvents(ServerSentEventHandler sse, Socket client) throws IOException {
+        int soTimeout = client.getSoTimeout();
+        client.setSoTimeout(100);
+        try {
+            while (true) {
+                sse.sendMessage("sync");
+                try {
+                    if (RawResponse.readLine(client.getInputStream()).equals("data: sync")) {
+                        return;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // the client was not added in time for that event
+                }
+            }
+        } finally {
+            client.setSoTimeout(soTimeout);
+        }
+    }
+
+    @Test
+    public void testWebSocketMessagesGoBothWaysOnOneConnection() throws Exception {
+        CountDownLatch opened = new CountDownLatch(2);
+        CountDownLatch closed = new CountDownLatch(2);
+        List<Integer> closeCodes = new CopyOnWriteArrayList<>();
+        server.addWebSocketRoute("/chat/:name", new WebSocketHandlerImpl() {
+            @Override public void onOpen(WebSocketConnection connection) {
+                opened.countDown();
+            }
+
+            @Override public void onMessage(WebSocketConnection connection, String message) {
+                broadcast(connection.getRequest().getPathParams().get("name") + ": " + message);
+            }
+
+            @Override public void onClose(WebSocketConnection connection, int code, String reason) {
+                closeCodes.add(code);
+                closed.countDown();
+            }
+        });
+
+        // a request that does not ask to upgrade is told how to
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.getOutputStream().write("GET /chat/alice HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse response = RawResponse.read(socket.getInputStream());
+            assertEquals(426, response.statusCode);
+            assertEquals("websocket", response.headers.get("upgrade"));
+            assertEquals("13", response.headers.get("sec-websocket-version"));
+        }
+
+        try (Socket alice = openWebSocket("/chat/alice"); Socket bob = openWebSocket("/chat/bob")) {
+            assertTrue(opened.await(10, TimeUnit.SECONDS));
+            OutputStream aliceOut = alice.getOutputStream();
+            DataInputStream aliceIn = new DataInputStream(alice.getInputStream());
+            DataInputStream bobIn = new DataInputStream(bob.getInputStream());
+
+            // a fragmented message is put back together, and a ping in the middle of it is answered straight away
+            writeWebSocketFrame(aliceOut, 0x01, "Hel".getBytes(StandardCharsets.UTF_8));
+            writeWebSocketFrame(aliceOut, 0x89, "are you there?".getBytes(StandardCharsets.UTF_8));
+            writeWebSocketFrame(aliceOut, 0x80, "lo".getBytes(StandardCharsets.UTF_8));
+            assertWebSocketFrame(aliceIn, 0x8A, "are you there?");
+            assertWebSocketFrame(aliceIn, 0x81, "alice: Hello");
+            assertWebSocketFrame(bobIn, 0x81, "alice: Hello");
+
+            // a message longer than 125 bytes has an extended length
+            String longMessage = String.join("", Collections.nCopies(100, "\u00e9t\u00e9 "));
+            writeWebSocketFrame(bob.getOutputStream(), 0x81, longMessage.getBytes(StandardCharsets.UTF_8));
+            assertWebSocketFrame(aliceIn, 0x81, "bob: " + longMessage);
+            assertWebSocketFrame(bobIn, 0x81, "bob: " + longMessage);
+
+            // closing is answered with a close frame, after which the connection is closed
+            writeWebSocketFrame(aliceOut, 0x88, new byte[] { 0x03, (byte) 0xE8 });
+            assertWebSocketFrame(aliceIn, 0x88, "\u0003\u00e8");
+            assertEquals(-1, aliceIn.read());
+
+            // a frame that is not masked breaks the protocol
+            OutputStream bobOut = bob.getOutputStream();
+            bobOut.write(new byte[] { (byte) 0x81, 0x00 });
+            bobOut.flush();
+            byte[] close = readWebSocketFrame(bobIn, 0x88);
+            assertEquals(WebSocketConnection.PROTOCOL_ERROR, ((close[0] & 0xFF) << 8) | (close[1] & 0xFF));
+            assertEquals(-1, bobIn.read());
+        }
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        closeCodes.sort(null);
+        assertEquals(Arrays.asList(WebSocketConnection.NORMAL_CLOSURE, WebSocketConnection.PROTOCOL_ERROR), closeCodes);
+    }
+
+    /**
+     * Opens a WebSocket connection to the given path, checking the handshake with the sample key from RFC 6455.
+     */
+    @Test
+    public void testStalledWebSocketClientsDoNotHoldUpBroadcasts() throws Exception {
+        CountDownLatch opened = new CountDownLatch(2);
+        WebSocketHandler handler = WebSocketHandler.create(connection -> opened.countDown(), null, null);
+        server.addWebSocketRoute("/feed", handler);
+
+        // the stalled client never reads its messages, and is the first to be broadcast to
+        try (Socket stalled = openWebSocket("/feed"); Socket reader = openWebSocket("/feed")) {
+            assertTrue(opened.await(10, TimeUnit.SECONDS));
+
+            String large = String.join("", Collections.nCopies(64 * 1024, "x"));
+            for (int i = 0; i < 400; i++) {
+                handler.broadcast(i + large);
+            }
+
+            DataInputStream readerIn = new DataInputStream(new BufferedInputStream(reader.getInputStream()));
+            for (int i = 0; i < 400; i++) {
+                assertWebSocketFrame(readerIn, 0x81, i + large);
+            }
+        }
+    }
+
+    private static Socket openWebSocket(String path) throws IOException {
+        Socket socket = new Socket("localhost", TEST_PORT);
+        socket.setSoTimeout(10_000);
+        socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\n"
+                + "Upgrade: websocket\r\nSec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        String head = RawResponse.readHead(socket.getInputStream());
+        assertTrue(head.startsWith("HTTP/1.1 101 Switching Protocols"), head);
+        assertTrue(head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="), head);
+        return socket;
+    }
+
+    /**
+     * Writes a masked frame, with the given first byte (the FIN bit and the opcode).
+     */
+    private static void writeWebSocketFrame(OutputStream out, int finAndOpcode, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(finAndOpcode);
+        if (payload.length <= 125) {
+            frame.write(0x80 | payload.length);
+        } else {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        }
+        byte[] mask = { 0x12, 0x34, 0x56, 0x78 };
+        frame.write(mask, 0, 4);
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(payload[i] ^ mask[i & 3]);
+        }
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    private static byte[] readWebSocketFrame(DataInputStream in, int expectedFinAndOpcode) throws IOException {
+        assertEquals(expectedFinAndOpcode, in.readUnsignedByte());
+        int length = in.readUnsignedByte();
+        assertEquals(0, length & 0x80, "Frames sent by the server are not masked");
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = (int) in.readLong();
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private static void assertWebSocketFrame(DataInputStream in, int expectedFinAndOpcode, String expectedPayload)
+            throws IOException {
+        byte[] payload = readWebSocketFrame(in, expectedFinAndOpcode);
+        byte[] expected = expectedFinAndOpcode == 0x88
+                ? expectedPayload.getBytes(StandardCharsets.ISO_8859_1)
+                : expectedPayload.getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, payload);
+    }
+
+    private static final byte[] HTTP2_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Encodes the head of a request with the given method (as an index into the HPACK static table) and path.
+     */
+    private static byte[] requestHead(int method, String path) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        // the method and ':scheme: http' are indexed, and the path is a literal with the indexed name ':path'
+        block.write(method);
+        block.write(0x86);
+        block.write(0x04);
+        block.write(path.length());
+        block.write(path.getBytes(StandardCharsets.US_ASCII), 0, path.length());
+        return block.toByteArray();
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload) throws IOException {
+        out.write(new byte[] { (byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                (byte) type, (byte) flags,
+                (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId });
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Reads frames until the given number of responses have ended, giving the server room to send more as bodies
+     * arrive.
+     */
+    private static Map<Integer, Http2Response> readHttp2Responses(DataInputStream in, OutputStream out, int count)
+            throws IOException {
+        Map<Integer, Http2Response> responses = new HashMap<>();
+        while (count > 0) {
+            int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (streamId == 0) {
+                continue;
+            }
+
+            Http2Response response = responses.computeIfAbsent(streamId, id -> new Http2Response());
+            if (type == 0x1) {
+                // ':status' 200 and 404 are entries 8 and 13 of the static table
+                response.status = (payload[0] & 0xFF) == 0x88 ? 200 : (payload[0] & 0xFF) == 0x8d ? 404 : -1;
+            } else if (type == 0x0 && length > 0) {
+                response.body.write(payload);
+                byte[] increment = { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length };
+                writeFrame(out, 0x8, 0, 0, increment);
+                writeFrame(out, 0x8, 0, streamId, increment);
+            }
+            if ((type == 0x0 || type == 0x1) && (flags & 0x1) != 0) {
+                count--;
+            }
+        }
+        return responses;
+    }
+
+    private static final class Http2Response {
+        private int status;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    }
+
+    private static SSLSocket connectTls(SSLContext context, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setApplicationProtocols(new String[] { "h2", "http/1.1" });
+        // TLS 1.2, as it is the version whose resumed sessions keep the session ID
+        parameters.setProtocols(new String[] { "TLSv1.2" });
+        socket.setSSLParameters(parameters);
+        socket.startHandshake();
+        return socket;
+    }
+
+    /**
+     * Generates a key store holding a self-signed certificate for localhost with the JDK's keytool.
+     */
+    private static File createSelfSignedKeyStore(Path dir) throws Exception {
+        File keyStore = dir.resolve("keystore.p12").toFile();
+        Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "localhost", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keyStore.getPath(), "-storepass", "changeit")
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(keytool.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(0, keytool.waitFor(), output);
+        return keyStore;
+    }
+
+    @Test
+    public void testLargeBodiesAreSentIntact() throws Exception {
+        byte[] large = new byte[100 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) ('a' + i % 26);
+        }
+        server.addGetRoute("/large", request -> Response.create(StatusCode.OK, large));
+        server.addStringRoute("/hello", request -> "Hello world!");
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /large HTTP/1.1\r\n\r\nGET /hello HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse response = RawResponse.read(in);
+            assertEquals(String.valueOf(large.length), response.headers.get("content-length"));
+            assertEquals(new String(large, StandardCharsets.UTF_8), response.body);
+            assertEquals("Hello world!", RawResponse.read(in).body);
+        }
+    }
+
+    @Test
+    public void testBodiesOfUnknownLengthAreSentWithContentLength() throws Exception {
+        byte[] large = new byte[50 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        server.addGetRoute("/small", request -> new ResponseBase(StatusCode.OK) {
+            @Override
+            public void writeBody(BufferedOutputStream dataOut) throws IOException {
+                dataOut.write("Hello ".getBytes(StandardCharsets.US_ASCII));
+                dataOut.write("world!".getBytes(StandardCharsets.US_ASCII));
+            }
+        });
+        server.addGetRoute("/large", request -> new ResponseBase(StatusCode.OK) {
+            @Override
+            public void writeBody(BufferedOutputStream dataOut) throws IOException {
+                dataOut.write(large);
+            }
+        });
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /small HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse small = RawResponse.read(in);
+            assertEquals("Hello world!", small.body);
+            assertEquals("12", small.headers.get("content-length"));
+            assertNull(small.headers.get("connection"));
+
+            // a body that is too large to collect is streamed in chunks, so the connection can still be reused
+            out.write("GET /large HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse chunked = RawResponse.read(in);
+            assertNull(chunked.headers.get("content-length"));
+            assertEquals("chunked", chunked.headers.get("transfer-encoding"));
+            assertNull(chunked.headers.get("connection"));
+            assertEquals(new String(large, StandardCharsets.US_ASCII), chunked.body);
+
+            // HTTP/1.0 clients don't understand chunks, so the body is delimited by closing the connection instead
+            out.write("GET /large HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse streamed = RawResponse.read(in);
+            assertNull(streamed.headers.get("transfer-encoding"));
+            assertEquals("close", streamed.headers.get("connection"));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            assertArrayEquals(large, body.toByteArray());
+        }
+    }
+
+    @Test
+    public void testResponsesAreCompressedForClientsThatAcceptIt() throws Exception {
+        server.setCompressionEnabled(true);
+        server.setCompressionThreshold(100);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        final String large = text.toString();
+        Random generator = new Random(42);
+        StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 100 * 1024; i++) {
+            noise.append((char) ('!' + generator.nextInt(94)));
+        }
+        final String random = noise.toString();
+        final List<Header> json = Arrays.asList(new Header("Content-Type", "application/json"));
+        server.addStringRoute("/large", request -> large);
+        server.addStringRoute("/small", request -> "Hello world!");
+        server.addGetRoute("/image", request -> Response.create(StatusCode.OK,
+                new ArrayList<>(Arrays.asList(new Header("Content-Type", "image/png"))), large.getBytes(StandardCharsets.US_ASCII)));
+        server.addGetRoute("/json", request -> new ResponseBase(StatusCode.OK, json) {
+            @Override
+            public void writeBody(BufferedOutputStream dataOut) throws IOException {
+                dataOut.write(large.getBytes(StandardCharsets.US_ASCII));
+            }
+        });
+        server.addGetRoute("/random", request -> new ResponseBase(StatusCode.OK, json) {
+            @Override
+            public void writeBody(BufferedOutputStream dataOut) throws IOException {
+                dataOut.write(random.getBytes(StandardCharsets.US_ASCII));
+            }
+        });
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /large HTTP/1.1\r\nAccept-Encoding: gzip, deflate\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse gzip = RawResponse.read(in);
+            assertEquals("gzip", gzip.headers.get("content-encoding"));
+            assertEquals("Accept-Encoding", gzip.headers.get("vary"));
+            assertEquals(String.valueOf(gzip.bytes.length), gzip.headers.get("content-length"));
+            assertTrue(gzip.bytes.length < large.length() / 2);
+            assertEquals(large, decompress(new GZIPInputStream(new ByteArrayInputStream(gzip.bytes))));
+
+            out.write("GET /large HTTP/1.1\r\nAccept-Encoding: gzip;q=0, deflate\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse deflate = RawResponse.read(in);
+            assertEquals("deflate", deflate.headers.get("content-encoding"));
+            assertEquals(large, decompress(new InflaterInputStream(new ByteArrayInputStream(deflate.bytes))));
+
+            // bodies of unknown length are compressed too, and only streamed if they are too large to collect once
+            // they have been compressed
+            out.write("GET /json HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse collected = RawResponse.read(in);
+            assertEquals("gzip", collected.headers.get("content-encoding"));
+            assertEquals(String.valueOf(collected.bytes.length), collected.headers.get("content-length"));
+            assertEquals(large, decompress(new GZIPInputStream(new ByteArrayInputStream(collected.bytes))));
+
+            out.write("GET /random HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse streamed = RawResponse.read(in);
+            assertEquals("gzip", streamed.headers.get("content-encoding"));
+            assertEquals("chunked", streamed.headers.get("transfer-encoding"));
+            assertEquals(random, decompress(new GZIPInputStream(new ByteArrayInputStream(streamed.bytes))));
+
+            // clients that don't ask for compression are sent the body as-is, but caches are told it could vary
+            out.write("GET /large HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse identity = RawResponse.read(in);
+            assertNull(identity.headers.get("content-encoding"));
+            assertEquals("Accept-Encoding", identity.headers.get("vary"));
+            assertEquals(large, identity.body);
+
+            // small bodies and types that are already compressed are left alone
+            out.write("GET /small HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse small = RawResponse.read(in);
+            assertNull(small.headers.get("content-encoding"));
+            assertEquals("Hello world!", small.body);
+
+            out.write("GET /image HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse image = RawResponse.read(in);
+            assertNull(image.headers.get("content-encoding"));
+            assertEquals(large, image.body);
+        }
+    }
+
+    @Test
+    public void testPrecompressedFileVariantsAreSentToClientsThatAcceptGzip(@TempDir Path webroot) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("body { margin: ").append(i).append("px; }\n");
+        }
+        final String css = text.toString();
+        Files.write(webroot.resolve("style.css"), css.getBytes(StandardCharsets.US_ASCII));
+        Files.write(webroot.resolve("small.css"), "p { }".getBytes(StandardCharsets.US_ASCII));
+        Files.write(webroot.resolve("image.png"), css.getBytes(StandardCharsets.US_ASCII));
+
+        // only compressible files that are large enough get a variant, and only once
+        assertEquals(1, server.precompressFiles(webroot.toFile()));
+        assertTrue(Files.exists(webroot.resolve("style.css.gz")));
+        assertFalse(Files.exists(webroot.resolve("small.css.gz")));
+        assertFalse(Files.exists(webroot.resolve("image.png.gz")));
+        assertEquals(0, server.precompressFiles(webroot.toFile()));
+
+        // files are read from disk for each request, so that the variant going out of date is seen straight away
+        server.setFileCacheSize(0);
+        server.addFileRoute("/", webroot.toFile());
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /style.css HTTP/1.1\r\nAccept-Encoding: deflate, gzip;q=0.5\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse gzip = RawResponse.read(in);
+            assertEquals(200, gzip.statusCode);
+            assertEquals("gzip", gzip.headers.get("content-encoding"));
+            assertEquals("Accept-Encoding", gzip.headers.get("vary"));
+            assertTrue(gzip.headers.get("content-type").startsWith("text/css"));
+            assertEquals(String.valueOf(Files.size(webroot.resolve("style.css.gz"))), gzip.headers.get("content-length"));
+            assertEquals(css, decompress(new GZIPInputStream(new ByteArrayInputStream(gzip.bytes))));
+
+            out.write("GET /style.css HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse identity = RawResponse.read(in);
+            assertNull(identity.headers.get("content-encoding"));
+            assertEquals("Accept-Encoding", identity.headers.get("vary"));
+            assertEquals(css, identity.body);
+
+            // a variant that is older than its file is out of date, so the file is sent instead
+            Files.setLastModifiedTime(webroot.resolve("style.css.gz"), FileTime.fromMillis(0));
+            out.write("GET /style.css HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse stale = RawResponse.read(in);
+            assertNull(stale.headers.get("content-encoding"));
+            assertEquals(css, stale.body);
+        }
+    }
+
+    @Test
+    public void testLargeFilesAreSentInFullAlongsidePipelinedRequests(@TempDir Path webroot) throws Exception {
+        byte[] large = new byte[5 * 1024 * 1024];
+        new Random(7).nextBytes(large);
+        Files.write(webroot.resolve("large.bin"), large);
+        Files.write(webroot.resolve("small.txt"), "small".getBytes(StandardCharsets.US_ASCII));
+        server.addFileRoute("/", webroot.toFile());
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write(("GET /small.txt HTTP/1.1\r\n\r\nGET /large.bin HTTP/1.1\r\n\r\n"
+                    + "GET /small.txt HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            assertEquals("small", RawResponse.read(in).body);
+            RawResponse file = RawResponse.read(in);
+            assertEquals(String.valueOf(large.length), file.headers.get("content-length"));
+            assertArrayEquals(large, file.bytes);
+            assertEquals("small", RawResponse.read(in).body);
+        }
+    }
+
+    @Test
+    public void testCachedFilesAreDroppedWhenTheyChange(@TempDir Path webroot) throws Exception {
+        byte[] medium = new byte[200 * 1024];
+        new Random(11).nextBytes(medium);
+        Files.write(webroot.resolve("medium.bin"), medium);
+        Files.write(webroot.resolve("page.html"), "first".getBytes(StandardCharsets.US_ASCII));
+        Files.write(webroot.resolve("404.html"), "not here".getBytes(StandardCharsets.US_ASCII));
+        server.addFileRoute("/", webroot.toFile());
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // the same files are served from the cache the second time round
+            for (int i = 0; i < 2; i++) {
+                out.write("GET /page.html HTTP/1.1\r\n\r\nGET /medium.bin HTTP/1.1\r\n\r\nGET /missing.html HTTP/1.1\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                assertEquals("first", RawResponse.read(in).body);
+                assertArrayEquals(medium, RawResponse.read(in).bytes);
+                RawResponse missing = RawResponse.read(in);
+                assertEquals(404, missing.statusCode);
+                assertEquals("not here", missing.body);
+            }
+
+            Files.write(webroot.resolve("page.html"), "second, and longer".getBytes(StandardCharsets.US_ASCII));
+            awaitFileRoute(out, in, "/page.html", "second, and longer");
+
+            Files.write(webroot.resolve("missing.html"), "here now".getBytes(StandardCharsets.US_ASCII));
+            awaitFileRoute(out, in, "/missing.html", "here now");
+
+            Files.delete(webroot.resolve("page.html"));
+            awaitFileRoute(out, in, "/page.html", "not here");
+        }
+    }
+
+    @Test
+    public void testConditionalRequestsForUnchangedFilesGetNotModified(@TempDir Path webroot) throws Exception {
+        Files.write(webroot.resolve("app.js"), "console.log('hello');".getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(webroot.resolve("app.js"), FileTime.fromMillis(1_600_000_000_000L));
+        server.addFileRoute("/", webroot.toFile());
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /app.js HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse full = RawResponse.read(in);
+            assertEquals(200, full.statusCode);
+            String etag = full.headers.get("etag");
+            assertTrue(etag.startsWith("\"") && etag.endsWith("\""), etag);
+            assertEquals("Sun, 13 Sep 2020 12:26:40 GMT", full.headers.get("last-modified"));
+
+            // the connection stays open after each 304, as it has no body
+            out.write(("GET /app.js HTTP/1.1\r\nIf-None-Match: \"other\", " + etag + "\r\n\r\n"
+                    + "GET /app.js HTTP/1.1\r\nIf-None-Match: W/" + etag + "\r\n\r\n"
+                    + "GET /app.js HTTP/1.1\r\nIf-Modified-Since: Sun, 13 Sep 2020 12:26:40 GMT\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < 3; i++) {
+                RawResponse notModified = RawResponse.read(in);
+                assertEquals(304, notModified.statusCode);
+                assertEquals(etag, notModified.headers.get("etag"));
+                assertNull(notModified.headers.get("content-length"));
+                assertNull(notModified.headers.get("connection"));
+                assertEquals(0, notModified.bytes.length);
+            }
+
+            // the tag takes precedence over the date, and an older date means the file has changed
+            out.write(("GET /app.js HTTP/1.1\r\nIf-None-Match: \"other\"\r\n"
+                    + "If-Modified-Since: Sun, 13 Sep 2020 12:26:40 GMT\r\n\r\n"
+                    + "GET /app.js HTTP/1.1\r\nIf-Modified-Since: Sat, 12 Sep 2020 12:26:40 GMT\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals("console.log('hello');", RawResponse.read(in).body);
+            assertEquals("console.log('hello');", RawResponse.read(in).body);
+        }
+    }
+
+    @Test
+    public void testRangeRequestsGetPartsOfFiles(@TempDir Path webroot) throws Exception {
+        Files.write(webroot.resolve("alphabet.txt"), "abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.US_ASCII));
+        byte[] large = new byte[200_000];
+        new Random(42).nextBytes(large);
+        Files.write(webroot.resolve("large.bin"), large);
+        server.addFileRoute("/", webroot.toFile());
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /alphabet.txt HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse full = RawResponse.read(in);
+            assertEquals("bytes", full.headers.get("accept-ranges"));
+            String etag = full.headers.get("etag");
+
+            out.write(("GET /alphabet.txt HTTP/1.1\r\nRange: bytes=2-4\r\n\r\n"
+                    + "GET /alphabet.txt HTTP/1.1\r\nRange: bytes=-3\r\n\r\n"
+                    + "GET /alphabet.txt HTTP/1.1\r\nRange: bytes=20-\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse partial = RawResponse.read(in);
+            assertEquals(206, partial.statusCode);
+            assertEquals("bytes 2-4/26", partial.headers.get("content-range"));
+            assertEquals("3", partial.headers.get("content-length"));
+            assertEquals("cde", partial.body);
+            assertEquals("xyz", RawResponse.read(in).body);
+            assertEquals("uvwxyz", RawResponse.read(in).body);
+
+            // several ranges are sent as the parts of a multipart body, with overlapping ranges merged
+            out.write("GET /alphabet.txt HTTP/1.1\r\nRange: bytes=0-1, 10-12, 11-13\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse multipart = RawResponse.read(in);
+            assertEquals(206, multipart.statusCode);
+            String contentType = multipart.headers.get("content-type");
+            assertTrue(contentType.startsWith("multipart/byteranges; boundary="), contentType);
+            String boundary = contentType.substring(contentType.indexOf('=') + 1);
+            assertEquals("\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/26\r\n\r\nab"
+                    + "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 10-13/26\r\n\r\nklmn"
+                    + "\r\n--" + boundary + "--\r\n", multipart.body);
+
+            // a range past the end of the file can't be satisfied, whereas one that is malformed is ignored
+            out.write(("GET /alphabet.txt HTTP/1.1\r\nRange: bytes=30-40\r\n\r\n"
+                    + "GET /alphabet.txt HTTP/1.1\r\nRange: bytes=5-2\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse unsatisfiable = RawResponse.read(in);
+            assertEquals(416, unsatisfiable.statusCode);
+            assertEquals("bytes */26", unsatisfiable.headers.get("content-range"));
+            assertEquals(0, unsatisfiable.bytes.length);
+            assertEquals("abcdefghijklmnopqrstuvwxyz", RawResponse.read(in).body);
+
+            // the range is only sent if the file is still the version the client has a part of
+            out.write(("GET /alphabet.txt HTTP/1.1\r\nRange: bytes=0-2\r\nIf-Range: " + etag + "\r\n\r\n"
+                    + "GET /alphabet.txt HTTP/1.1\r\nRange: bytes=0-2\r\nIf-Range: \"other\"\r\n\r\n"
+                    + "GET /alphabet.txt HTTP/1.1\r\nRange: bytes=0-2\r\n"
+                    + "If-Range: Sat, 12 Sep 2020 12:26:40 GMT\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals("abc", RawResponse.read(in).body);
+            RawResponse changed = RawResponse.read(in);
+            assertEquals(200, changed.statusCode);
+            assertEquals("abcdefghijklmnopqrstuvwxyz", changed.body);
+            assertEquals("abcdefghijklmnopqrstuvwxyz", RawResponse.read(in).body);
+
+            // ranges of files that are too large to be held on the heap come straight from the file
+            out.write("GET /large.bin HTTP/1.1\r\nRange: bytes=100000-150000\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            RawResponse largePart = RawResponse.read(in);
+            assertEquals("bytes 100000-150000/200000", largePart.headers.get("content-range"));
+            assertArrayEquals(Arrays.copyOfRange(large, 100_000, 150_001), largePart.bytes);
+        }
+    }
+
+    /**
+     * Requests the path until the given body is returned, as changes to files are noticed asynchronously.
+     */
+    private static void awaitFileRoute(OutputStream out, InputStream in, String path, String expectedBody)
+            throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        String body;
+        do {
+            out.write(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            body = RawResponse.read(in).body;
+            if (!body.equals(expectedBody)) {
+                Thread.sleep(20);
+            }
+        } while (!body.equals(expectedBody) && System.nanoTime() < deadline);
+        assertEquals(expectedBody, body);
+    }
+
+    private static String decompress(InputStream in) throws IOException {
+        try (InputStream decompressed = in) {
+            return new String(decompressed.readAllBytes(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Test
+    public void testStreamingResponseIsChunkedAndCanBeFlushed() throws Exception {
+        CountDownLatch firstPartRead = new CountDownLatch(1);
+        server.setChunkSize(4);
+        server.addGetRoute("/stream", request -> Response.createStreaming(StatusCode.OK, out -> {
+            out.write("Hel".getBytes(StandardCharsets.US_ASCII));
+            out.write("lo ".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            try {
+                assertTrue(firstPartRead.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            out.write("streamed world!".getBytes(StandardCharsets.US_ASCII));
+        }));
+        server.addStringRoute("/hello", request -> "Hello world!");
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /stream HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+            // the flushed part of the body arrives before the rest of it has been written
+            String head = RawResponse.readHead(in);
+            assertTrue(head.contains("Transfer-Encoding: chunked"), head);
+            // writes are collected into chunks of up to the chunk size, and flushing sends a partial chunk
+            assertEquals("3", RawResponse.readLine(in));
+            assertEquals("Hel", RawResponse.readLine(in));
+            assertEquals("3", RawResponse.readLine(in));
+            assertEquals("lo ", RawResponse.readLine(in));
+            firstPartRead.countDown();
+
+            assertEquals("streamed world!", RawResponse.readChunkedBody(in));
+
+            out.write("GET /hello HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("Hello world!", RawResponse.read(in).body);
+        }
+    }
+
+    @Test
+    public void testResponseHeadUsesCrlfAndImfFixdate() throws Exception {
+        server.addGetRoute("/empty", request -> StatusCode.NO_CONTENT.asResponse());
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.getOutputStream().write("GET /empty HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                bytes.write(b);
+            }
+            String head = bytes.toString("US-ASCII");
+
+            assertTrue(head.startsWith("HTTP/1.1 204 No Content\r\n"), head);
+            assertTrue(head.endsWith("\r\n\r\n"), head);
+            assertEquals(head.split("\n", -1).length, head.split("\r\n", -1).length, "every line must end with CRLF");
+
+            String date = head.split("Date: ", 2)[1].split("\r\n", 2)[0];
+            assertTrue(date.matches("[A-Z][a-z]{2}, \\d{2} [A-Z][a-z]{2} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT"), date);
+            ZonedDateTime parsed = ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME);
+            assertTrue(Math.abs(Duration.between(parsed.toInstant(), Instant.now()).getSeconds()) < 60);
+        }
+    }
+
+    @Test
+    public void testStopLetsInFlightRequestsComplete() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        server.addStringRoute("/hello", request -> "Hello world!");
+        server.addStringRoute("/slow", request -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "Finally!";
+        });
+
+        try (Socket idle = new Socket("localhost", TEST_PORT);
+             Socket busy = new Socket("localhost", TEST_PORT)) {
+            idle.getOutputStream().write("GET /hello HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("Hello world!", RawResponse.read(idle.getInputStream()).body);
+
+            busy.getOutputStream().write("GET /slow HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+            CompletableFuture<Void> stopped = CompletableFuture.runAsync(server::stop);
+
+            // the idle connection is closed straight away, while the busy one is left to finish its request
+            assertEquals(-1, idle.getInputStream().read());
+            assertFalse(stopped.isDone());
+
+            release.countDown();
+            RawResponse response = RawResponse.read(busy.getInputStream());
+            assertEquals("Finally!", response.body);
+            assertEquals("close", response.headers.get("connection"));
+            assertEquals(-1, busy.getInputStream().read());
+
+            stopped.get(5, TimeUnit.SECONDS);
+        }
+    }
+
     @Test
     public void testSingleValueHeader() {
         Header header = new Header("Content-Type: text/html");
@@ -470,6 +1887,91 @@ public class TeenyHttpdTest {
     }
 
 
+    /**
+     * A minimal HTTP response reader, used to test the behaviour of persistent connections at the socket level.
+     */
+    static class RawResponse {
+        final int statusCode;
+        final Map<String, String> headers;
+        final byte[] bytes;
+        final String body;
+
+        private RawResponse(int statusCode, Map<String, String> headers, byte[] bytes) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.bytes = bytes;
+            this.body = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        static RawResponse read(InputStream in) throws IOException {
+            String[] lines = readHead(in).split("\n");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+
+            byte[] body;
+            if ("chunked".equals(headers.get("transfer-encoding"))) {
+                body = readChunkedBytes(in);
+            } else {
+                body = readFully(in, Integer.parseInt(headers.getOrDefault("content-length", "0")));
+            }
+            return new RawResponse(Integer.parseInt(lines[0].split(" ")[1]), headers, body);
+        }
+
+        static String readHead(InputStream in) throws IOException {
+            StringBuilder head = new StringBuilder(readLine(in));
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                head.append('\n').append(line);
+            }
+            return head.toString();
+        }
+
+        static String readChunkedBody(InputStream in) throws IOException {
+            return new String(readChunkedBytes(in), StandardCharsets.UTF_8);
+        }
+
+        private static byte[] readChunkedBytes(InputStream in) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int size;
+            while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+                body.write(readFully(in, size));
+                assertEquals("", readLine(in));
+            }
+            assertEquals("", readLine(in));
+            return body.toByteArray();
+        }
+
+        private static byte[] readFully(InputStream in, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            return bytes;
+        }
+
+        static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                if (b != '\r') {
+                    sb.append((char) b);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
     // ----------------------------
     // Server-Sent Events
     // ----------------------------
@@ -15,8 +15,8 @@ public class ChatServer {
     // collection of all connected users
     private final Set<String> users = Collections.synchronizedSet(new HashSet<>());
 
-    // event handler for sending chat messages to all clients
-    private final ServerSentEventHandler chatMessagesEventHandler = ServerSentEventHandler.create();
+    // WebSocket handler that receives chat messages from each client, and sends them on to all clients
+    private final WebSocketHandler chatHandler = WebSocketHandler.create((connection, json) -> sendMessage(json));
 
     // event handler for sending all connected users to all clients
     private final ServerSentEventHandler usersEventHandler = ServerSentEventHandler.create();
@@ -30,16 +30,6 @@ public class ChatServer {
 
         TeenyHttpd server = new TeenyHttpd(PORT);
 
-        // post a JSON message to this endpoint to send a message to all clients.
-        // JSON format is {"user":"<username>", "message":"<message>"}
-        server.addRoute(Method.POST, "/message", request -> {
-            String json = request.getQueryParams().get("message");
-            if (json != null && !json.isEmpty()) {
-                sendMessage(json);
-            }
-            return StatusCode.OK.asResponse();
-        });
-
         // Post a username to this endpoint to join the chat and broadcast you are connected to all other users
         server.addRoute(Method.POST, "/login", request -> {
             String username = request.getQueryParams().get("username");
@@ -62,8 +52,11 @@ public class ChatServer {
             return StatusCode.OK.asResponse();
         });
 
-        // The two SSE endpoints, for messages and connected users
-        server.addServerSentEventRoute("/messages", chatMessagesEventHandler);
+        // Chat messages go both ways over a WebSocket, with each message sent to all clients.
+        // JSON format is {"user":"<username>", "message":"<message>"}
+        server.addWebSocketRoute("/chat", chatHandler);
+
+        // The SSE endpoint for connected users
         server.addServerSentEventRoute("/users", usersEventHandler);
 
         // we serve the web page from here
@@ -82,6 +75,8 @@ public class ChatServer {
     }
 
     private void sendMessage(String json) {
-        chatMessagesEventHandler.sendMessage(json);
+        if (json != null && !json.isEmpty()) {
+            chatHandler.broadcast(json);
+        }
     }
 }
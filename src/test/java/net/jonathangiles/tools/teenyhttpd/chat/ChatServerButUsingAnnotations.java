@@ -6,6 +6,7 @@ import net.jonathangiles.tools.teenyhttpd.Message;
 import net.jonathangiles.tools.teenyhttpd.TeenyApplication;
 import net.jonathangiles.tools.teenyhttpd.annotations.*;
 import net.jonathangiles.tools.teenyhttpd.model.ServerSentEventHandler;
+import net.jonathangiles.tools.teenyhttpd.model.WebSocketHandler;
 
 import java.io.File;
 import java.util.Collections;
@@ -25,14 +26,21 @@ public class ChatServerButUsingAnnotations {
 
     private final Gson gson = new Gson();
 
+    // chat messages go both ways over a WebSocket, with each message sent to all clients
+    private final WebSocketHandler chatHandler = WebSocketHandler.create((connection, message) -> {
+        if (!message.isEmpty()) {
+            this.chatHandler.broadcast(message);
+        }
+    });
+
     @Configuration
     public GsonMessageConverter getGsonConverter() {
         return new GsonMessageConverter();
     }
 
-    @ServerEvent(value = "/messages", name = "messages")
-    public ServerSentEventHandler chatMessages() {
-        return ServerSentEventHandler.create();
+    @WebSocket("/chat")
+    public WebSocketHandler chat() {
+        return chatHandler;
     }
 
     @ServerEvent("/users")
@@ -45,21 +53,9 @@ public class ChatServerButUsingAnnotations {
         return new File("src/test/java/net/jonathangiles/tools/teenyhttpd/chat");
     }
 
-    @Post("/message")
-    public void message(@QueryParam("message") String message,
-                        @EventHandler("messages") ServerSentEventHandler chatMessagesEventHandler) {
-
-        if (message.isEmpty()) {
-            return;
-        }
-
-        chatMessagesEventHandler.sendMessage(message);
-    }
-
     @Post("/login")
     public void login(@QueryParam("username") String username,
-                      @EventHandler("users") ServerSentEventHandler usersEventHandler,
-                      @EventHandler("messages") ServerSentEventHandler chatMessagesEventHandler) {
+                      @EventHandler("users") ServerSentEventHandler usersEventHandler) {
 
         if (username.isEmpty()) {
             return;
@@ -67,13 +63,12 @@ public class ChatServerButUsingAnnotations {
 
         users.add(username);
         usersEventHandler.sendMessage(String.join(",", users));
-        chatMessagesEventHandler.sendMessage(gson.toJson(new Message("system", username + " has joined the chat")));
+        chatHandler.broadcast(gson.toJson(new Message("system", username + " has joined the chat")));
     }
 
     @Post("/logout")
     public void logout(@QueryParam("username") String username,
-                       @EventHandler("users") ServerSentEventHandler usersEventHandler,
-                       @EventHandler("messages") ServerSentEventHandler chatMessagesEventHandler) {
+                       @EventHandler("users") ServerSentEventHandler usersEventHandler) {
 
         if (username.isEmpty()) {
             return;
@@ -81,7 +76,7 @@ public class ChatServerButUsingAnnotations {
 
         users.remove(username);
         usersEventHandler.sendMessage(String.join(",", users));
-        chatMessagesEventHandler.sendMessage(gson.toJson(new Message("system", username + " has left the chat")));
+        chatHandler.broadcast(gson.toJson(new Message("system", username + " has left the chat")));
     }
 
 }